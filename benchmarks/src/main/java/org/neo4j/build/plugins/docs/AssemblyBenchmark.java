@@ -0,0 +1,223 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.model.Build;
+import org.apache.maven.model.Model;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.apache.maven.shared.filtering.DefaultMavenFileFilter;
+import org.apache.maven.shared.filtering.DefaultMavenResourcesFiltering;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembles generated docs trees of different sizes, as a whole and stage by
+ * stage. Run with <code>-prof gc</code> to see the allocation rates. The
+ * largest tree needs a couple of GB of disk space.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MINUTES )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 3 )
+@Fork( 1 )
+public class AssemblyBenchmark
+{
+    @Param( { "1000", "50000", "500000" } )
+    public int files;
+
+    /**
+     * Threads to filter with, 0 means one per processor.
+     */
+    @Param( { "1", "0" } )
+    public int threads;
+
+    private File directory;
+    private File sources;
+    private File target;
+    private MavenProject project;
+    private DefaultMavenResourcesFiltering resourcesFiltering;
+    private DocsManifest manifest;
+
+    @Setup( Level.Trial )
+    public void setUp() throws Exception
+    {
+        directory = File.createTempFile( "assembly-benchmark", "" );
+        directory.delete();
+        sources = new File( directory, "src/docs" );
+        target = new File( directory, "target" );
+        DocsTree.generate( sources, files );
+        target.mkdirs();
+
+        Model model = new Model();
+        model.setGroupId( "org.neo4j" );
+        model.setArtifactId( "docs" );
+        model.setVersion( "1.0" );
+        Build build = new Build();
+        build.setDirectory( target.getAbsolutePath() );
+        model.setBuild( build );
+        project = new MavenProject( model );
+        project.setFile( new File( directory, "pom.xml" ) );
+        resourcesFiltering = new DefaultMavenResourcesFiltering();
+        resourcesFiltering.initialize();
+        resourcesFiltering.enableLogging( new ConsoleLogger( Logger.LEVEL_WARN,
+                "benchmark" ) );
+
+        manifest = new DocsManifest( "benchmark" );
+        for ( Map.Entry<String, File> file : assembler( true ).scanDirectories(
+                Collections.singletonList( new SourceDirectory( sources ) ) )
+                .entrySet() )
+        {
+            manifest.put( DocsManifest.scan( file.getKey(), file.getValue() ) );
+        }
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory( directory );
+    }
+
+    @Benchmark
+    public File assembleFiltered() throws MojoExecutionException
+    {
+        return assembler( true ).doAssembly();
+    }
+
+    @Benchmark
+    public File assembleUnfiltered() throws MojoExecutionException
+    {
+        return assembler( false ).doAssembly();
+    }
+
+    @Benchmark
+    public File createArchive() throws MojoExecutionException
+    {
+        File jar = new File( target, "benchmark.jar" );
+        DocsAssembler assembler = assembler( false );
+        assembler.createArchive( assembler.scanDirectories( Collections.singletonList( new SourceDirectory(
+                sources ) ) ), null, jar );
+        return jar;
+    }
+
+    @Benchmark
+    public File filterResources() throws MojoExecutionException
+    {
+        File filtered = new File( target, "filtered-benchmark" );
+        DocsAssembler assembler = assembler( true );
+        SortedMap<String, File> all = assembler.scanDirectories( Collections.singletonList( new SourceDirectory(
+                sources ) ) );
+        assembler.filterResources( all.keySet(), manifest, filtered );
+        return filtered;
+    }
+
+    private DocsAssembler assembler( final boolean filter )
+    {
+        List<SourceDirectory> directories = Collections.singletonList( new SourceDirectory(
+                sources ) );
+        DocsAssembler assembler = new DocsAssembler( directories, filter,
+                new QuietLog(), null, project, new NoProjectHelper(),
+                resourcesFiltering, new DefaultMavenFileFilter() );
+        assembler.setIncremental( false );
+        assembler.setThreads( threads );
+        return assembler;
+    }
+
+    private static final class QuietLog extends SystemStreamLog
+    {
+        @Override
+        public void info( final CharSequence content )
+        {
+        }
+
+        @Override
+        public void info( final CharSequence content, final Throwable error )
+        {
+        }
+
+        @Override
+        public void info( final Throwable error )
+        {
+        }
+    }
+
+    private static final class NoProjectHelper implements MavenProjectHelper
+    {
+        @Override
+        public void attachArtifact( final MavenProject project,
+                final File artifactFile, final String artifactClassifier )
+        {
+        }
+
+        @Override
+        public void attachArtifact( final MavenProject project,
+                final String artifactType, final File artifactFile )
+        {
+        }
+
+        @Override
+        public void attachArtifact( final MavenProject project,
+                final String artifactType, final String artifactClassifier,
+                final File artifactFile )
+        {
+        }
+
+        @SuppressWarnings( "rawtypes" )
+        @Override
+        public void addResource( final MavenProject project,
+                final String resourceDirectory, final List includes,
+                final List excludes )
+        {
+        }
+
+        @SuppressWarnings( "rawtypes" )
+        @Override
+        public void addTestResource( final MavenProject project,
+                final String resourceDirectory, final List includes,
+                final List excludes )
+        {
+        }
+    }
+}
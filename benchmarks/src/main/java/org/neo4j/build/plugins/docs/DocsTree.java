@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Generates a synthetic docs tree: mostly text files, some of them with filter
+ * expressions, plus images and archives which are never filtered.
+ */
+final class DocsTree
+{
+    private static final int FILES_PER_DIRECTORY = 100;
+    private static final String[] WORDS = { "graph", "node", "relationship",
+            "property", "index", "query", "traversal", "label", "path",
+            "transaction" };
+
+    private DocsTree()
+    {
+    }
+
+    /**
+     * Writes the given number of files below the directory, the same tree for
+     * the same number of files.
+     */
+    static void generate( final File directory, final int files )
+            throws IOException
+    {
+        Random random = new Random( files );
+        for ( int i = 0; i < files; i++ )
+        {
+            File dir = new File( directory, "chapter-" + i
+                                            / FILES_PER_DIRECTORY );
+            if ( !dir.isDirectory() && !dir.mkdirs() )
+            {
+                throw new IOException( "Could not create: " + dir );
+            }
+            int kind = i % 10;
+            if ( kind < 7 )
+            {
+                String extension = kind % 2 == 0 ? ".asciidoc" : ".html";
+                writeText( new File( dir, "section-" + i + extension ),
+                        random, kind == 0 );
+            }
+            else if ( kind < 9 )
+            {
+                writeBinary( new File( dir, "figure-" + i + ".png" ), random,
+                        8 * 1024 );
+            }
+            else
+            {
+                String extension = i % 20 == 9 ? ".zip" : ".gz";
+                writeBinary( new File( dir, "example-" + i + extension ),
+                        random, 16 * 1024 );
+            }
+        }
+    }
+
+    private static void writeText( final File file, final Random random,
+            final boolean tokens ) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for ( int line = 0; line < 40; line++ )
+        {
+            for ( int word = 0; word < 8; word++ )
+            {
+                text.append( WORDS[random.nextInt( WORDS.length )] )
+                        .append( ' ' );
+            }
+            if ( tokens && line % 10 == 0 )
+            {
+                text.append( "${project.version} " );
+            }
+            text.append( '\n' );
+        }
+        write( file, text.toString()
+                .getBytes( "UTF-8" ) );
+    }
+
+    private static void writeBinary( final File file, final Random random,
+            final int size ) throws IOException
+    {
+        byte[] contents = new byte[size];
+        random.nextBytes( contents );
+        write( file, contents );
+    }
+
+    private static void write( final File file, final byte[] contents )
+            throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
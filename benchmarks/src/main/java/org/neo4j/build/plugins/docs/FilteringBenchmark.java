@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the reader based filtering, as done by maven-filtering, with the
+ * byte level filtering of {@link DocsFilter}. Run with <code>-prof gc</code>
+ * to see the allocation rates.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 5 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class FilteringBenchmark
+{
+    /**
+     * Percentage of lines containing an expression.
+     */
+    @Param( { "0", "5", "50" } )
+    public int tokenLines;
+
+    @Param( { "UTF-8", "ISO-8859-1" } )
+    public String encoding;
+
+    private File directory;
+    private File source;
+    private File target;
+    private FileUtils.FilterWrapper[] readerWrappers;
+    private DocsFilter docsFilter;
+
+    @Setup( Level.Trial )
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile( "filtering-benchmark", "" );
+        directory.delete();
+        directory.mkdirs();
+        source = new File( directory, "source.txt" );
+        target = new File( directory, "target.txt" );
+        Writer writer = new OutputStreamWriter( new FileOutputStream( source ),
+                encoding );
+        try
+        {
+            for ( int i = 0; i < 20000; i++ )
+            {
+                writer.write( "Line " + i
+                              + " of the documentation, with some text in it." );
+                if ( i % 100 < tokenLines )
+                {
+                    writer.write( " Version ${project.version}." );
+                }
+                writer.write( '\n' );
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        Model model = new Model();
+        model.setGroupId( "org.neo4j" );
+        model.setArtifactId( "docs" );
+        model.setVersion( "1.0" );
+        FileUtils.FilterWrapper wrapper = new DocsFilterWrapper(
+                new MavenProject( model ), null );
+        readerWrappers = new FileUtils.FilterWrapper[] {
+                new FileUtils.FilterWrapper()
+                {
+                    @Override
+                    public Reader getReader( final Reader reader )
+                    {
+                        return reader;
+                    }
+                }, wrapper };
+        List<FileUtils.FilterWrapper> wrappers = Collections.singletonList( wrapper );
+        docsFilter = new DocsFilter( wrappers, encoding, 64 * 1024 );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException
+    {
+        FileUtils.deleteDirectory( directory );
+    }
+
+    /**
+     * The path used before, through readers and writers.
+     */
+    @Benchmark
+    public long readers() throws IOException
+    {
+        FileUtils.copyFile( source, target, encoding, readerWrappers, true );
+        return target.length();
+    }
+
+    @Benchmark
+    public long bytes() throws IOException
+    {
+        docsFilter.copy( source, target );
+        return target.length();
+    }
+}
@@ -19,12 +19,17 @@
  */
 package org.neo4j.build.plugins.docs;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
+import org.apache.maven.shared.filtering.MavenFileFilter;
 import org.apache.maven.shared.filtering.MavenResourcesFiltering;
 
 /**
@@ -34,17 +39,150 @@ public abstract class AbstractDocsMojo extends AbstractMojo
 {
     /**
      * Directories to include in the assembly. This setting replaces the default
-     * one, which is to include src/docs/ and target/docs/.
+     * one, which is to include src/docs/ and target/docs/. Each directory is
+     * given as a path, or with child elements: directory, includes, excludes,
+     * filter, encoding and prefix.
      * 
      * @parameter
      */
-    protected List<String> sourceDirectories;
+    protected List<SourceDirectory> sourceDirectories;
     /**
      * Set to "true" to activate filtering.
      * 
      * @parameter expression="${filter}" default-value="false"
      */
     protected boolean filter;
+    /**
+     * The encoding of the docs files to filter.
+     * 
+     * @parameter expression="${encoding}" default-value="${project.build.sourceEncoding}"
+     */
+    protected String encoding;
+    /**
+     * Size in bytes of the read buffer used for each file being filtered.
+     * 
+     * @parameter expression="${filterBufferSize}" default-value="65536"
+     */
+    protected int filterBufferSize;
+    /**
+     * Directory to cache filtered files in, which can be shared between
+     * builds of different projects and branches. A file is taken from the
+     * cache when its contents, encoding and the values of the expressions in
+     * it are the same. Not used when not set.
+     * 
+     * @parameter expression="${filterCache}"
+     */
+    protected File filterCache;
+    /**
+     * The size in MB to keep the filter cache below, the least recently used
+     * files are removed first.
+     * 
+     * @parameter expression="${filterCacheSize}" default-value="1024"
+     */
+    protected int filterCacheSize;
+    /**
+     * Set to "true" to resolve the expressions used in the docs once, before
+     * the filtering starts, and filter against those values instead of
+     * looking each expression up in the project model. Expressions without a
+     * value are listed in one warning.
+     * 
+     * @parameter expression="${precomputeValues}" default-value="false"
+     */
+    protected boolean precomputeValues;
+    /**
+     * Size in MB above which docs files are handled as large files: they are
+     * never filtered, are copied by the file system instead of through
+     * buffers, and are stored without compression. Archives with large files
+     * in them are always built like with parallelArchiving. Off ("0") by
+     * default, which handles files of all sizes the same.
+     * 
+     * @parameter expression="${largeFileSize}" default-value="0"
+     */
+    protected int largeFileSize;
+    /**
+     * Set to "false" to filter and archive all docs on every run. By default
+     * only files that changed since the last assembly are filtered, and the
+     * archive is left alone when nothing changed.
+     * 
+     * @parameter expression="${incremental}" default-value="true"
+     */
+    protected boolean incremental;
+    /**
+     * Number of threads to filter docs with. Set to "0" to use one thread per
+     * available processor.
+     * 
+     * @parameter expression="${threads}" default-value="1"
+     */
+    protected int threads;
+    /**
+     * Set to "true" to filter docs while they are added to the archive,
+     * instead of writing them to target/filtered-docs first. Filtering is then
+     * done on a single thread.
+     * 
+     * @parameter expression="${streamFiltering}" default-value="false"
+     */
+    protected boolean streamFiltering;
+    /**
+     * Set to "true" to compress the archive entries on the configured number
+     * of threads, instead of one after the other.
+     * 
+     * @parameter expression="${parallelArchiving}" default-value="false"
+     */
+    protected boolean parallelArchiving;
+    /**
+     * Set to "true" to update the previous docs archive instead of writing it
+     * from scratch: entries which didn't change are copied from it as they
+     * are, and only new and changed files are compressed. An index of the
+     * entries is kept next to the archive, in a file ending with ".index".
+     * 
+     * @parameter expression="${updateArchive}" default-value="false"
+     */
+    protected boolean updateArchive;
+    /**
+     * The format of the docs artifact: jar, zip, tar.gz, tar.zst, or dir for
+     * a plain directory in the build directory. The format is also the type
+     * the artifact is attached with.
+     * 
+     * @parameter expression="${format}" default-value="jar"
+     */
+    protected String format;
+    /**
+     * Where to put an index of the docs files, with the path, size, content
+     * hash, media type and whether it was filtered for each: none, entry for
+     * META-INF/docs-index.tsv in the archive, artifact to attach it with the
+     * docs-index classifier, or both.
+     * 
+     * @parameter expression="${assetIndex}" default-value="none"
+     */
+    protected String assetIndex;
+    /**
+     * Compression level of jar and zip entries, from 0 (no compression) to 9,
+     * or -1 for the default level. Levels set by extension in
+     * compressionLevels take precedence.
+     * 
+     * @parameter expression="${compressionLevel}" default-value="-1"
+     */
+    protected int compressionLevel;
+    /**
+     * Compression levels by file extension, from 0 (no compression) to 9.
+     * Images, pdf, zip and gz files are stored without compression by default.
+     * Used for jar and zip archives whenever they are built by the archiver of
+     * parallelArchiving, which is also the case with outputTimestamp,
+     * updateArchive, a compressionLevel other than -1, the zip format, large
+     * files (see largeFileSize) and the combined jar of docs:aggregate.
+     * 
+     * @parameter
+     */
+    protected Map<String, String> compressionLevels;
+    /**
+     * Timestamp for reproducible output, as seconds since the epoch or in ISO
+     * 8601 format, like 2012-06-01T12:00:00Z. When set, all archive entries
+     * get this modification time and are written in sorted order, so the same
+     * docs always give the same jar.
+     * 
+     * @parameter expression="${outputTimestamp}" default-value="${project.build.outputTimestamp}"
+     */
+    protected String outputTimestamp;
     /**
      * The maven project.
      * 
@@ -62,10 +200,118 @@ public abstract class AbstractDocsMojo extends AbstractMojo
      * @required
      */
     protected MavenResourcesFiltering resourceFiltering;
+    /**
+     * 
+     * @component role="org.apache.maven.shared.filtering.MavenFileFilter" role-hint="default"
+     * @required
+     */
+    protected MavenFileFilter fileFilter;
     /**
      * @parameter default-value="${session}"
      * @readonly
      * @required
      */
     protected MavenSession session;
+
+    protected DocsAssembler createAssembler( final DocsReport report )
+    {
+        return createAssembler( project, sourceDirectories, report );
+    }
+
+    /**
+     * @param directories the directories to assemble, null for the defaults
+     *            of the project.
+     */
+    protected DocsAssembler createAssembler( final MavenProject project,
+            final List<SourceDirectory> directories, final DocsReport report )
+    {
+        DocsAssembler assembler = new DocsAssembler( directories, filter,
+                getLog(), session, project, projectHelper, resourceFiltering,
+                fileFilter );
+        assembler.setIncremental( incremental );
+        assembler.setThreads( threads );
+        assembler.setEncoding( encoding );
+        assembler.setFilterBufferSize( filterBufferSize );
+        assembler.setFilterCache( filterCache,
+                filterCacheSize * 1024L * 1024L );
+        assembler.setPrecomputeValues( precomputeValues );
+        assembler.setLargeFileSize( largeFileSize * 1024L * 1024L );
+        assembler.setStreaming( streamFiltering );
+        assembler.setParallelArchiving( parallelArchiving );
+        assembler.setUpdateArchive( updateArchive );
+        assembler.setCompressionLevels( compressionLevels );
+        assembler.setFormat( format );
+        assembler.setAssetIndex( assetIndex );
+        assembler.setCompressionLevel( compressionLevel );
+        assembler.setOutputTimestamp( outputTimestamp );
+        assembler.setReport( report );
+        return assembler;
+    }
+
+    /**
+     * @return the docs directories as configured, or the default ones,
+     *         whether they exist or not.
+     */
+    protected List<File> getDocsDirectories()
+    {
+        List<File> directories = new ArrayList<File>();
+        if ( sourceDirectories == null )
+        {
+            directories.add( new File( new File( project.getBasedir(), "src" ),
+                    "docs" ) );
+            directories.add( new File( project.getBuild()
+                    .getDirectory(), "docs" ) );
+        }
+        else
+        {
+            for ( SourceDirectory dir : sourceDirectories )
+            {
+                File directory = dir.getDirectory();
+                if ( directory != null )
+                {
+                    directories.add( directory.isAbsolute() ? directory
+                            : new File( project.getBasedir(),
+                                    directory.getPath() ) );
+                }
+            }
+        }
+        return directories;
+    }
+
+    protected DocsReport createReport( final String goal )
+    {
+        return new DocsReport( goal, project.getId() );
+    }
+
+    /**
+     * Writes the report to the build directory, and logs a summary of it.
+     */
+    protected void writeReport( final DocsReport report )
+    {
+        writeReport( project, report );
+    }
+
+    /**
+     * Writes the report to the build directory of the given project, and logs
+     * a summary of it.
+     */
+    protected void writeReport( final MavenProject project,
+            final DocsReport report )
+    {
+        getLog().info( report.summary() );
+        File file = new File( project.getBuild()
+                .getDirectory(), DocsReport.FILENAME );
+        try
+        {
+            if ( file.getParentFile()
+                    .isDirectory() )
+            {
+                report.write( file );
+            }
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Could not write the docs report: " + e.getMessage() );
+        }
+    }
 }
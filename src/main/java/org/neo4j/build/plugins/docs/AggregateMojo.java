@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * Goal which assembles the docs of all modules in the build in one go, on a
+ * pool of threads shared by the modules. Each module gets its docs jar, and
+ * a combined docs jar with the docs of each module under its artifact id is
+ * attached to the project the goal runs in. Modules which share their
+ * artifact id with another module are put under their group id and artifact
+ * id instead.
+ * 
+ * @goal aggregate
+ * @aggregator
+ * @threadSafe true
+ */
+public class AggregateMojo extends AbstractDocsMojo
+{
+    static final String AGGREGATE_CLASSIFIER = "docs-aggregate";
+
+    /**
+     * Set to "true" to skip execution.
+     * 
+     * @parameter expression="${skipdocs}" default-value="false"
+     */
+    protected boolean skipdocs;
+    /**
+     * Set to "false" to not attach the docs jar of each module to the module.
+     * The jars are still built, for the combined jar.
+     * 
+     * @parameter expression="${moduleJars}" default-value="true"
+     */
+    protected boolean moduleJars;
+    /**
+     * Set to "false" to not build the combined docs jar.
+     * 
+     * @parameter expression="${combinedJar}" default-value="true"
+     */
+    protected boolean combinedJar;
+
+    @Override
+    public void execute() throws MojoExecutionException
+    {
+        if ( skipdocs )
+        {
+            getLog().info( "Docs-plugin execution skipped." );
+            return;
+        }
+        List<MavenProject> modules = session.getProjects();
+        int threadCount = threads > 0 ? threads : Runtime.getRuntime()
+                .availableProcessors();
+        int poolSize = Math.max( 1, Math.min( threadCount, modules.size() ) );
+        int moduleThreads = Math.max( 1, threadCount / modules.size() );
+        getLog().info( "Assembling docs of " + modules.size()
+                       + " modules on " + poolSize + " thread(s)." );
+
+        List<String> prefixes = prefixes( modules );
+        SortedMap<String, File> archives = new TreeMap<String, File>();
+        List<String> errors = new ArrayList<String>();
+        ExecutorService executor = Executors.newFixedThreadPool( poolSize );
+        try
+        {
+            List<Future<File>> futures = new ArrayList<Future<File>>();
+            for ( MavenProject module : modules )
+            {
+                futures.add( executor.submit( assembly( module, moduleThreads ) ) );
+            }
+            for ( int i = 0; i < modules.size(); i++ )
+            {
+                MavenProject module = modules.get( i );
+                try
+                {
+                    File archive = futures.get( i )
+                            .get();
+                    if ( archive != null )
+                    {
+                        archives.put( prefixes.get( i ), archive );
+                    }
+                }
+                catch ( ExecutionException e )
+                {
+                    errors.add( module.getId() + ": " + message( e ) );
+                }
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread()
+                    .interrupt();
+            throw new MojoExecutionException( "Interrupted.", e );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if ( !errors.isEmpty() )
+        {
+            StringBuilder message = new StringBuilder();
+            message.append( "The docs of " )
+                    .append( errors.size() )
+                    .append( " module(s) could not be assembled:" );
+            for ( String error : errors )
+            {
+                getLog().error( error );
+                message.append( "\n  " )
+                        .append( error );
+            }
+            throw new MojoExecutionException( message.toString() );
+        }
+
+        if ( combinedJar && !archives.isEmpty() )
+        {
+            combine( archives, threadCount );
+        }
+    }
+
+    /**
+     * @return the directory in the combined archive for each of the modules,
+     *         the artifact id, or the group id and artifact id where several
+     *         modules have the same artifact id.
+     */
+    static List<String> prefixes( final List<MavenProject> modules )
+    {
+        Set<String> artifactIds = new HashSet<String>();
+        Set<String> shared = new HashSet<String>();
+        for ( MavenProject module : modules )
+        {
+            if ( !artifactIds.add( module.getArtifactId() ) )
+            {
+                shared.add( module.getArtifactId() );
+            }
+        }
+        List<String> prefixes = new ArrayList<String>();
+        for ( MavenProject module : modules )
+        {
+            String prefix = module.getArtifactId() + "/";
+            if ( shared.contains( module.getArtifactId() ) )
+            {
+                prefix = module.getGroupId() + "/" + prefix;
+            }
+            prefixes.add( prefix );
+        }
+        return prefixes;
+    }
+
+    private static String message( final ExecutionException e )
+    {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        return cause.getMessage() == null ? cause.toString()
+                : cause.getMessage();
+    }
+
+    /**
+     * Assembles the docs of one module; the configured source directories are
+     * only used for the project the goal runs in, other modules use their
+     * default directories.
+     */
+    private Callable<File> assembly( final MavenProject module,
+            final int moduleThreads )
+    {
+        return new Callable<File>()
+        {
+            @Override
+            public File call() throws MojoExecutionException
+            {
+                DocsReport report = new DocsReport( "aggregate", module.getId() );
+                DocsAssembler assembler = createAssembler( module,
+                        module == project ? sourceDirectories : null, report );
+                assembler.setThreads( moduleThreads );
+                assembler.setAttach( moduleJars );
+                if ( combinedJar && !assembler.isZipFormat() )
+                {
+                    // the module archives are read back to be combined
+                    assembler.setFormat( DocsAssembler.TYPE );
+                }
+                File archive = assembler.doAssembly();
+                writeReport( module, report );
+                return archive;
+            }
+        };
+    }
+
+    private void combine( final SortedMap<String, File> archives,
+            final int threadCount ) throws MojoExecutionException
+    {
+        DocsReport report = createReport( "aggregate" );
+        DocsAssembler assembler = createAssembler( report );
+        assembler.setThreads( threadCount );
+        assembler.setParallelArchiving( true );
+        String type = assembler.getFormat();
+        File destination = new File( project.getBuild()
+                .getDirectory(), project.getArtifactId() + "-"
+                                 + project.getVersion() + "-"
+                                 + AGGREGATE_CLASSIFIER
+                                 + ( DocsAssembler.DIRECTORY.equals( type ) ? ""
+                                         : "." + type ) );
+        if ( !destination.getParentFile()
+                .exists()
+             && !destination.getParentFile()
+                     .mkdirs() )
+        {
+            throw new MojoExecutionException( "Could not create: "
+                                              + destination.getParent() );
+        }
+        assembler.combineArchives( archives, destination );
+        projectHelper.attachArtifact( project, type, AGGREGATE_CLASSIFIER,
+                destination );
+        writeReport( report );
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What went into an archive: the content hash, modification time and
+ * compression level of each entry, plus the fingerprint of the assembly. Kept
+ * next to the archive, so the next assembly can copy the entries that didn't
+ * change from it instead of compressing them again.
+ */
+final class ArchiveIndex
+{
+    static final String SUFFIX = ".index";
+
+    private static final String HEADER = "# docs-maven-plugin archive index 1";
+    private static final String FINGERPRINT = "fingerprint ";
+    private static final String ARCHIVE = "archive ";
+    private static final String ENCODING = "UTF-8";
+
+    private static final class Entry
+    {
+        final String hash;
+        final long time;
+        final int level;
+
+        Entry( final String hash, final long time, final int level )
+        {
+            this.hash = hash;
+            this.time = time;
+            this.level = level;
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    ArchiveIndex( final String fingerprint )
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    void put( final String name, final String hash, final long time,
+            final int level )
+    {
+        entries.put( name, new Entry( hash, time, level ) );
+    }
+
+    /**
+     * @return true if the entry was archived from the same contents, with the
+     *         same time and compression level.
+     */
+    boolean isSame( final String name, final String hash, final long time,
+            final int level )
+    {
+        Entry entry = entries.get( name );
+        return entry != null && entry.hash.equals( hash ) && entry.time == time
+               && entry.level == level;
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    static File fileFor( final File archive )
+    {
+        return new File( archive.getParentFile(), archive.getName() + SUFFIX );
+    }
+
+    /**
+     * @return the index of the archive, or null if there is none, or if the
+     *         archive was changed after the index was written.
+     */
+    static ArchiveIndex read( final File archive )
+    {
+        File file = fileFor( archive );
+        if ( !file.isFile() || !archive.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( file ), ENCODING ) );
+            try
+            {
+                if ( !HEADER.equals( reader.readLine() ) )
+                {
+                    return null;
+                }
+                String line = reader.readLine();
+                if ( line == null || !line.startsWith( FINGERPRINT ) )
+                {
+                    return null;
+                }
+                ArchiveIndex index = new ArchiveIndex(
+                        line.substring( FINGERPRINT.length() ) );
+                line = reader.readLine();
+                if ( line == null
+                     || !line.equals( ARCHIVE + stat( archive ) ) )
+                {
+                    return null;
+                }
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    String[] fields = line.split( "\t", 4 );
+                    if ( fields.length != 4 )
+                    {
+                        return null;
+                    }
+                    index.put( fields[3], fields[0],
+                            Long.parseLong( fields[1] ),
+                            Integer.parseInt( fields[2] ) );
+                }
+                return index;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        catch ( RuntimeException e )
+        {
+            // corrupt index, the archive gets written from scratch
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index for the archive, which must not change afterwards.
+     */
+    void write( final File archive ) throws IOException
+    {
+        Writer writer = new BufferedWriter( new OutputStreamWriter(
+                new FileOutputStream( fileFor( archive ) ), ENCODING ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.write( '\n' );
+            writer.write( FINGERPRINT );
+            writer.write( fingerprint );
+            writer.write( '\n' );
+            writer.write( ARCHIVE );
+            writer.write( stat( archive ) );
+            writer.write( '\n' );
+            for ( Map.Entry<String, Entry> entry : entries.entrySet() )
+            {
+                writer.write( entry.getValue().hash );
+                writer.write( '\t' );
+                writer.write( String.valueOf( entry.getValue().time ) );
+                writer.write( '\t' );
+                writer.write( String.valueOf( entry.getValue().level ) );
+                writer.write( '\t' );
+                writer.write( entry.getKey() );
+                writer.write( '\n' );
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    static void delete( final File archive )
+    {
+        DocsManifest.delete( fileFor( archive ) );
+    }
+
+    private static String stat( final File archive )
+    {
+        return archive.length() + " " + archive.lastModified();
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.components.io.resources.AbstractPlexusIoResource;
+
+/**
+ * An entry of an already built docs archive, read when the archiver gets to
+ * it. Entries of the same archive can be read from several threads.
+ */
+final class ArchivedEntryResource extends AbstractPlexusIoResource
+{
+    private final ZipFile archive;
+    private final ZipEntry entry;
+
+    ArchivedEntryResource( final ZipFile archive, final ZipEntry entry,
+            final String name )
+    {
+        this.archive = archive;
+        this.entry = entry;
+        setName( name );
+        setSize( entry.getSize() );
+        setLastModified( entry.getTime() );
+        setExisting( true );
+        setFile( true );
+        setDirectory( false );
+    }
+
+    @Override
+    public InputStream getContents() throws IOException
+    {
+        return archive.getInputStream( entry );
+    }
+
+    @Override
+    public URL getURL() throws IOException
+    {
+        return null;
+    }
+}
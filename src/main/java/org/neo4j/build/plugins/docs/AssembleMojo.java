@@ -47,8 +47,9 @@ public class AssembleMojo extends AbstractDocsMojo
         }
         else
         {
-            new DocsAssembler( sourceDirectories, filter, getLog(),
-                    session, project, projectHelper, resourceFiltering ).doAssembly();
+            DocsReport report = createReport( "assemble" );
+            createAssembler( report ).doAssembly();
+            writeReport( report );
         }
     }
 
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * A compact list of the assembled docs, one line per file with its content
+ * hash, size, media type, whether it was filtered and its path, so tools can
+ * compare two versions of the docs without unpacking them. It is made from
+ * the assembly manifest, which means the files aren't read again: the hash
+ * and size are those of the source file, and for filtered files the hash
+ * also covers everything the filtering depends on.
+ */
+final class AssetIndex
+{
+    static final String NONE = "none";
+    static final String ENTRY = "entry";
+    static final String ARTIFACT = "artifact";
+    static final String BOTH = "both";
+    static final List<String> MODES = Arrays.asList( NONE, ENTRY, ARTIFACT,
+            BOTH );
+
+    static final String FILENAME = "docs-index.tsv";
+    static final String ENTRY_NAME = "META-INF/" + FILENAME;
+    static final String CLASSIFIER = "docs-index";
+    static final String TYPE = "tsv";
+
+    private static final String HEADER = "# docs-maven-plugin index 1";
+    private static final String COLUMNS = "# hash\tsize\ttype\tfiltered\tpath";
+    private static final String ENCODING = "UTF-8";
+    private static final String DEFAULT_MEDIA_TYPE = "application/octet-stream";
+    private static final Map<String, String> MEDIA_TYPES = new HashMap<String, String>();
+
+    static
+    {
+        String[] types = { "html", "text/html", "htm", "text/html", "xhtml",
+                "application/xhtml+xml", "css", "text/css", "js",
+                "application/javascript", "json", "application/json", "xml",
+                "application/xml", "txt", "text/plain", "csv", "text/csv",
+                "adoc", "text/asciidoc", "asciidoc", "text/asciidoc", "md",
+                "text/markdown", "svg", "image/svg+xml", "png", "image/png",
+                "jpg", "image/jpeg", "jpeg", "image/jpeg", "gif", "image/gif",
+                "ico", "image/vnd.microsoft.icon", "tif", "image/tiff",
+                "tiff", "image/tiff", "pdf", "application/pdf", "zip",
+                "application/zip", "gz", "application/gzip", "woff",
+                "font/woff", "woff2", "font/woff2", "ttf", "font/ttf", "otf",
+                "font/otf" };
+        for ( int i = 0; i < types.length; i += 2 )
+        {
+            MEDIA_TYPES.put( types[i], types[i + 1] );
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, String> lines = new TreeMap<String, String>();
+
+    /**
+     * @param fingerprint sums up everything the filtering depends on besides
+     *            the file contents and encoding.
+     */
+    AssetIndex( final String fingerprint )
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * @param filterEncoding the encoding the file is filtered with, or null if
+     *            it is archived as it is.
+     */
+    void add( final DocsManifest.Entry entry, final String filterEncoding )
+    {
+        boolean filtered = filterEncoding != null;
+        String hash = filtered ? DocsManifest.filteredHash( entry.hash,
+                filterEncoding, fingerprint ) : entry.hash;
+        lines.put( entry.path, hash + '\t' + entry.size + '\t'
+                               + mediaType( entry.path ) + '\t' + filtered
+                               + '\t' + entry.path );
+    }
+
+    int size()
+    {
+        return lines.size();
+    }
+
+    /**
+     * Only touches the file when the index changed, and then replaces it in
+     * one step, as other builds may be reading it.
+     */
+    void write( final File file ) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        text.append( HEADER )
+                .append( '\n' )
+                .append( COLUMNS )
+                .append( '\n' );
+        for ( String line : lines.values() )
+        {
+            text.append( line )
+                    .append( '\n' );
+        }
+        String contents = text.toString();
+        if ( file.isFile()
+             && contents.equals( FileUtils.fileRead( file, ENCODING ) ) )
+        {
+            return;
+        }
+        File temp = File.createTempFile( file.getName() + ".", ".tmp",
+                file.getAbsoluteFile()
+                        .getParentFile() );
+        try
+        {
+            Writer writer = new BufferedWriter( new OutputStreamWriter(
+                    new FileOutputStream( temp ), ENCODING ) );
+            try
+            {
+                writer.write( contents );
+            }
+            finally
+            {
+                writer.close();
+            }
+            PublishLock.replace( temp, file );
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return the media type by the file extension.
+     */
+    static String mediaType( final String path )
+    {
+        int dot = path.lastIndexOf( '.' );
+        if ( dot != -1 && dot > path.lastIndexOf( '/' ) )
+        {
+            String type = MEDIA_TYPES.get( path.substring( dot + 1 )
+                    .toLowerCase( Locale.ENGLISH ) );
+            if ( type != null )
+            {
+                return type;
+            }
+        }
+        String type = URLConnection.guessContentTypeFromName( path );
+        return type == null ? DEFAULT_MEDIA_TYPE : type;
+    }
+}
@@ -0,0 +1,805 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.archiver.Archiver;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.archiver.jar.JarArchiver;
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.codehaus.plexus.components.io.resources.PlexusIoResource;
+
+/**
+ * The archive stage of the assembly: writes the docs to a jar, zip or tar
+ * file, or copies them to a directory, and puts the result in place. Each
+ * archive is built in a file of its own first, so other executions using the
+ * same build directory never see a partly written one.
+ */
+final class DocsArchiving
+{
+    private static final List<String> STORED_FILE_EXTENSIONS = Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "gz", "zip", "pdf", "tiff", "tif" );
+    private static final List<String> FORMATS = Arrays.asList(
+            DocsAssembler.TYPE, DocsAssembler.ZIP, DocsAssembler.TAR_GZ,
+            DocsAssembler.TAR_ZST, DocsAssembler.DIRECTORY );
+
+    private final Log log;
+    private final DocsFiltering filtering;
+    private int threadCount = 1;
+    private boolean parallelArchiving;
+    private boolean updateArchive;
+    private String format = DocsAssembler.TYPE;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Map<String, String> compressionLevels;
+    private String outputTimestamp;
+
+    DocsArchiving( final DocsFiltering filtering, final Log log )
+    {
+        this.filtering = filtering;
+        this.log = log;
+    }
+
+    void setThreadCount( final int threadCount )
+    {
+        this.threadCount = threadCount;
+    }
+
+    void setParallelArchiving( final boolean parallelArchiving )
+    {
+        this.parallelArchiving = parallelArchiving;
+    }
+
+    void setUpdateArchive( final boolean updateArchive )
+    {
+        this.updateArchive = updateArchive;
+    }
+
+    void setFormat( final String format )
+    {
+        this.format = format == null || format.length() == 0 ? DocsAssembler.TYPE
+                : format;
+    }
+
+    /**
+     * @return the format of the docs artifact, which is also its type.
+     */
+    String getFormat() throws MojoExecutionException
+    {
+        if ( !FORMATS.contains( format ) )
+        {
+            String message = "Unknown docs format '" + format
+                             + "', expected one of: " + FORMATS;
+            log.error( message );
+            throw new MojoExecutionException( message );
+        }
+        return format;
+    }
+
+    /**
+     * @return true if the docs artifact is a jar or zip file.
+     */
+    boolean isZipFormat() throws MojoExecutionException
+    {
+        return DocsAssembler.TYPE.equals( getFormat() )
+               || DocsAssembler.ZIP.equals( getFormat() );
+    }
+
+    void setCompressionLevel( final int compressionLevel )
+    {
+        this.compressionLevel = compressionLevel;
+    }
+
+    void setCompressionLevels( final Map<String, String> compressionLevels )
+    {
+        this.compressionLevels = compressionLevels;
+    }
+
+    void setOutputTimestamp( final String outputTimestamp )
+    {
+        this.outputTimestamp = outputTimestamp;
+    }
+
+    /**
+     * Archives the given files by path, as found when scanning the source
+     * directories, without walking the directories again.
+     * 
+     * @param manifest the content hashes of the files, used to update the
+     *            previous archive; null to always write it from scratch.
+     */
+    void createArchive( final SortedMap<String, File> files,
+            final DocsManifest manifest, final File destFile,
+            final DocsReport report ) throws MojoExecutionException
+    {
+        log.info( "Creating docs archive." );
+        DocsReport.Stage stage = report.start( "archive" );
+        try
+        {
+            createArchiveFrom( files, manifest, destFile, stage );
+        }
+        finally
+        {
+            stage.stop();
+        }
+        recordArchive( stage, destFile );
+    }
+
+    private void createArchiveFrom( final SortedMap<String, File> files,
+            final DocsManifest manifest, final File destFile,
+            final DocsReport.Stage stage ) throws MojoExecutionException
+    {
+        if ( isParallelArchive( files.values() ) )
+        {
+            SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+            for ( Map.Entry<String, File> file : files.entrySet() )
+            {
+                resources.put( file.getKey(), new PlexusIoFileResource(
+                        file.getValue(), file.getKey() ) );
+            }
+            createParallelArchive( resources, manifest, destFile, stage );
+            return;
+        }
+        File built = newTempFile( destFile );
+        Archiver archiver = new JarArchiver();
+        archiver.setDestFile( built );
+
+        try
+        {
+            for ( Map.Entry<String, File> file : files.entrySet() )
+            {
+                archiver.addFile( file.getValue(), file.getKey() );
+            }
+            archiver.createArchive();
+            publishArchive( built, destFile );
+        }
+        catch ( ArchiverException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+        finally
+        {
+            deleteTempArchive( built );
+        }
+    }
+
+    /**
+     * Builds one archive from already built docs archives, with the entries of
+     * each under its own prefix. The entries are compressed again on the
+     * configured number of threads.
+     * 
+     * @param archives the archives by the prefix to put their entries under
+     */
+    void combineArchives( final SortedMap<String, File> archives,
+            final File destFile, final DocsReport report )
+            throws MojoExecutionException
+    {
+        log.info( "Combining " + archives.size() + " docs archives." );
+        DocsReport.Stage stage = report.start( "archive" );
+        List<ZipFile> zips = new ArrayList<ZipFile>();
+        try
+        {
+            SortedMap<String, ArchivedEntryResource> resources = new TreeMap<String, ArchivedEntryResource>();
+            for ( Map.Entry<String, File> archive : archives.entrySet() )
+            {
+                ZipFile zip = new ZipFile( archive.getValue() );
+                zips.add( zip );
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while ( entries.hasMoreElements() )
+                {
+                    ZipEntry entry = entries.nextElement();
+                    if ( entry.isDirectory()
+                         || entry.getName()
+                                 .startsWith( ParallelArchiver.MANIFEST_DIRECTORY ) )
+                    {
+                        continue;
+                    }
+                    String name = archive.getKey() + entry.getName();
+                    resources.put( name, new ArchivedEntryResource( zip,
+                            entry, name ) );
+                }
+            }
+            stage.put( "archives", archives.size() );
+            createParallelArchive( resources, null, destFile, stage );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Could not read docs archive.", e );
+        }
+        finally
+        {
+            for ( ZipFile zip : zips )
+            {
+                try
+                {
+                    zip.close();
+                }
+                catch ( IOException e )
+                {
+                    log.warn( "Could not close: " + zip.getName() );
+                }
+            }
+            stage.stop();
+        }
+        recordArchive( stage, destFile );
+    }
+
+    /**
+     * Filters the files while they are added to the archive, without writing
+     * them to disk first.
+     */
+    void createStreamingArchive( final SortedMap<String, File> files,
+            final DocsManifest manifest, final File destFile,
+            final DocsReport report ) throws MojoExecutionException
+    {
+        log.info( "Creating docs archive, filtering " + files.size()
+                  + " files on the fly." );
+        DocsReport.Stage stage = report.start( "archive" );
+        try
+        {
+            createStreamingArchiveFrom( files, manifest, destFile, stage );
+        }
+        finally
+        {
+            stage.stop();
+        }
+        recordArchive( stage, destFile );
+    }
+
+    private void createStreamingArchiveFrom(
+            final SortedMap<String, File> files, final DocsManifest manifest,
+            final File destFile, final DocsReport.Stage stage )
+            throws MojoExecutionException
+    {
+        Map<String, DocsFilter> filters = filtering.createFilters( files.keySet(),
+                manifest, stage );
+        if ( isParallelArchive( files.values() ) )
+        {
+            SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+            for ( Map.Entry<String, File> file : files.entrySet() )
+            {
+                File source = file.getValue();
+                resources.put( file.getKey(), filtering.needsFiltering( file.getKey(),
+                        source, manifest.get( file.getKey() ) ) ? new FilteredFileResource(
+                        source, file.getKey(), filtering.getFilter( filters,
+                                file.getKey() ) )
+                        : new PlexusIoFileResource( source, file.getKey() ) );
+            }
+            createParallelArchive( resources, manifest, destFile, stage );
+            return;
+        }
+        File built = newTempFile( destFile );
+        Archiver archiver = new JarArchiver();
+        archiver.setDestFile( built );
+
+        try
+        {
+            for ( Map.Entry<String, File> file : files.entrySet() )
+            {
+                File source = file.getValue();
+                if ( filtering.needsFiltering( file.getKey(), source,
+                        manifest.get( file.getKey() ) ) )
+                {
+                    archiver.addResource( new FilteredFileResource( source,
+                            file.getKey(), filtering.getFilter( filters, file.getKey() ) ),
+                            file.getKey(), -1 );
+                }
+                else
+                {
+                    archiver.addFile( source, file.getKey() );
+                }
+            }
+            archiver.createArchive();
+            publishArchive( built, destFile );
+        }
+        catch ( ArchiverException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+        finally
+        {
+            deleteTempArchive( built );
+        }
+    }
+
+    /**
+     * Adds the entry counts and sizes of the archive to the report; this only
+     * reads the central directory.
+     */
+    private void recordArchive( final DocsReport.Stage stage, final File archive )
+    {
+        if ( !archive.isFile() )
+        {
+            // the dir format
+            return;
+        }
+        if ( !DocsAssembler.TYPE.equals( format )
+             && !DocsAssembler.ZIP.equals( format ) )
+        {
+            stage.put( "archiveBytes", archive.length() );
+            return;
+        }
+        long entries = 0;
+        long size = 0;
+        long compressedSize = 0;
+        try
+        {
+            ZipFile zip = new ZipFile( archive );
+            try
+            {
+                Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while ( zipEntries.hasMoreElements() )
+                {
+                    ZipEntry entry = zipEntries.nextElement();
+                    entries++;
+                    size += entry.getSize();
+                    compressedSize += entry.getCompressedSize();
+                }
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.warn( "Could not read the archive for the report: "
+                      + e.getMessage() );
+            return;
+        }
+        stage.put( "entries", entries );
+        stage.put( "bytes", size );
+        stage.put( "compressedBytes", compressedSize );
+        stage.put( "archiveBytes", archive.length() );
+    }
+
+    /**
+     * The parallel archiver is also used for reproducible archives, for
+     * updating the previous archive and for other compression levels and
+     * formats, as the JarArchiver does none of these.
+     */
+    boolean isParallelArchive() throws MojoExecutionException
+    {
+        return parallelArchiving || updateArchive || getTimestamp() != -1
+               || compressionLevel != Deflater.DEFAULT_COMPRESSION
+               || !DocsAssembler.TYPE.equals( getFormat() );
+    }
+
+    /**
+     * Large files are only stored as they are by the parallel archiver, so
+     * it is used whenever there are any.
+     */
+    private boolean isParallelArchive( final Collection<File> files )
+            throws MojoExecutionException
+    {
+        if ( isParallelArchive() )
+        {
+            return true;
+        }
+        for ( File file : files )
+        {
+            if ( filtering.isLarge( file ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a new file next to the destination, for this execution to
+     *         build the archive in.
+     */
+    private static File newTempFile( final File destFile )
+            throws MojoExecutionException
+    {
+        try
+        {
+            return File.createTempFile( destFile.getName() + ".", ".tmp",
+                    destFile.getAbsoluteFile()
+                            .getParentFile() );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not create a file next to: "
+                                              + destFile.getAbsolutePath(), e );
+        }
+    }
+
+    private static void deleteTempArchive( final File built )
+    {
+        built.delete();
+        ArchiveIndex.delete( built );
+    }
+
+    /**
+     * Moves the archive built by this execution into place, together with its
+     * index if it has one.
+     */
+    private void publishArchive( final File built, final File destFile )
+            throws IOException
+    {
+        PublishLock lock = PublishLock.acquire( destFile.getAbsoluteFile()
+                .getParentFile() );
+        try
+        {
+            PublishLock.replace( built, destFile );
+            File index = ArchiveIndex.fileFor( built );
+            if ( index.isFile() )
+            {
+                PublishLock.replace( index, ArchiveIndex.fileFor( destFile ) );
+            }
+            else
+            {
+                ArchiveIndex.delete( destFile );
+            }
+        }
+        finally
+        {
+            lock.close();
+        }
+    }
+
+    /**
+     * @param manifest the content hashes of the entries, used to update the
+     *            previous archive; null to write it from scratch.
+     */
+    private void createParallelArchive(
+            final SortedMap<String, ? extends PlexusIoResource> resources,
+            final DocsManifest manifest, final File destFile,
+            final DocsReport.Stage stage ) throws MojoExecutionException
+    {
+        if ( DocsAssembler.DIRECTORY.equals( getFormat() ) )
+        {
+            // the directory is brought up to date in place, which is the
+            // publishing for this format
+            try
+            {
+                PublishLock lock = PublishLock.acquire( destFile.getAbsoluteFile()
+                        .getParentFile() );
+                try
+                {
+                    copyToDirectory( resources, destFile, stage );
+                }
+                finally
+                {
+                    lock.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                log.error( e );
+                throw new MojoExecutionException( "Could not lock: "
+                                                  + destFile.getParent(), e );
+            }
+            return;
+        }
+        File built = newTempFile( destFile );
+        try
+        {
+            createParallelArchive( resources, manifest, built, destFile, stage );
+            publishArchive( built, destFile );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+        finally
+        {
+            deleteTempArchive( built );
+        }
+    }
+
+    /**
+     * @param built the file to write the archive to.
+     * @param destFile where the archive is published, the previous one is
+     *            updated from there.
+     */
+    private void createParallelArchive(
+            final SortedMap<String, ? extends PlexusIoResource> resources,
+            final DocsManifest manifest, final File built, final File destFile,
+            final DocsReport.Stage stage ) throws MojoExecutionException
+    {
+        if ( !isZipFormat() )
+        {
+            createTarArchive( resources, built );
+            return;
+        }
+        int threads = parallelArchiving ? threadCount : 1;
+        long timestamp = getTimestamp();
+        log.info( "Compressing " + resources.size() + " docs files on "
+                  + threads + " thread(s)."
+                  + ( timestamp == -1 ? "" : " Using timestamp: "
+                                             + outputTimestamp ) );
+        ParallelArchiver archiver = new ParallelArchiver( threads,
+                getCompressionLevels(), getCompressionLevel() );
+        archiver.setTimestamp( timestamp );
+        archiver.setJar( DocsAssembler.TYPE.equals( getFormat() ) );
+        archiver.setPrevious( destFile );
+        long largeFileSize = filtering.getLargeFileSize();
+        archiver.setStoreAbove( largeFileSize > 0 ? largeFileSize : -1 );
+        if ( updateArchive && manifest != null )
+        {
+            // filtered entries change with the values as well as the source
+            archiver.setUpdate( filtering.outputHashes( manifest ),
+                    manifest.getOutputFingerprint() );
+        }
+        try
+        {
+            archiver.createArchive( resources, built );
+            if ( updateArchive && manifest != null )
+            {
+                log.info( "Copied " + archiver.getReused()
+                          + " unchanged entries from the previous archive." );
+                stage.put( "reused", archiver.getReused() );
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+    }
+
+    private void createTarArchive(
+            final SortedMap<String, ? extends PlexusIoResource> resources,
+            final File destFile ) throws MojoExecutionException
+    {
+        long timestamp = getTimestamp();
+        int workers = parallelArchiving ? threadCount : 0;
+        log.info( "Writing " + resources.size() + " docs files to a "
+                  + getFormat() + " archive." );
+        try
+        {
+            TarWriter writer = new TarWriter( destFile,
+                    DocsAssembler.TAR_ZST.equals( getFormat() ) ? TarWriter.ZSTD
+                            : TarWriter.GZIP, workers );
+            try
+            {
+                for ( Map.Entry<String, ? extends PlexusIoResource> entry : resources.entrySet() )
+                {
+                    PlexusIoResource resource = entry.getValue();
+                    InputStream in = resource.getContents();
+                    try
+                    {
+                        writer.writeEntry( entry.getKey(),
+                                timestamp == -1 ? resource.getLastModified()
+                                        : timestamp, in, resource.getSize() );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Error building archive.", e );
+        }
+    }
+
+    /**
+     * Brings the directory in line with the resources: files are copied when
+     * their size or modification time differ, filtered ones always, and files
+     * which aren't among the resources are removed.
+     */
+    private void copyToDirectory(
+            final SortedMap<String, ? extends PlexusIoResource> resources,
+            final File directory, final DocsReport.Stage stage )
+            throws MojoExecutionException
+    {
+        log.info( "Copying " + resources.size() + " docs files to: "
+                  + directory );
+        try
+        {
+            long copied = 0;
+            for ( Map.Entry<String, ? extends PlexusIoResource> entry : resources.entrySet() )
+            {
+                File target = new File( directory, entry.getKey() );
+                PlexusIoResource resource = entry.getValue();
+                if ( resource instanceof PlexusIoFileResource
+                     && !( resource instanceof FilteredFileResource ) )
+                {
+                    File source = ( (PlexusIoFileResource) resource ).getFile();
+                    if ( target.length() == source.length()
+                         && target.lastModified() == source.lastModified()
+                         && target.isFile() )
+                    {
+                        continue;
+                    }
+                    mkdirs( target.getParentFile() );
+                    DocsFiltering.copyFile( source, target );
+                    target.setLastModified( source.lastModified() );
+                }
+                else
+                {
+                    mkdirs( target.getParentFile() );
+                    InputStream in = resource.getContents();
+                    try
+                    {
+                        Files.copy( in, target.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING );
+                    }
+                    finally
+                    {
+                        in.close();
+                    }
+                }
+                copied++;
+            }
+            stage.put( "copied", copied );
+            stage.put( "removed", removeOthers( directory, "",
+                    resources.keySet() ) );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Could not copy docs to: "
+                                              + directory, e );
+        }
+    }
+
+    /**
+     * @return the number of files removed.
+     */
+    private static long removeOthers( final File directory,
+            final String prefix, final Set<String> keep ) throws IOException
+    {
+        long removed = 0;
+        File[] files = directory.listFiles();
+        if ( files == null )
+        {
+            return 0;
+        }
+        for ( File file : files )
+        {
+            String path = prefix + file.getName();
+            if ( file.isDirectory() )
+            {
+                removed += removeOthers( file, path + "/", keep );
+                String[] left = file.list();
+                if ( left != null && left.length == 0 )
+                {
+                    file.delete();
+                }
+            }
+            else if ( !keep.contains( path ) )
+            {
+                if ( !file.delete() )
+                {
+                    throw new IOException( "Could not delete: "
+                                           + file.getAbsolutePath() );
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static void mkdirs( final File directory ) throws IOException
+    {
+        if ( !directory.exists() && !directory.mkdirs()
+             && !directory.isDirectory() )
+        {
+            throw new IOException( "Could not create: "
+                                   + directory.getAbsolutePath() );
+        }
+    }
+
+    int getCompressionLevel() throws MojoExecutionException
+    {
+        if ( compressionLevel < -1 || compressionLevel > 9 )
+        {
+            String message = "Compression level must be 0-9 or -1, not: "
+                             + compressionLevel;
+            log.error( message );
+            throw new MojoExecutionException( message );
+        }
+        return compressionLevel;
+    }
+
+    long getTimestamp() throws MojoExecutionException
+    {
+        try
+        {
+            return ParallelArchiver.parseTimestamp( outputTimestamp );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            log.error( e.getMessage() );
+            throw new MojoExecutionException( e.getMessage(), e );
+        }
+    }
+
+    Map<String, Integer> getCompressionLevels()
+            throws MojoExecutionException
+    {
+        Map<String, Integer> levels = new HashMap<String, Integer>();
+        for ( String extension : STORED_FILE_EXTENSIONS )
+        {
+            levels.put( extension, 0 );
+        }
+        if ( compressionLevels != null )
+        {
+            for ( Map.Entry<String, String> level : compressionLevels.entrySet() )
+            {
+                int value;
+                try
+                {
+                    value = Integer.parseInt( level.getValue()
+                            .trim() );
+                }
+                catch ( NumberFormatException e )
+                {
+                    value = -1;
+                }
+                if ( value < 0 || value > 9 )
+                {
+                    throw new MojoExecutionException(
+                            "Compression level must be 0-9, not '"
+                                    + level.getValue() + "' for: "
+                                    + level.getKey() );
+                }
+                levels.put( level.getKey()
+                        .toLowerCase( Locale.ENGLISH ), value );
+            }
+        }
+        return levels;
+    }
+}
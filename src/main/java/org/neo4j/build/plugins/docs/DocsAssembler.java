@@ -21,25 +21,30 @@ package org.neo4j.build.plugins.docs;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
 
 import org.apache.maven.execution.MavenSession;
-import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.project.MavenProject;
 import org.apache.maven.project.MavenProjectHelper;
-import org.apache.maven.shared.filtering.MavenFilteringException;
-import org.apache.maven.shared.filtering.MavenResourcesExecution;
+import org.apache.maven.shared.filtering.MavenFileFilter;
 import org.apache.maven.shared.filtering.MavenResourcesFiltering;
-import org.codehaus.plexus.archiver.Archiver;
-import org.codehaus.plexus.archiver.ArchiverException;
-import org.codehaus.plexus.archiver.jar.JarArchiver;
-import org.codehaus.plexus.archiver.util.DefaultFileSet;
 import org.codehaus.plexus.util.FileUtils;
 
 final class DocsAssembler
@@ -47,93 +52,586 @@ final class DocsAssembler
     static final String CLASSIFIER = "docs";
 
     static final String TYPE = "jar";
+    static final String ZIP = "zip";
+    static final String TAR_GZ = "tar.gz";
+    static final String TAR_ZST = "tar.zst";
+    static final String DIRECTORY = "dir";
 
     private static final String DOCS_DIRNAME = "docs";
-    private static final List<String> NON_FILTERED_FILE_EXTENSIONS;
+    private static final String FILTERED_DOCS_DIRNAME = "filtered-docs";
+    private static final String MANIFEST_FILENAME = "docs-assembly.manifest";
+    private static final SortedSet<String> NO_EXPRESSIONS = Collections.unmodifiableSortedSet( new TreeSet<String>() );
 
     private final Log log;
-    private final List<String> sourceDirectories;
+    private final List<SourceDirectory> sourceDirectories;
     private final boolean filter;
+    /**
+     * The source directory each scanned path was found in, which decides how
+     * the file is filtered.
+     */
+    private final Map<String, SourceDirectory> origins = new HashMap<String, SourceDirectory>();
     private final MavenProject project;
     private final MavenProjectHelper projectHelper;
-    private final MavenResourcesFiltering resourceFiltering;
     private final MavenSession session;
+    private final DocsFiltering filterStage;
+    private final DocsArchiving archiveStage;
+    /**
+     * Tells the files of this execution apart from those of others which use
+     * the same build directory.
+     */
+    private final String executionId = UUID.randomUUID()
+            .toString();
+    private boolean incremental = true;
+    private int threads = 1;
+    private boolean streaming;
+    private String assetIndex = AssetIndex.NONE;
+    private DocsReport report;
+    private boolean attach = true;
 
-    static
-    {
-        // these are always non-filtered anyhow:
-        // jpg, jpeg, gif, bmp, png
-        // as defined in
-        // org.apache.maven.shared.filtering.DefaultMavenResourcesFiltering
-
-        NON_FILTERED_FILE_EXTENSIONS = Arrays.asList( "tiff", "tif", "pdf",
-                "zip", "gz" );
-    }
-
-    public DocsAssembler( final List<String> sourceDirectories,
+    public DocsAssembler( final List<SourceDirectory> sourceDirectories,
             final boolean filter, final Log log, MavenSession session,
             final MavenProject project, final MavenProjectHelper projectHelper,
-            MavenResourcesFiltering resourceFiltering )
+            MavenResourcesFiltering resourceFiltering,
+            MavenFileFilter fileFilter )
     {
         this.sourceDirectories = sourceDirectories;
         this.filter = filter;
         this.project = project;
         this.log = log;
         this.projectHelper = projectHelper;
-        this.resourceFiltering = resourceFiltering;
         this.session = session;
+        this.filterStage = new DocsFiltering( origins, filter, log, session,
+                project, resourceFiltering, fileFilter );
+        this.archiveStage = new DocsArchiving( filterStage, log );
+    }
+
+    /**
+     * When set to false, every file is filtered and archived on each run, and
+     * no manifest of the assembly is kept.
+     */
+    public void setIncremental( final boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    /**
+     * The number of threads to filter files with, 0 means one per available
+     * processor.
+     */
+    public void setThreads( final int threads )
+    {
+        this.threads = threads;
+        filterStage.setThreadCount( getThreadCount() );
+        archiveStage.setThreadCount( getThreadCount() );
+    }
+
+    /**
+     * When set, filtered files are written straight into the archive instead
+     * of to the filtered-docs directory.
+     */
+    public void setStreaming( final boolean streaming )
+    {
+        this.streaming = streaming;
+    }
+
+    /**
+     * When set, the archive entries are compressed on the configured number of
+     * threads.
+     */
+    public void setParallelArchiving( final boolean parallelArchiving )
+    {
+        archiveStage.setParallelArchiving( parallelArchiving );
+    }
+
+    /**
+     * When set, the archive is updated in place: entries which didn't change
+     * since the last assembly are copied from the previous archive instead of
+     * being compressed again.
+     */
+    public void setUpdateArchive( final boolean updateArchive )
+    {
+        archiveStage.setUpdateArchive( updateArchive );
+    }
+
+    /**
+     * The format of the docs artifact: jar, zip, tar.gz, tar.zst or dir for a
+     * plain directory.
+     */
+    public void setFormat( final String format )
+    {
+        archiveStage.setFormat( format );
+    }
+
+    /**
+     * @return the format of the docs artifact, which is also its type.
+     */
+    String getFormat() throws MojoExecutionException
+    {
+        return archiveStage.getFormat();
+    }
+
+    /**
+     * @return true if the docs artifact is a jar or zip file.
+     */
+    boolean isZipFormat() throws MojoExecutionException
+    {
+        return archiveStage.isZipFormat();
+    }
+
+    /**
+     * Compression level from 0 (stored) to 9 for the jar and zip entries
+     * whose extension has no level of its own, -1 for the default level.
+     */
+    public void setCompressionLevel( final int compressionLevel )
+    {
+        archiveStage.setCompressionLevel( compressionLevel );
+    }
+
+    /**
+     * Compression levels from 0 (stored) to 9 by file extension, these are
+     * added to the defaults which store already compressed formats. Used for
+     * every jar or zip built by the parallel archiver, see
+     * {@link DocsArchiving#isParallelArchive(Collection)}.
+     */
+    public void setCompressionLevels( final Map<String, String> compressionLevels )
+    {
+        archiveStage.setCompressionLevels( compressionLevels );
+    }
+
+    /**
+     * When set, the archive is reproducible: entries are sorted and all get
+     * this modification time, given as seconds since the epoch or in ISO 8601
+     * format.
+     */
+    public void setOutputTimestamp( final String outputTimestamp )
+    {
+        archiveStage.setOutputTimestamp( outputTimestamp );
+    }
+
+    /**
+     * The encoding of the files to filter, UTF-8 if not set.
+     */
+    public void setEncoding( final String encoding )
+    {
+        filterStage.setEncoding( encoding );
+    }
+
+    /**
+     * Size in bytes of the buffers used to read the files to filter.
+     */
+    public void setFilterBufferSize( final int filterBufferSize )
+    {
+        filterStage.setFilterBufferSize( filterBufferSize );
+    }
+
+    /**
+     * A directory to keep filtered files in, shared with other builds, so
+     * files with the same contents and expression values are only filtered
+     * once. Null to not use a cache.
+     * 
+     * @param size the size in bytes to keep the cache below.
+     */
+    public void setFilterCache( final File directory, final long size )
+    {
+        filterStage.setFilterCache( directory, size );
+    }
+
+    /**
+     * When set to true, the expressions in the files to filter are resolved
+     * once before the filtering starts, and the files are filtered against
+     * the resulting values instead of the project model.
+     */
+    public void setPrecomputeValues( final boolean precomputeValues )
+    {
+        filterStage.setPrecomputeValues( precomputeValues );
+    }
+
+    /**
+     * Files larger than this are never filtered, they are copied by the file
+     * system and stored in the archive without compression.
+     * 
+     * @param size the size in bytes, 0 to handle files of all sizes the same.
+     */
+    public void setLargeFileSize( final long size )
+    {
+        filterStage.setLargeFileSize( size );
+    }
+
+    /**
+     * Where to put the index of the assembled files: none, entry for an entry
+     * in the archive, artifact for an attached artifact, or both.
+     */
+    public void setAssetIndex( final String assetIndex )
+    {
+        this.assetIndex = assetIndex == null || assetIndex.length() == 0 ? AssetIndex.NONE
+                : assetIndex;
+    }
+
+    String getAssetIndex() throws MojoExecutionException
+    {
+        if ( !AssetIndex.MODES.contains( assetIndex ) )
+        {
+            String message = "Unknown asset index setting '" + assetIndex
+                             + "', expected one of: " + AssetIndex.MODES;
+            log.error( message );
+            throw new MojoExecutionException( message );
+        }
+        return assetIndex;
+    }
+
+    /**
+     * The report to record the time spent in each stage in.
+     */
+    public void setReport( final DocsReport report )
+    {
+        this.report = report;
+    }
+
+    /**
+     * When set to false, the docs archive is built but not attached to the
+     * project.
+     */
+    public void setAttach( final boolean attach )
+    {
+        this.attach = attach;
     }
 
     public File doAssembly() throws MojoExecutionException
     {
-        log.info( "Filtering is: " + ( filter ? "on" : "off" ) );
-        List<File> dirs = getDirectories( sourceDirectories );
+        DocsReport.Stage discovery = getReport().start( "discovery" );
+        List<SourceDirectory> dirs = getDirectories( sourceDirectories );
+        discovery.put( "directories", dirs.size() );
         if ( dirs.size() == 0 )
         {
+            discovery.stop();
             log.warn( "There are no docs to assemble." );
             return null;
         }
+        final SortedMap<String, File> files = scanDirectories( dirs );
+        discovery.put( "files", files.size() );
+        discovery.stop();
+        final boolean filtering = filterStage.isFiltering( dirs );
+        log.info( "Filtering is: " + ( filtering ? "on" : "off" ) );
 
-        File destinationFile;
-        if ( filter )
+        final File targetDirectory = getTargetDirectory();
+        final File manifestFile = new File( targetDirectory, MANIFEST_FILENAME );
+        final DocsManifest previous = incremental ? DocsManifest.read( manifestFile )
+                : null;
+
+        DocsReport.Stage changes = getReport().start( "changes" );
+        final DocsManifest current = new DocsManifest( fingerprint( dirs ) );
+        // only the values of the expressions the docs use are compared, so
+        // unrelated properties, like those of another goal, don't matter
+        final boolean fullRun = previous == null
+                                || !previous.getFingerprint()
+                                        .equals( current.getFingerprint() )
+                                || !previous.getValues()
+                                        .equals( valuesFingerprint( previous.getExpressions() ) );
+        final Set<String> changed = new TreeSet<String>();
+        long hashed = 0;
+        for ( Map.Entry<String, File> file : files.entrySet() )
         {
-            File target = new File( new File( project.getBuild()
-                    .getDirectory() ), "filtered-docs" );
-            if ( target.exists() )
+            DocsManifest.Entry entry = fullRun ? null : previous.get( file.getKey() );
+            DocsManifest.Entry updated = updateEntry( file.getKey(),
+                    file.getValue(), entry );
+            current.put( updated );
+            if ( updated != entry )
             {
-                try
+                hashed++;
+            }
+            if ( entry == null || !entry.source.equals( updated.source )
+                 || !entry.hash.equals( updated.hash ) )
+            {
+                changed.add( file.getKey() );
+            }
+        }
+        final List<String> removed = new ArrayList<String>();
+        if ( !fullRun )
+        {
+            for ( DocsManifest.Entry entry : previous.entries() )
+            {
+                if ( !files.containsKey( entry.path ) )
                 {
-                    FileUtils.cleanDirectory( target );
+                    removed.add( entry.path );
                 }
-                catch ( IOException e )
+            }
+        }
+        if ( !fullRun )
+        {
+            log.info( "Changed docs files: " + changed.size() + ", removed: "
+                      + removed.size() + "." );
+        }
+        if ( filtering )
+        {
+            SortedSet<String> expressions = fullRun ? filterStage.findExpressions(
+                    files.keySet(), current ) : filterStage.addExpressions(
+                    previous.getExpressions(), changed, current );
+            current.setValues( valuesFingerprint( expressions ), expressions );
+        }
+        else
+        {
+            current.setValues( valuesFingerprint( NO_EXPRESSIONS ),
+                    NO_EXPRESSIONS );
+        }
+        changes.put( "fullRun", fullRun );
+        changes.put( "hashed", hashed );
+        changes.put( "changed", changed.size() );
+        changes.put( "removed", removed.size() );
+
+        final File destinationFile = getDestinationFile();
+        boolean archiveUpToDate = !fullRun && changed.isEmpty()
+                                  && removed.isEmpty()
+                                  && previous.isArchiveUnchanged( destinationFile );
+        if ( archiveUpToDate
+             && isUpToDate( files, filtering, destinationFile, targetDirectory ) )
+        {
+            // nothing was read but the manifest, and nothing is written
+            changes.put( "upToDate", true );
+            changes.stop();
+            log.info( "Docs are up to date: " + destinationFile );
+            attach( destinationFile, new File( targetDirectory,
+                    AssetIndex.FILENAME ) );
+            return destinationFile;
+        }
+        changes.stop();
+        // don't trust the old manifest until the new one has been written
+        DocsManifest.delete( manifestFile );
+
+        final File indexFile = writeAssetIndex( files, current, dirs,
+                targetDirectory );
+        if ( filtering && streaming )
+        {
+            if ( !archiveUpToDate )
+            {
+                archiveStage.createStreamingArchive( withAssetIndex( files,
+                        indexFile ), current, destinationFile, getReport() );
+            }
+        }
+        else if ( filtering )
+        {
+            File target = new File( targetDirectory, FILTERED_DOCS_DIRNAME );
+            Set<String> filtered = new TreeSet<String>();
+            for ( String path : files.keySet() )
+            {
+                if ( origins.get( path )
+                        .isFiltered( filter ) )
                 {
-                    log.error( e );
-                    throw new MojoExecutionException(
-                            "Could not remove old filtered files.", e );
+                    filtered.add( path );
+                }
+            }
+            DocsReport.Stage clean = getReport().start( "clean" );
+            // the files are filtered into a directory of this execution's
+            // own; from scratch it replaces the old one at the end, otherwise
+            // only the changed files are moved over
+            boolean fromScratch = fullRun || !target.exists();
+            if ( fromScratch )
+            {
+                clean.put( "cleaned", true );
+                changed.clear();
+                changed.addAll( filtered );
+                archiveUpToDate = false;
+            }
+            else
+            {
+                clean.put( "removed", removed.size() );
+                changed.retainAll( filtered );
+                for ( String path : filtered )
+                {
+                    if ( !changed.contains( path )
+                         && !new File( target, path ).exists() )
+                    {
+                        changed.add( path );
+                        archiveUpToDate = false;
+                    }
+                }
+            }
+            File staging = createStagingDirectory( targetDirectory );
+            clean.stop();
+            try
+            {
+                filterStage.filterResources( changed, current, staging,
+                        getReport() );
+                if ( !archiveUpToDate )
+                {
+                    // files of directories without filtering are archived
+                    // from where they are
+                    SortedMap<String, File> outputs = new TreeMap<String, File>();
+                    for ( Map.Entry<String, File> file : files.entrySet() )
+                    {
+                        String path = file.getKey();
+                        outputs.put( path, !filtered.contains( path ) ? file.getValue()
+                                : new File( changed.contains( path ) ? staging
+                                        : target, path ) );
+                    }
+                    createArchive( withAssetIndex( outputs, indexFile ),
+                            current, destinationFile );
+                }
+                if ( fromScratch )
+                {
+                    publishDirectory( staging, target );
+                }
+                else
+                {
+                    publishFiles( staging, target, changed, removed );
+                }
+            }
+            finally
+            {
+                if ( staging.exists() )
+                {
+                    deleteDirectory( staging );
                 }
             }
-            filterResources( dirs, target );
-            destinationFile = createArchive( Collections.singletonList( target ) );
         }
-        else
+        else if ( !archiveUpToDate )
+        {
+            createArchive( withAssetIndex( files, indexFile ), current,
+                    destinationFile );
+        }
+        if ( archiveUpToDate )
         {
-            destinationFile = createArchive( dirs );
+            log.info( "Docs archive is up to date." );
+            DocsReport.Stage archive = getReport().start( "archive" );
+            archive.put( "upToDate", true );
+            archive.stop();
         }
 
-        projectHelper.attachArtifact( project, TYPE, CLASSIFIER,
-                destinationFile );
+        if ( incremental )
+        {
+            current.setArchive( destinationFile );
+            try
+            {
+                PublishLock lock = PublishLock.acquire( targetDirectory );
+                try
+                {
+                    current.write( manifestFile );
+                }
+                finally
+                {
+                    lock.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Could not write the docs manifest, the next build will do a full assembly: "
+                          + e.getMessage() );
+            }
+        }
 
+        attach( destinationFile, indexFile );
         return destinationFile;
     }
 
-    private File createArchive( final List<File> directories )
+    private boolean isIndexAttached()
             throws MojoExecutionException
     {
-        log.info( "Creating docs archive." );
+        return AssetIndex.ARTIFACT.equals( getAssetIndex() )
+               || AssetIndex.BOTH.equals( getAssetIndex() );
+    }
 
-        final String filename = project.getArtifactId() + "-"
-                                + project.getVersion() + "-" + CLASSIFIER + "."
-                                + TYPE;
+    private void attach( final File destinationFile, final File indexFile )
+            throws MojoExecutionException
+    {
+        if ( attach )
+        {
+            projectHelper.attachArtifact( project, getFormat(), CLASSIFIER,
+                    destinationFile );
+            if ( isIndexAttached() )
+            {
+                projectHelper.attachArtifact( project, AssetIndex.TYPE,
+                        AssetIndex.CLASSIFIER, indexFile );
+            }
+        }
+    }
+
+    /**
+     * The check which lets a goal reuse the docs another goal assembled just
+     * before, like docs:install after docs:assemble. Only called when the
+     * sources and the archive are the same as in the manifest; looks at the
+     * other outputs without reading them.
+     */
+    private boolean isUpToDate( final SortedMap<String, File> files,
+            final boolean filtering, final File destinationFile,
+            final File targetDirectory ) throws MojoExecutionException
+    {
+        if ( isIndexAttached()
+             && !new File( targetDirectory, AssetIndex.FILENAME ).isFile() )
+        {
+            return false;
+        }
+        if ( filtering && !streaming )
+        {
+            File target = new File( targetDirectory, FILTERED_DOCS_DIRNAME );
+            for ( String path : files.keySet() )
+            {
+                if ( origins.get( path )
+                        .isFiltered( filter )
+                     && !new File( target, path ).isFile() )
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the index of the assembled files, from what the change detection
+     * found out about them.
+     * 
+     * @return the index file, or null if no index is wanted.
+     */
+    private File writeAssetIndex( final SortedMap<String, File> files,
+            final DocsManifest manifest, final List<SourceDirectory> dirs,
+            final File targetDirectory ) throws MojoExecutionException
+    {
+        if ( AssetIndex.NONE.equals( getAssetIndex() ) )
+        {
+            return null;
+        }
+        AssetIndex index = new AssetIndex( filterFingerprint( dirs,
+                manifest.getValues() ) );
+        for ( Map.Entry<String, File> file : files.entrySet() )
+        {
+            DocsManifest.Entry entry = manifest.get( file.getKey() );
+            index.add( entry, filterStage.needsFiltering( file.getKey(),
+                    file.getValue(), entry ) ? filterStage.getEncoding( origins.get( file.getKey() ) )
+                    : null );
+        }
+        File indexFile = new File( targetDirectory, AssetIndex.FILENAME );
+        try
+        {
+            index.write( indexFile );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Could not write: "
+                                              + indexFile.getAbsolutePath(), e );
+        }
+        return indexFile;
+    }
+
+    /**
+     * @return the files to archive, with the asset index if it goes into the
+     *         archive.
+     */
+    private SortedMap<String, File> withAssetIndex(
+            final SortedMap<String, File> files, final File indexFile )
+            throws MojoExecutionException
+    {
+        if ( !AssetIndex.ENTRY.equals( getAssetIndex() )
+             && !AssetIndex.BOTH.equals( getAssetIndex() ) )
+        {
+            return files;
+        }
+        SortedMap<String, File> archived = new TreeMap<String, File>( files );
+        archived.put( AssetIndex.ENTRY_NAME, indexFile );
+        return archived;
+    }
+
+    private File getTargetDirectory() throws MojoExecutionException
+    {
         File targetDirectory = new File( project.getBuild()
                 .getDirectory() );
         if ( !targetDirectory.exists() && !targetDirectory.mkdir() )
@@ -141,114 +639,397 @@ final class DocsAssembler
             throw new MojoExecutionException(
                     "Could not create: " + targetDirectory.getAbsolutePath() );
         }
-        final File destFile = new File( project.getBuild()
+        return targetDirectory;
+    }
+
+    /**
+     * @return the archive, or the directory for the dir format.
+     */
+    private File getDestinationFile() throws MojoExecutionException
+    {
+        final String filename = project.getArtifactId() + "-"
+                                + project.getVersion() + "-" + CLASSIFIER
+                                + ( DIRECTORY.equals( getFormat() ) ? ""
+                                        : "." + getFormat() );
+        return new File( project.getBuild()
                 .getDirectory(), filename );
-        if ( destFile.exists() && !destFile.delete() )
+    }
+
+    /**
+     * Archives the given files by path, see
+     * {@link DocsArchiving#createArchive(SortedMap, DocsManifest, File, DocsReport)}.
+     */
+    void createArchive( final SortedMap<String, File> files,
+            final DocsManifest manifest, final File destFile )
+            throws MojoExecutionException
+    {
+        archiveStage.createArchive( files, manifest, destFile, getReport() );
+    }
+
+    /**
+     * Builds one archive from already built docs archives, see
+     * {@link DocsArchiving#combineArchives(SortedMap, File, DocsReport)}.
+     */
+    void combineArchives( final SortedMap<String, File> archives,
+            final File destFile ) throws MojoExecutionException
+    {
+        archiveStage.combineArchives( archives, destFile, getReport() );
+    }
+
+    /**
+     * Filters the given files into the target directory, see
+     * {@link DocsFiltering#filterResources(Collection, DocsManifest, File, DocsReport)}.
+     */
+    void filterResources( final Collection<String> paths,
+            final DocsManifest manifest, final File targetDir )
+            throws MojoExecutionException
+    {
+        filterStage.filterResources( paths, manifest, targetDir, getReport() );
+    }
+
+    private DocsReport getReport()
+    {
+        if ( report == null )
         {
-            throw new MojoExecutionException( "Could not delete: "
-                                              + destFile.getAbsolutePath() );
+            report = new DocsReport( "assemble", project.getId() );
         }
+        return report;
+    }
 
-        Archiver archiver = new JarArchiver();
-        archiver.setDestFile( destFile );
+    private int getThreadCount()
+    {
+        return threads > 0 ? threads : Runtime.getRuntime()
+                .availableProcessors();
+    }
 
+    private static File createStagingDirectory( final File targetDirectory )
+            throws MojoExecutionException
+    {
         try
         {
-            for ( File dir : directories )
+            return Files.createTempDirectory( targetDirectory.toPath(),
+                    FILTERED_DOCS_DIRNAME + "-" )
+                    .toFile();
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not create a directory in: "
+                                              + targetDirectory.getAbsolutePath(), e );
+        }
+    }
+
+    /**
+     * Replaces the directory with the one filtered by this execution. The old
+     * one is renamed out of the way and only deleted after the lock is given
+     * up.
+     */
+    private void publishDirectory( final File staging, final File target )
+            throws MojoExecutionException
+    {
+        File old = new File( target.getParentFile(), target.getName() + "-"
+                                                     + executionId + ".old" );
+        try
+        {
+            PublishLock lock = PublishLock.acquire( target.getParentFile() );
+            try
+            {
+                if ( target.exists() )
+                {
+                    Files.move( target.toPath(), old.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE );
+                }
+                Files.move( staging.toPath(), target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE );
+            }
+            finally
             {
-                DefaultFileSet fileSet = new DefaultFileSet();
-                fileSet.setDirectory( dir );
-                archiver.addFileSet( fileSet );
+                lock.close();
             }
-            archiver.createArchive();
         }
-        catch ( ArchiverException e )
+        catch ( IOException e )
         {
             log.error( e );
-            throw new MojoExecutionException( "Error building archive.", e );
+            throw new MojoExecutionException( "Could not replace: "
+                                              + target.getAbsolutePath(), e );
+        }
+        if ( old.exists() )
+        {
+            deleteDirectory( old );
+        }
+    }
+
+    /**
+     * Moves the files filtered by this execution over the ones in the target
+     * directory, and deletes those whose source is gone, so other executions
+     * only ever see complete files there.
+     */
+    private void publishFiles( final File staging, final File target,
+            final Collection<String> changed, final List<String> removed )
+            throws MojoExecutionException
+    {
+        try
+        {
+            PublishLock lock = PublishLock.acquire( target.getParentFile() );
+            try
+            {
+                for ( String path : changed )
+                {
+                    File destination = new File( target, path );
+                    File parent = destination.getParentFile();
+                    if ( !parent.isDirectory() && !parent.mkdirs() )
+                    {
+                        throw new IOException( "Could not create: "
+                                               + parent.getAbsolutePath() );
+                    }
+                    PublishLock.replace( new File( staging, path ),
+                            destination );
+                }
+                removeOutputs( target, removed );
+            }
+            finally
+            {
+                lock.close();
+            }
         }
         catch ( IOException e )
         {
             log.error( e );
-            throw new MojoExecutionException( "Error building archive.", e );
+            throw new MojoExecutionException( "Could not replace files in: "
+                                              + target.getAbsolutePath(), e );
         }
-        return destFile;
     }
 
-    private void filterResources( final List<File> directories, File targetDir )
+    private void deleteDirectory( final File directory )
     {
-        log.info( "Filter target: " + targetDir );
-        int baseDirLength = project.getBasedir()
-                .getAbsolutePath()
-                .length() + 1;
-        List<Resource> resources = new ArrayList<Resource>();
-        for ( File dir : directories )
+        try
         {
-            Resource resource = new Resource();
-            resource.setDirectory( dir.getAbsolutePath()
-                    .substring( baseDirLength ) );
-            resource.setFiltering( true );
-            log.info( "Adding source directory: " + dir );
-            resources.add( resource );
+            FileUtils.deleteDirectory( directory );
         }
+        catch ( IOException e )
+        {
+            log.warn( "Could not delete: " + directory.getAbsolutePath() );
+        }
+    }
+
+    /**
+     * Deletes filtered files whose source is gone.
+     */
+    private void removeOutputs( final File targetDir,
+            final List<String> removed )
+    {
+        for ( String path : removed )
+        {
+            File output = new File( targetDir, path );
+            if ( output.exists() && !output.delete() )
+            {
+                log.warn( "Could not delete: " + output.getAbsolutePath() );
+            }
+        }
+    }
+
+    /**
+     * Only reads the file contents when size or modification time differ
+     * from the previous assembly.
+     */
+    private DocsManifest.Entry updateEntry( final String path,
+            final File source, final DocsManifest.Entry previous )
+            throws MojoExecutionException
+    {
+        if ( previous != null && previous.isSameStat( source ) )
+        {
+            return previous;
+        }
+        try
+        {
+            return DocsManifest.scan( path, source );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Could not read: "
+                                              + source.getAbsolutePath(), e );
+        }
+    }
+
+    /**
+     * Files in later directories replace files with the same path in earlier
+     * ones, the same way the filtering does. Sub directories are walked on
+     * the configured number of threads.
+     */
+    SortedMap<String, File> scanDirectories(
+            final List<SourceDirectory> directories )
+            throws MojoExecutionException
+    {
+        try
+        {
+            List<SortedMap<String, File>> found = DocsFileIndex.scan(
+                    directories, getThreadCount() );
+            SortedMap<String, File> files = new TreeMap<String, File>();
+            origins.clear();
+            for ( int i = 0; i < directories.size(); i++ )
+            {
+                for ( Map.Entry<String, File> file : found.get( i )
+                        .entrySet() )
+                {
+                    files.put( file.getKey(), file.getValue() );
+                    origins.put( file.getKey(), directories.get( i ) );
+                }
+            }
+            return files;
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException( "Could not scan the docs directories.",
+                    e );
+        }
+    }
 
-        MavenResourcesExecution resourcesExecution = new MavenResourcesExecution(
-                resources, targetDir, project, "UTF-8",
-                Collections.emptyList(), NON_FILTERED_FILE_EXTENSIONS, session );
-        resourcesExecution.setResourcesBaseDirectory( project.getBasedir() );
-        resourcesExecution.addFilterWrapper( new FileUtils.FilterWrapper()
+    /**
+     * Everything besides the source files that has an effect on the assembled
+     * docs. When this changes, everything is assembled from scratch.
+     */
+    private String fingerprint( final List<SourceDirectory> directories )
+            throws MojoExecutionException
+    {
+        MessageDigest digest = DocsManifest.newDigest();
+        DocsManifest.update( digest, "filter", String.valueOf( filter ) );
+        DocsManifest.update( digest, "timestamp",
+                String.valueOf( archiveStage.getTimestamp() ) );
+        DocsManifest.update( digest, "format", getFormat() );
+        DocsManifest.update( digest, "largeFileSize",
+                String.valueOf( filterStage.getLargeFileSize() ) );
+        DocsManifest.update( digest, "assetIndex", getAssetIndex() );
+        if ( archiveStage.isParallelArchive() )
+        {
+            DocsManifest.update( digest, "compressionLevels",
+                    new TreeMap<String, Integer>(
+                            archiveStage.getCompressionLevels() ).toString() );
+            DocsManifest.update( digest, "compressionLevel",
+                    String.valueOf( archiveStage.getCompressionLevel() ) );
+        }
+        for ( SourceDirectory dir : directories )
+        {
+            DocsManifest.update( digest, "directory", dir.getDirectory()
+                    .getAbsolutePath() );
+            DocsManifest.update( digest, "includes", dir.getIncludes()
+                    .toString() );
+            DocsManifest.update( digest, "excludes", dir.getExcludes()
+                    .toString() );
+            DocsManifest.update( digest, "prefix", dir.getPrefix() );
+            DocsManifest.update( digest, "filter",
+                    String.valueOf( dir.isFiltered( filter ) ) );
+            DocsManifest.update( digest, "encoding",
+                    filterStage.getEncoding( dir ) );
+        }
+        DocsManifest.update( digest, "filtering",
+                filterFingerprint( directories, null ) );
+        return DocsManifest.toHex( digest.digest() );
+    }
+
+    /**
+     * Everything besides the source file and its encoding that has an effect
+     * on a filtered file.
+     * 
+     * @param values the hash of the values of the expressions, null to leave
+     *            them out.
+     */
+    private String filterFingerprint( final List<SourceDirectory> directories,
+            final String values )
+    {
+        if ( !filterStage.isFiltering( directories ) )
         {
-            @Override
-            public Reader getReader( final Reader reader )
+            return DocsManifest.toHex( DocsManifest.newDigest()
+                    .digest() );
+        }
+        return filterStage.fingerprint( values );
+    }
+
+    /**
+     * Resolves the expressions, without reading any files.
+     * 
+     * @param expressions the expressions used in the docs, or null to hash
+     *            all properties instead.
+     */
+    private String valuesFingerprint( final SortedSet<String> expressions )
+            throws MojoExecutionException
+    {
+        MessageDigest digest = DocsManifest.newDigest();
+        if ( expressions == null )
+        {
+            Properties properties = DocsFilterWrapper.filterProperties(
+                    project, session );
+            for ( String key : new TreeSet<String>(
+                    properties.stringPropertyNames() ) )
             {
-                return reader;
+                DocsManifest.update( digest, key, properties.getProperty( key ) );
             }
-        } );
+            return DocsManifest.toHex( digest.digest() );
+        }
+        FileUtils.FilterWrapper wrapper = new DocsFilterWrapper( project,
+                session );
         try
         {
-            resourceFiltering.filterResources( resourcesExecution );
+            for ( String expression : expressions )
+            {
+                DocsManifest.update( digest, expression, ValueTable.filter( expression,
+                        wrapper ) );
+            }
         }
-        catch ( MavenFilteringException e )
+        catch ( IOException e )
         {
             log.error( e );
+            throw new MojoExecutionException(
+                    "Could not resolve the expressions in the docs.", e );
         }
+        return DocsManifest.toHex( digest.digest() );
     }
 
-    private List<File> getDirectories( final List<String> sourceDirectories )
+    private List<SourceDirectory> getDirectories(
+            final List<SourceDirectory> sourceDirectories )
             throws MojoExecutionException
     {
-        List<File> directories = new ArrayList<File>();
+        List<SourceDirectory> directories = new ArrayList<SourceDirectory>();
         if ( sourceDirectories == null )
         {
             log.info( "No directories configured, using defaults." );
             // add default directories
             // ./src/docs and ./target/docs
-            addDirectory( new File( new File( project.getBasedir(), "src" ),
-                    DOCS_DIRNAME ), directories );
-            addDirectory( new File( project.getBuild()
-                    .getDirectory(), DOCS_DIRNAME ), directories );
+            addDirectory( new SourceDirectory( new File( new File(
+                    project.getBasedir(), "src" ), DOCS_DIRNAME ) ),
+                    directories );
+            addDirectory( new SourceDirectory( new File( project.getBuild()
+                    .getDirectory(), DOCS_DIRNAME ) ), directories );
         }
         else
         {
-            for ( String dir : sourceDirectories )
+            for ( SourceDirectory dir : sourceDirectories )
             {
-                addDirectory( new File( dir ), directories );
+                if ( dir.getDirectory() == null )
+                {
+                    throw new MojoExecutionException(
+                            "A source directory needs a directory: " + dir );
+                }
+                addDirectory( dir, directories );
             }
         }
         return directories;
     }
 
-    private void addDirectory( final File dir, final List<File> directories )
+    private void addDirectory( final SourceDirectory configured,
+            final List<SourceDirectory> directories )
             throws MojoExecutionException
     {
-        if ( !dir.exists() )
+        SourceDirectory sourceDirectory = configured;
+        File dir = sourceDirectory.getDirectory();
+        if ( !dir.isAbsolute() )
         {
-            log.info( "Skipping, does not exist: " + dir );
-            return;
+            dir = new File( project.getBasedir(), dir.getPath() );
+            // leave the configuration as it was given
+            sourceDirectory = configured.withDirectory( dir );
         }
-        if ( dir.listFiles().length == 0 )
+        if ( !dir.exists() )
         {
-            log.info( "Skipping, is empty: " + dir );
+            log.info( "Skipping, does not exist: " + dir );
             return;
         }
         if ( !dir.isDirectory() )
@@ -261,6 +1042,19 @@ final class DocsAssembler
             throw new MojoExecutionException( "Can not read directory: "
                                               + dir.getAbsolutePath() );
         }
-        directories.add( dir );
+        try
+        {
+            if ( DocsFileIndex.isEmpty( dir ) )
+            {
+                log.info( "Skipping, is empty: " + dir );
+                return;
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Can not read directory: "
+                                              + dir.getAbsolutePath(), e );
+        }
+        directories.add( sourceDirectory );
     }
 }
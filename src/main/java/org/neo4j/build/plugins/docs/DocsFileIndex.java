@@ -0,0 +1,334 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Finds the docs files in a list of directories, using the same default
+ * excludes as the plexus DirectoryScanner, and the include and exclude
+ * patterns of each directory. Large trees can be walked on several threads.
+ * The result is used by both the filtering and the archiving. Only files are
+ * listed, so directories without any files end up in neither.
+ */
+final class DocsFileIndex
+{
+    /**
+     * Names from DirectoryScanner.DEFAULTEXCLUDES which exclude everything
+     * below them as well.
+     */
+    private static final Set<String> EXCLUDED_DIRECTORIES = new HashSet<String>(
+            Arrays.asList( "CVS", "RCS", "SCCS", ".svn", ".arch-ids", ".bzr",
+                    ".metadata", ".hg", ".git", "BitKeeper", "ChangeSet",
+                    "_darcs", ".darcsrepo" ) );
+    /**
+     * Names from DirectoryScanner.DEFAULTEXCLUDES which only exclude the file
+     * itself; the patterns are checked in isExcludedFile.
+     */
+    private static final Set<String> EXCLUDED_FILES = new HashSet<String>(
+            Arrays.asList( ".cvsignore", "vssver.scc", ".MySCMServerInfo",
+                    ".DS_Store", ".darcs-temp-mail" ) );
+
+    private DocsFileIndex()
+    {
+    }
+
+    /**
+     * Stops at the first entry found, instead of listing the whole
+     * directory.
+     */
+    static boolean isEmpty( final File directory ) throws IOException
+    {
+        DirectoryStream<Path> entries = Files.newDirectoryStream( directory.toPath() );
+        try
+        {
+            return !entries.iterator()
+                    .hasNext();
+        }
+        finally
+        {
+            entries.close();
+        }
+    }
+
+    /**
+     * @return for each directory, its files by path in the archive: the
+     *         prefix of the directory and the relative path, with '/' as
+     *         separator. Excluded sub directories are not walked at all.
+     */
+    static List<SortedMap<String, File>> scan(
+            final List<SourceDirectory> directories, final int threads )
+            throws IOException
+    {
+        List<SortedMap<String, File>> files = new ArrayList<SortedMap<String, File>>();
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool( threads ) : null;
+        try
+        {
+            for ( SourceDirectory directory : directories )
+            {
+                ConcurrentSkipListMap<String, File> found = new ConcurrentSkipListMap<String, File>();
+                Walk walk = new Walk( directory.getDirectory(), "",
+                        new Patterns( directory ), found, pool != null );
+                if ( pool != null )
+                {
+                    pool.invoke( walk );
+                }
+                else
+                {
+                    walk.compute();
+                }
+                if ( walk.failure != null )
+                {
+                    throw walk.failure;
+                }
+                files.add( new TreeMap<String, File>( found ) );
+            }
+        }
+        finally
+        {
+            if ( pool != null )
+            {
+                pool.shutdown();
+            }
+        }
+        return files;
+    }
+
+    static boolean isExcludedDirectory( final String name )
+    {
+        return EXCLUDED_DIRECTORIES.contains( name );
+    }
+
+    static boolean isExcludedFile( final String name )
+    {
+        int length = name.length();
+        return EXCLUDED_DIRECTORIES.contains( name )
+               || EXCLUDED_FILES.contains( name )
+               || name.endsWith( "~" )
+               || ( length > 1 && name.charAt( 0 ) == '#' && name.endsWith( "#" ) )
+               || ( length > 1 && name.charAt( 0 ) == '%' && name.endsWith( "%" ) )
+               || name.startsWith( ".#" ) || name.startsWith( "._" )
+               || name.startsWith( "-darcs-backup" );
+    }
+
+    /**
+     * The include and exclude patterns of a source directory, matched the same
+     * way as by the DirectoryScanner.
+     */
+    private static final class Patterns
+    {
+        private final String prefix;
+        private final List<String> includes;
+        private final List<String> excludes;
+
+        Patterns( final SourceDirectory directory )
+        {
+            prefix = directory.getPrefix();
+            includes = normalize( directory.getIncludes() );
+            excludes = normalize( directory.getExcludes() );
+        }
+
+        boolean isIncluded( final String path )
+        {
+            String name = toNative( path );
+            return ( includes.isEmpty() || matchesAny( includes, name ) )
+                   && !matchesAny( excludes, name );
+        }
+
+        /**
+         * A directory is skipped when no include can match below it, or an
+         * exclude ending in ** matches it.
+         */
+        boolean isWalked( final String path )
+        {
+            String name = toNative( path );
+            if ( !includes.isEmpty() )
+            {
+                boolean start = false;
+                for ( String include : includes )
+                {
+                    if ( SelectorUtils.matchPatternStart( include, name, true ) )
+                    {
+                        start = true;
+                        break;
+                    }
+                }
+                if ( !start )
+                {
+                    return false;
+                }
+            }
+            for ( String exclude : excludes )
+            {
+                if ( exclude.endsWith( File.separator + "**" )
+                     && SelectorUtils.matchPath( exclude, name, true ) )
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean matchesAny( final List<String> patterns,
+                final String name )
+        {
+            for ( String pattern : patterns )
+            {
+                if ( SelectorUtils.matchPath( pattern, name, true ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static List<String> normalize( final List<String> patterns )
+        {
+            List<String> normalized = new ArrayList<String>();
+            for ( String pattern : patterns )
+            {
+                String name = toNative( pattern.trim() );
+                if ( name.endsWith( File.separator ) )
+                {
+                    name += "**";
+                }
+                normalized.add( name );
+            }
+            return normalized;
+        }
+
+        private static String toNative( final String path )
+        {
+            return path.replace( '/', File.separatorChar )
+                    .replace( '\\', File.separatorChar );
+        }
+    }
+
+    /**
+     * Lists one directory, and forks a walk for each sub directory when
+     * running in a pool.
+     */
+    private static final class Walk extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final File directory;
+        private final String prefix;
+        private final Patterns patterns;
+        private final Map<String, File> found;
+        private final boolean fork;
+        private IOException failure;
+
+        Walk( final File directory, final String prefix,
+                final Patterns patterns, final Map<String, File> found,
+                final boolean fork )
+        {
+            this.directory = directory;
+            this.prefix = prefix;
+            this.patterns = patterns;
+            this.found = found;
+            this.fork = fork;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<Walk> walks = new ArrayList<Walk>();
+            try
+            {
+                DirectoryStream<Path> entries = Files.newDirectoryStream( directory.toPath() );
+                try
+                {
+                    for ( Path entry : entries )
+                    {
+                        String name = entry.getFileName()
+                                .toString();
+                        BasicFileAttributes attributes = Files.readAttributes(
+                                entry, BasicFileAttributes.class );
+                        if ( attributes.isDirectory() )
+                        {
+                            if ( !isExcludedDirectory( name )
+                                 && patterns.isWalked( prefix + name ) )
+                            {
+                                walks.add( new Walk( entry.toFile(), prefix
+                                                                     + name
+                                                                     + "/",
+                                        patterns, found, fork ) );
+                            }
+                        }
+                        else if ( attributes.isRegularFile()
+                                  && !isExcludedFile( name )
+                                  && patterns.isIncluded( prefix + name ) )
+                        {
+                            found.put( patterns.prefix + prefix + name,
+                                    entry.toFile() );
+                        }
+                    }
+                }
+                finally
+                {
+                    entries.close();
+                }
+            }
+            catch ( IOException e )
+            {
+                failure = e;
+                return;
+            }
+            if ( fork )
+            {
+                invokeAll( walks );
+            }
+            else
+            {
+                for ( Walk walk : walks )
+                {
+                    walk.compute();
+                }
+            }
+            for ( Walk walk : walks )
+            {
+                if ( walk.failure != null )
+                {
+                    failure = walk.failure;
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Filters files in one encoding with a list of filter wrappers. For ASCII
+ * compatible encodings the filtering works on bytes, using buffers that are
+ * reused between files; other encodings go through readers.
+ */
+final class DocsFilter
+{
+    private final List<FileUtils.FilterWrapper> wrappers;
+    private final String encoding;
+    private final int bufferSize;
+    private final boolean byteLevel;
+    private final Queue<InterpolatingInputStream.Buffers> buffers = new ConcurrentLinkedQueue<InterpolatingInputStream.Buffers>();
+
+    DocsFilter( final List<FileUtils.FilterWrapper> wrappers,
+            final String encoding, final int bufferSize )
+    {
+        this.wrappers = wrappers;
+        this.encoding = encoding;
+        this.bufferSize = bufferSize;
+        this.byteLevel = InterpolatingInputStream.supports( encoding );
+    }
+
+    List<FileUtils.FilterWrapper> getWrappers()
+    {
+        return wrappers;
+    }
+
+    String getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * @return false if files are filtered through readers.
+     */
+    boolean isByteLevel()
+    {
+        return byteLevel;
+    }
+
+    /**
+     * @return the filtered contents of the file; the stream has to be closed
+     *         to return its buffers.
+     */
+    InputStream open( final File source ) throws IOException
+    {
+        if ( !byteLevel )
+        {
+            Reader reader = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( source ), encoding ) );
+            for ( FileUtils.FilterWrapper wrapper : wrappers )
+            {
+                reader = wrapper.getReader( reader );
+            }
+            return new ReaderInputStream( reader, encoding );
+        }
+        return openBytes( source );
+    }
+
+    private InterpolatingInputStream openBytes( final File source )
+            throws IOException
+    {
+        InterpolatingInputStream.Buffers taken = buffers.poll();
+        if ( taken == null )
+        {
+            taken = new InterpolatingInputStream.Buffers(
+                    Charset.forName( encoding ), bufferSize );
+        }
+        return new InterpolatingInputStream( new FileInputStream( source ),
+                wrappers, taken, buffers );
+    }
+
+    /**
+     * Only used for encodings which are filtered at the byte level, the
+     * others are copied by maven-filtering.
+     */
+    void copy( final File source, final File destination ) throws IOException
+    {
+        InterpolatingInputStream in = openBytes( source );
+        try
+        {
+            OutputStream out = new FileOutputStream( destination );
+            try
+            {
+                in.copyTo( out );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.settings.Settings;
+import org.apache.maven.shared.filtering.FilteringUtils;
+import org.apache.maven.shared.filtering.MultiDelimiterInterpolatorFilterReaderLineEnding;
+import org.codehaus.plexus.interpolation.InterpolationPostProcessor;
+import org.codehaus.plexus.interpolation.PrefixAwareRecursionInterceptor;
+import org.codehaus.plexus.interpolation.PrefixedObjectValueSource;
+import org.codehaus.plexus.interpolation.PropertiesBasedValueSource;
+import org.codehaus.plexus.interpolation.SingleResponseValueSource;
+import org.codehaus.plexus.interpolation.ValueSource;
+import org.codehaus.plexus.interpolation.multi.MultiDelimiterStringSearchInterpolator;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Does the same interpolation as the default filter wrapper of
+ * maven-filtering, but can be used from several threads at once: the
+ * reflective lookups in the project model go through an unsynchronized cache
+ * in plexus-interpolation, so those are done one at a time.
+ */
+final class DocsFilterWrapper extends FileUtils.FilterWrapper
+{
+    static final LinkedHashSet<String> DELIMITERS = new LinkedHashSet<String>(
+            Arrays.asList( "${*}", "@" ) );
+
+    private static final List<String> PROJECT_PREFIXES = Arrays.asList( "pom",
+            "project" );
+    private static final Object REFLECTION_LOCK = new Object();
+
+    private final MavenProject project;
+    private final MavenSession session;
+    private final ValueSource propertiesValueSource;
+
+    DocsFilterWrapper( final MavenProject project, final MavenSession session )
+    {
+        this.project = project;
+        this.session = session;
+        this.propertiesValueSource = new PropertiesBasedValueSource(
+                filterProperties( project, session ) );
+    }
+
+    /**
+     * The values used for plain property expressions, in the same order of
+     * precedence as maven-filtering uses.
+     */
+    static Properties filterProperties( final MavenProject project,
+            final MavenSession session )
+    {
+        Properties properties = new Properties();
+        if ( project.getProperties() != null )
+        {
+            properties.putAll( project.getProperties() );
+        }
+        if ( session != null )
+        {
+            // the same as the deprecated execution properties: user
+            // properties take precedence over system properties
+            properties.putAll( session.getSystemProperties() );
+            properties.putAll( session.getUserProperties() );
+        }
+        return properties;
+    }
+
+    @Override
+    public Reader getReader( final Reader reader )
+    {
+        MultiDelimiterStringSearchInterpolator interpolator = new MultiDelimiterStringSearchInterpolator();
+        interpolator.setDelimiterSpecs( DELIMITERS );
+        interpolator.addValueSource( propertiesValueSource );
+        interpolator.addValueSource( new LockedValueSource(
+                new PrefixedObjectValueSource( PROJECT_PREFIXES, project, true ) ) );
+        if ( session != null )
+        {
+            interpolator.addValueSource( new LockedValueSource(
+                    new PrefixedObjectValueSource( "session", session ) ) );
+            Settings settings = session.getSettings();
+            if ( settings != null )
+            {
+                interpolator.addValueSource( new LockedValueSource(
+                        new PrefixedObjectValueSource( "settings", settings ) ) );
+                interpolator.addValueSource( new SingleResponseValueSource(
+                        "localRepository", settings.getLocalRepository() ) );
+            }
+        }
+        interpolator.addPostProcessor( new InterpolationPostProcessor()
+        {
+            @Override
+            public Object execute( final String expression, final Object value )
+            {
+                if ( value instanceof String )
+                {
+                    return FilteringUtils.escapeWindowsPath( (String) value );
+                }
+                return value;
+            }
+        } );
+        MultiDelimiterInterpolatorFilterReaderLineEnding filterReader = new MultiDelimiterInterpolatorFilterReaderLineEnding(
+                reader, interpolator, false );
+        filterReader.setRecursionInterceptor( new PrefixAwareRecursionInterceptor(
+                PROJECT_PREFIXES, true ) );
+        filterReader.setDelimiterSpecs( DELIMITERS );
+        filterReader.setInterpolateWithPrefixPattern( false );
+        return filterReader;
+    }
+
+    private static final class LockedValueSource implements ValueSource
+    {
+        private final ValueSource delegate;
+
+        LockedValueSource( final ValueSource delegate )
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object getValue( final String expression )
+        {
+            synchronized ( REFLECTION_LOCK )
+            {
+                return delegate.getValue( expression );
+            }
+        }
+
+        @SuppressWarnings( "rawtypes" )
+        @Override
+        public List getFeedback()
+        {
+            return delegate.getFeedback();
+        }
+
+        @Override
+        public void clearFeedback()
+        {
+            delegate.clearFeedback();
+        }
+    }
+}
@@ -0,0 +1,683 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.filtering.MavenFileFilter;
+import org.apache.maven.shared.filtering.MavenFilteringException;
+import org.apache.maven.shared.filtering.MavenResourcesFiltering;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * The filter stage of the assembly: decides which docs files need filtering,
+ * finds the expressions in them and filters them on a number of threads,
+ * either to disk or for the archive to read while it is written.
+ */
+final class DocsFiltering
+{
+    static final String DEFAULT_ENCODING = "UTF-8";
+    static final List<String> NON_FILTERED_FILE_EXTENSIONS;
+
+    private static final int DEFAULT_FILTER_BUFFER_SIZE = 64 * 1024;
+    private static final int UNITS_PER_THREAD = 4;
+
+    private final Log log;
+    private final boolean filter;
+    /**
+     * The source directory each scanned path was found in, shared with the
+     * assembler which fills it.
+     */
+    private final Map<String, SourceDirectory> origins;
+    private final MavenProject project;
+    private final MavenResourcesFiltering resourceFiltering;
+    private final MavenFileFilter fileFilter;
+    private final MavenSession session;
+    private int threadCount = 1;
+    private String encoding = DEFAULT_ENCODING;
+    private int filterBufferSize = DEFAULT_FILTER_BUFFER_SIZE;
+    private File filterCache;
+    private long filterCacheSize;
+    private boolean precomputeValues;
+    private long largeFileSize;
+
+    static
+    {
+        // these are always non-filtered anyhow:
+        // jpg, jpeg, gif, bmp, png
+        // as defined in
+        // org.apache.maven.shared.filtering.DefaultMavenResourcesFiltering
+
+        NON_FILTERED_FILE_EXTENSIONS = Arrays.asList( "tiff", "tif", "pdf",
+                "zip", "gz" );
+    }
+
+    DocsFiltering( final Map<String, SourceDirectory> origins,
+            final boolean filter, final Log log, final MavenSession session,
+            final MavenProject project,
+            final MavenResourcesFiltering resourceFiltering,
+            final MavenFileFilter fileFilter )
+    {
+        this.origins = origins;
+        this.filter = filter;
+        this.log = log;
+        this.session = session;
+        this.project = project;
+        this.resourceFiltering = resourceFiltering;
+        this.fileFilter = fileFilter;
+    }
+
+    void setThreadCount( final int threadCount )
+    {
+        this.threadCount = threadCount;
+    }
+
+    void setEncoding( final String encoding )
+    {
+        this.encoding = encoding == null || encoding.length() == 0 ? DEFAULT_ENCODING
+                : encoding;
+    }
+
+    void setFilterBufferSize( final int filterBufferSize )
+    {
+        this.filterBufferSize = filterBufferSize > 0 ? filterBufferSize
+                : DEFAULT_FILTER_BUFFER_SIZE;
+    }
+
+    void setFilterCache( final File directory, final long size )
+    {
+        this.filterCache = directory;
+        this.filterCacheSize = size;
+    }
+
+    void setPrecomputeValues( final boolean precomputeValues )
+    {
+        this.precomputeValues = precomputeValues;
+    }
+
+    void setLargeFileSize( final long size )
+    {
+        this.largeFileSize = size;
+    }
+
+    /**
+     * @return the size in bytes above which files are large, 0 if none are.
+     */
+    long getLargeFileSize()
+    {
+        return largeFileSize;
+    }
+
+    boolean isLarge( final File file )
+    {
+        return largeFileSize > 0 && file.length() > largeFileSize;
+    }
+
+    /**
+     * @return the encoding the files of the directory are read with.
+     */
+    String getEncoding( final SourceDirectory directory )
+    {
+        return directory.getEncoding( encoding );
+    }
+
+    /**
+     * Filters the given files into the target directory. The files are split
+     * into work units which are filtered concurrently when more than one
+     * thread is configured. All failures are reported together.
+     */
+    void filterResources( final Collection<String> paths,
+            final DocsManifest manifest, final File targetDir,
+            final DocsReport report ) throws MojoExecutionException
+    {
+        log.info( "Filter target: " + targetDir );
+        log.info( "Filtering " + paths.size() + " of "
+                  + manifest.entries()
+                          .size() + " files." );
+        final DocsReport.Stage stage = report.start( "filter" );
+        try
+        {
+            filterResources( paths, manifest, targetDir, report, stage );
+        }
+        finally
+        {
+            stage.stop();
+        }
+    }
+
+    private void filterResources( final Collection<String> paths,
+            final DocsManifest manifest, final File targetDir,
+            final DocsReport report, final DocsReport.Stage stage )
+            throws MojoExecutionException
+    {
+        stage.put( "files", paths.size() );
+        if ( paths.isEmpty() )
+        {
+            return;
+        }
+        final Map<String, DocsFilter> filters = createFilters( paths, manifest,
+                stage );
+        final FilterCache cache = filterCache == null ? null : new FilterCache(
+                filterCache, filterCacheSize );
+        final List<String> errors = Collections.synchronizedList( new ArrayList<String>() );
+        final List<Runnable> units = new ArrayList<Runnable>();
+        final List<String> allPaths = new ArrayList<String>( paths );
+        final int unitSize = Math.max( 1, allPaths.size()
+                                          / ( threadCount * UNITS_PER_THREAD ) );
+        for ( int start = 0; start < allPaths.size(); start += unitSize )
+        {
+            final List<String> unit = allPaths.subList( start,
+                    Math.min( start + unitSize, allPaths.size() ) );
+            units.add( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for ( String path : unit )
+                    {
+                        File output = new File( targetDir, path );
+                        try
+                        {
+                            DocsManifest.Entry entry = manifest.get( path );
+                            long started = System.nanoTime();
+                            boolean interpolated = filterFile( path, entry,
+                                    output, filters, cache );
+                            report.fileFiltered( path,
+                                    System.nanoTime() - started, entry.size );
+                            stage.add( interpolated ? "interpolated"
+                                    : "copied", 1 );
+                            stage.add( "bytes", entry.size );
+                        }
+                        catch ( MavenFilteringException e )
+                        {
+                            errors.add( path + ": " + e.getMessage() );
+                        }
+                        catch ( RuntimeException e )
+                        {
+                            errors.add( path + ": " + e );
+                        }
+                    }
+                }
+            } );
+        }
+        runAll( units, threadCount );
+        if ( cache != null )
+        {
+            stage.put( "cacheHits", cache.getHits() );
+            stage.put( "cacheMisses", cache.getMisses() );
+            try
+            {
+                cache.evict();
+            }
+            catch ( IOException e )
+            {
+                log.warn( "Could not clean up the filter cache: "
+                          + e.getMessage() );
+            }
+        }
+
+        if ( !errors.isEmpty() )
+        {
+            StringBuilder message = new StringBuilder();
+            message.append( errors.size() )
+                    .append( " docs file(s) could not be filtered:" );
+            for ( String error : errors )
+            {
+                log.error( error );
+                message.append( "\n  " )
+                        .append( error );
+            }
+            throw new MojoExecutionException( message.toString() );
+        }
+    }
+
+    /**
+     * @param paths the files to filter, their expressions are resolved up
+     *            front when precomputeValues is set.
+     * @return a filter for each encoding used by the scanned directories.
+     */
+    Map<String, DocsFilter> createFilters(
+            final Collection<String> paths, final DocsManifest manifest,
+            final DocsReport.Stage stage ) throws MojoExecutionException
+    {
+        FileUtils.FilterWrapper wrapper = new DocsFilterWrapper( project,
+                session );
+        if ( precomputeValues )
+        {
+            ValueTable table = createValueTable( paths, manifest, wrapper );
+            if ( table != null )
+            {
+                stage.put( "values", table.getValues()
+                        .size() );
+                stage.put( "unresolved", table.getUnresolved()
+                        .size() );
+                if ( !table.getUnresolved()
+                        .isEmpty() )
+                {
+                    log.warn( "No values found for these expressions in the docs, they are left as they are: "
+                              + table.getUnresolved() );
+                }
+                wrapper = table.newFilterWrapper();
+            }
+        }
+        List<FileUtils.FilterWrapper> wrappers = Collections.singletonList( wrapper );
+        Map<String, DocsFilter> filters = new HashMap<String, DocsFilter>();
+        for ( SourceDirectory dir : origins.values() )
+        {
+            String dirEncoding = dir.getEncoding( encoding );
+            if ( !filters.containsKey( dirEncoding ) )
+            {
+                filters.put( dirEncoding, new DocsFilter( wrappers,
+                        dirEncoding, filterBufferSize ) );
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Resolves each expression in the files to filter once, using the
+     * expressions the change detection found when there are any.
+     * 
+     * @return null if a file has too many, or nested, expressions to find
+     *         them all.
+     */
+    private ValueTable createValueTable( final Collection<String> paths,
+            final DocsManifest manifest, final FileUtils.FilterWrapper wrapper )
+            throws MojoExecutionException
+    {
+        SortedSet<String> expressions = manifest.getExpressions();
+        if ( expressions == null )
+        {
+            expressions = findExpressions( paths, manifest );
+        }
+        if ( expressions == null )
+        {
+            log.info( "Not resolving the expression values up front." );
+            return null;
+        }
+        try
+        {
+            return ValueTable.resolve( expressions, wrapper );
+        }
+        catch ( IOException e )
+        {
+            log.error( e );
+            throw new MojoExecutionException(
+                    "Could not resolve the expressions in the docs.", e );
+        }
+    }
+
+    /**
+     * Adds the expressions in the changed files to the ones found before.
+     * 
+     * @return null if they aren't known.
+     */
+    SortedSet<String> addExpressions(
+            final SortedSet<String> previous, final Collection<String> changed,
+            final DocsManifest manifest ) throws MojoExecutionException
+    {
+        if ( previous == null )
+        {
+            return null;
+        }
+        SortedSet<String> found = findExpressions( changed, manifest );
+        if ( found == null )
+        {
+            return null;
+        }
+        found.addAll( previous );
+        return found;
+    }
+
+    /**
+     * Finds the expressions in the given files which need filtering, on the
+     * configured number of threads.
+     * 
+     * @return null if a file has too many, or nested, expressions to find
+     *         them all.
+     */
+    SortedSet<String> findExpressions( final Collection<String> paths,
+            final DocsManifest manifest ) throws MojoExecutionException
+    {
+        final SortedSet<String> expressions = new TreeSet<String>();
+        final List<String> errors = Collections.synchronizedList( new ArrayList<String>() );
+        final List<String> tooMany = Collections.synchronizedList( new ArrayList<String>() );
+        final List<Runnable> units = new ArrayList<Runnable>();
+        final List<String> allPaths = new ArrayList<String>( paths );
+        final int unitSize = Math.max( 1, allPaths.size()
+                                          / ( threadCount * UNITS_PER_THREAD ) );
+        for ( int start = 0; start < allPaths.size(); start += unitSize )
+        {
+            final List<String> unit = allPaths.subList( start,
+                    Math.min( start + unitSize, allPaths.size() ) );
+            units.add( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for ( String path : unit )
+                    {
+                        DocsManifest.Entry entry = manifest.get( path );
+                        if ( entry == null
+                             || !needsFiltering( path, entry.source, entry ) )
+                        {
+                            continue;
+                        }
+                        try
+                        {
+                            Set<String> found = FilterCache.expressions(
+                                    entry.source, getEncoding( origins.get( path ) ) );
+                            if ( found == null || hasLineBreak( found ) )
+                            {
+                                tooMany.add( path );
+                                continue;
+                            }
+                            synchronized ( expressions )
+                            {
+                                expressions.addAll( found );
+                            }
+                        }
+                        catch ( IOException e )
+                        {
+                            errors.add( path + ": " + e.getMessage() );
+                        }
+                    }
+                }
+            } );
+        }
+        runAll( units, threadCount );
+        if ( !errors.isEmpty() )
+        {
+            for ( String error : errors )
+            {
+                log.error( error );
+            }
+            throw new MojoExecutionException( errors.size()
+                                              + " docs file(s) could not be read." );
+        }
+        if ( !tooMany.isEmpty() )
+        {
+            log.info( "Can't keep track of the expressions in: "
+                      + tooMany.get( 0 ) );
+            return null;
+        }
+        return expressions;
+    }
+
+    /**
+     * Expressions are kept one per line in the manifest, which is read by
+     * lines ending in either character.
+     */
+    private static boolean hasLineBreak( final Set<String> expressions )
+    {
+        for ( String expression : expressions )
+        {
+            if ( expression.indexOf( '\r' ) != -1
+                 || expression.indexOf( '\n' ) != -1 )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    DocsFilter getFilter( final Map<String, DocsFilter> filters,
+            final String path )
+    {
+        return filters.get( getEncoding( origins.get( path ) ) );
+    }
+
+    boolean isFiltering( final List<SourceDirectory> directories )
+    {
+        for ( SourceDirectory dir : directories )
+        {
+            if ( dir.isFiltered( filter ) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isFiltered( final File source )
+    {
+        return resourceFiltering.filteredFileExtension( source.getName(),
+                NON_FILTERED_FILE_EXTENSIONS );
+    }
+
+    /**
+     * Files without any filter expressions in them and large files are left
+     * alone, even if they are of a filtered type, and so are files which
+     * aren't from the source directories, like the asset index.
+     */
+    boolean needsFiltering( final String path, final File source,
+            final DocsManifest.Entry entry )
+    {
+        SourceDirectory origin = origins.get( path );
+        return origin != null
+               && origin.isFiltered( filter )
+               && isFiltered( source )
+               && !isLarge( source )
+               && ( entry == null || entry.tokens || !TokenScanner.canScan( origin.getEncoding( encoding ) ) );
+    }
+
+    /**
+     * @param cache where to look for the filtered file before filtering it,
+     *            may be null.
+     * @return true if the file went through the filter readers, or was taken
+     *         from the cache.
+     */
+    private boolean filterFile( final String path,
+            final DocsManifest.Entry entry, final File destination,
+            final Map<String, DocsFilter> filters, final FilterCache cache )
+            throws MavenFilteringException
+    {
+        File parent = destination.getParentFile();
+        if ( !parent.exists() && !parent.mkdirs() && !parent.isDirectory() )
+        {
+            throw new MavenFilteringException( "Could not create: "
+                                               + parent.getAbsolutePath() );
+        }
+        boolean interpolate = needsFiltering( path, entry.source, entry );
+        DocsFilter docsFilter = getFilter( filters, path );
+        String cacheKey = interpolate && cache != null ? cache.key(
+                entry.source, entry.hash, docsFilter ) : null;
+        if ( cacheKey != null && cache.get( cacheKey, destination ) )
+        {
+            return true;
+        }
+        if ( interpolate && !docsFilter.isByteLevel() )
+        {
+            fileFilter.copyFile( entry.source, destination, true,
+                    docsFilter.getWrappers(), docsFilter.getEncoding(), true );
+            if ( cacheKey != null )
+            {
+                cache.put( cacheKey, destination );
+            }
+            return true;
+        }
+        try
+        {
+            if ( interpolate )
+            {
+                docsFilter.copy( entry.source, destination );
+                if ( cacheKey != null )
+                {
+                    cache.put( cacheKey, destination );
+                }
+                return true;
+            }
+            copyFile( entry.source, destination );
+            return false;
+        }
+        catch ( IOException e )
+        {
+            throw new MavenFilteringException( "Could not filter: "
+                                               + entry.source.getAbsolutePath(),
+                    e );
+        }
+    }
+
+    /**
+     * Copies the file contents without moving them through the heap.
+     */
+    static void copyFile( final File source, final File destination )
+            throws IOException
+    {
+        FileInputStream in = new FileInputStream( source );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( destination );
+            try
+            {
+                FileChannel input = in.getChannel();
+                FileChannel output = out.getChannel();
+                long size = input.size();
+                long position = 0;
+                while ( position < size )
+                {
+                    position += input.transferTo( position, size - position,
+                            output );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs the tasks on a pool of the given size, or right here when there's
+     * only one thread to use.
+     */
+    private static void runAll( final List<Runnable> tasks, final int threadCount )
+            throws MojoExecutionException
+    {
+        if ( threadCount <= 1 || tasks.size() <= 1 )
+        {
+            for ( Runnable task : tasks )
+            {
+                task.run();
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool( Math.min(
+                threadCount, tasks.size() ) );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for ( Runnable task : tasks )
+            {
+                futures.add( executor.submit( task ) );
+            }
+            for ( Future<?> future : futures )
+            {
+                future.get();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread()
+                    .interrupt();
+            throw new MojoExecutionException( "Interrupted.", e );
+        }
+        catch ( ExecutionException e )
+        {
+            throw new MojoExecutionException( "Error assembling docs.",
+                    e.getCause() );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Everything besides the source file and its encoding that has an effect
+     * on a filtered file.
+     * 
+     * @param values the hash of the values of the expressions, null to leave
+     *            them out.
+     */
+    String fingerprint( final String values )
+    {
+        MessageDigest digest = DocsManifest.newDigest();
+        DocsManifest.update( digest, "encoding", encoding );
+        DocsManifest.update( digest, "nonFiltered",
+                NON_FILTERED_FILE_EXTENSIONS.toString() );
+        DocsManifest.update( digest, "project", project.getId() );
+        DocsManifest.update( digest, "name", project.getName() );
+        DocsManifest.update( digest, "description",
+                project.getDescription() );
+        DocsManifest.update( digest, "url", project.getUrl() );
+        if ( values != null )
+        {
+            DocsManifest.update( digest, "values", values );
+        }
+        return DocsManifest.toHex( digest.digest() );
+    }
+
+    /**
+     * @return the hash of what each file in the manifest turns into, for the
+     *         filtered ones this covers the encoding and the values of the
+     *         expressions as well.
+     */
+    Map<String, String> outputHashes( final DocsManifest manifest )
+    {
+        String filtering = fingerprint( manifest.getValues() );
+        Map<String, String> hashes = new HashMap<String, String>();
+        for ( DocsManifest.Entry entry : manifest.entries() )
+        {
+            hashes.put( entry.path, needsFiltering( entry.path, entry.source,
+                    entry ) ? DocsManifest.filteredHash( entry.hash,
+                    getEncoding( origins.get( entry.path ) ), filtering )
+                    : entry.hash );
+        }
+        return hashes;
+    }
+}
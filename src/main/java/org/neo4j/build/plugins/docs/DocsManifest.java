@@ -0,0 +1,498 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The state of the previous assembly: one line per source file with its size,
+ * modification time, content hash and whether it may contain filter
+ * expressions, plus a fingerprint of everything else that affects the
+ * filtered output. The expressions found in the filtered files are kept as
+ * well, with a hash of their values, so only the properties the docs use are
+ * compared on the next run.
+ */
+final class DocsManifest
+{
+    private static final String HEADER = "# docs-maven-plugin manifest 3";
+    private static final String FINGERPRINT = "fingerprint ";
+    private static final String ARCHIVE = "archive ";
+    private static final String VALUES = "values ";
+    private static final String EXPRESSION = "expression ";
+    private static final String ALL_EXPRESSIONS = "expressions all";
+    private static final String ENCODING = "UTF-8";
+    private static final String TOKENS = "tokens";
+    private static final String NO_TOKENS = "plain";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static final class Entry
+    {
+        final String path;
+        final File source;
+        final long size;
+        final long lastModified;
+        final String hash;
+        final boolean tokens;
+
+        Entry( final String path, final File source, final long size,
+                final long lastModified, final String hash,
+                final boolean tokens )
+        {
+            this.path = path;
+            this.source = source.getAbsoluteFile();
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.tokens = tokens;
+        }
+
+        /**
+         * Cheap check which doesn't read the file contents.
+         */
+        boolean isSameStat( final File file )
+        {
+            return source.equals( file.getAbsoluteFile() )
+                   && size == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private final String fingerprint;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    private long archiveSize = -1;
+    private long archiveLastModified = -1;
+    private String values = "";
+    private SortedSet<String> expressions;
+
+    DocsManifest( final String fingerprint )
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    Entry get( final String path )
+    {
+        return entries.get( path );
+    }
+
+    void put( final Entry entry )
+    {
+        entries.put( entry.path, entry );
+    }
+
+    Collection<Entry> entries()
+    {
+        return Collections.unmodifiableCollection( entries.values() );
+    }
+
+    /**
+     * @param archive the archive, or the directory of the dir format.
+     */
+    void setArchive( final File archive )
+    {
+        long[] state = state( archive );
+        archiveSize = state == null ? -1 : state[0];
+        archiveLastModified = state == null ? -1 : state[1];
+    }
+
+    /**
+     * @return true if the archive is still the one written by the assembly
+     *         this manifest describes.
+     */
+    boolean isArchiveUnchanged( final File archive )
+    {
+        long[] state = state( archive );
+        return state != null && archiveSize == state[0]
+               && archiveLastModified == state[1];
+    }
+
+    /**
+     * @return the size and modification time of a file; for a directory the
+     *         number of files in it and a hash of their paths, sizes and
+     *         modification times; null if there is neither.
+     */
+    private static long[] state( final File archive )
+    {
+        if ( archive.isFile() )
+        {
+            return new long[] { archive.length(), archive.lastModified() };
+        }
+        if ( !archive.isDirectory() )
+        {
+            return null;
+        }
+        MessageDigest digest = newDigest();
+        long count = addState( archive, "", digest );
+        byte[] hash = digest.digest();
+        long folded = 0;
+        for ( int i = 0; i < 8; i++ )
+        {
+            folded = folded << 8 | ( hash[i] & 0xff );
+        }
+        return new long[] { count, folded };
+    }
+
+    /**
+     * @return the number of files in the directory and below.
+     */
+    private static long addState( final File directory, final String prefix,
+            final MessageDigest digest )
+    {
+        File[] files = directory.listFiles();
+        if ( files == null )
+        {
+            return 0;
+        }
+        Arrays.sort( files );
+        long count = 0;
+        for ( File file : files )
+        {
+            String path = prefix + file.getName();
+            if ( file.isDirectory() )
+            {
+                update( digest, path + "/", "" );
+                count += addState( file, path + "/", digest );
+            }
+            else
+            {
+                update( digest, path, file.length() + " "
+                                      + file.lastModified() );
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param values hash of the values of the expressions.
+     * @param expressions the expressions found in the filtered files, null if
+     *            they aren't known and all properties were hashed.
+     */
+    void setValues( final String values, final SortedSet<String> expressions )
+    {
+        this.values = values;
+        this.expressions = expressions == null ? null
+                : Collections.unmodifiableSortedSet( new TreeSet<String>(
+                        expressions ) );
+    }
+
+    String getValues()
+    {
+        return values;
+    }
+
+    /**
+     * @return sums up the fingerprint and the values of the expressions, so
+     *         everything besides the files themselves that affects the
+     *         assembled docs.
+     */
+    String getOutputFingerprint()
+    {
+        MessageDigest digest = newDigest();
+        try
+        {
+            digest.update( ( fingerprint + "\n" + values ).getBytes( ENCODING ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return toHex( digest.digest() );
+    }
+
+    /**
+     * @return the expressions found in the filtered files, or null if they
+     *         aren't known.
+     */
+    SortedSet<String> getExpressions()
+    {
+        return expressions;
+    }
+
+    /**
+     * @return the manifest, or null if there is none or it can't be used.
+     */
+    static DocsManifest read( final File file )
+    {
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( file ), ENCODING ) );
+            try
+            {
+                if ( !HEADER.equals( reader.readLine() ) )
+                {
+                    return null;
+                }
+                String line = reader.readLine();
+                if ( line == null || !line.startsWith( FINGERPRINT ) )
+                {
+                    return null;
+                }
+                DocsManifest manifest = new DocsManifest(
+                        line.substring( FINGERPRINT.length() ) );
+                line = reader.readLine();
+                if ( line == null || !line.startsWith( ARCHIVE ) )
+                {
+                    return null;
+                }
+                String[] archive = line.substring( ARCHIVE.length() )
+                        .split( " " );
+                manifest.archiveSize = Long.parseLong( archive[0] );
+                manifest.archiveLastModified = Long.parseLong( archive[1] );
+                line = reader.readLine();
+                if ( line == null || !line.startsWith( VALUES ) )
+                {
+                    return null;
+                }
+                String values = line.substring( VALUES.length() );
+                SortedSet<String> expressions = new TreeSet<String>();
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    if ( line.startsWith( EXPRESSION ) )
+                    {
+                        expressions.add( line.substring( EXPRESSION.length() ) );
+                        continue;
+                    }
+                    if ( ALL_EXPRESSIONS.equals( line ) )
+                    {
+                        expressions = null;
+                        continue;
+                    }
+                    String[] fields = line.split( "\t", 6 );
+                    if ( fields.length != 6 )
+                    {
+                        return null;
+                    }
+                    manifest.put( new Entry( fields[5], new File( fields[4] ),
+                            Long.parseLong( fields[0] ),
+                            Long.parseLong( fields[1] ), fields[2],
+                            TOKENS.equals( fields[3] ) ) );
+                }
+                manifest.setValues( values, expressions );
+                return manifest;
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        catch ( RuntimeException e )
+        {
+            // corrupt manifest, fall back to a full assembly
+            return null;
+        }
+    }
+
+    /**
+     * Writes to a temporary file first, so an interrupted build never leaves
+     * a half written manifest behind.
+     */
+    void write( final File file ) throws IOException
+    {
+        File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        Writer writer = new BufferedWriter( new OutputStreamWriter(
+                new FileOutputStream( temp ), ENCODING ) );
+        try
+        {
+            writer.write( HEADER );
+            writer.write( '\n' );
+            writer.write( FINGERPRINT );
+            writer.write( fingerprint );
+            writer.write( '\n' );
+            writer.write( ARCHIVE );
+            writer.write( archiveSize + " " + archiveLastModified );
+            writer.write( '\n' );
+            writer.write( VALUES );
+            writer.write( values );
+            writer.write( '\n' );
+            if ( expressions == null )
+            {
+                writer.write( ALL_EXPRESSIONS );
+                writer.write( '\n' );
+            }
+            else
+            {
+                for ( String expression : expressions )
+                {
+                    writer.write( EXPRESSION );
+                    writer.write( expression );
+                    writer.write( '\n' );
+                }
+            }
+            for ( Entry entry : entries.values() )
+            {
+                writer.write( String.valueOf( entry.size ) );
+                writer.write( '\t' );
+                writer.write( String.valueOf( entry.lastModified ) );
+                writer.write( '\t' );
+                writer.write( entry.hash );
+                writer.write( '\t' );
+                writer.write( entry.tokens ? TOKENS : NO_TOKENS );
+                writer.write( '\t' );
+                writer.write( entry.source.getAbsolutePath() );
+                writer.write( '\t' );
+                writer.write( entry.path );
+                writer.write( '\n' );
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Could not delete: "
+                                   + file.getAbsolutePath() );
+        }
+        if ( !temp.renameTo( file ) )
+        {
+            throw new IOException( "Could not rename " + temp + " to " + file );
+        }
+    }
+
+    static void delete( final File file )
+    {
+        if ( file.exists() )
+        {
+            file.delete();
+        }
+    }
+
+    static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Adds a setting to a fingerprint.
+     */
+    static void update( final MessageDigest digest, final String key,
+            final String value )
+    {
+        try
+        {
+            digest.update( ( key + "=" + value + "\n" ).getBytes( ENCODING ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Hashes the file and looks for filter expressions in it, reading it only
+     * once.
+     */
+    static Entry scan( final String path, final File file ) throws IOException
+    {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        MessageDigest digest = newDigest();
+        TokenScanner scanner = new TokenScanner();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, count );
+                scanner.update( buffer, 0, count );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return new Entry( path, file, size, lastModified,
+                toHex( digest.digest() ), scanner.mayContainTokens() );
+    }
+
+    /**
+     * @return a hash which stands for the filtered contents of a file: it
+     *         changes with the source, the encoding and everything else the
+     *         filtering depends on.
+     * @param fingerprint sums up what the filtering depends on besides the
+     *            file contents and encoding.
+     */
+    static String filteredHash( final String hash, final String encoding,
+            final String fingerprint )
+    {
+        MessageDigest digest = newDigest();
+        try
+        {
+            digest.update( ( hash + '\n' + encoding + '\n' + fingerprint ).getBytes( ENCODING ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+        return toHex( digest.digest() );
+    }
+
+    static String toHex( final byte[] bytes )
+    {
+        char[] chars = new char[bytes.length * 2];
+        for ( int i = 0; i < bytes.length; i++ )
+        {
+            chars[i * 2] = HEX[( bytes[i] >> 4 ) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String( chars );
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where the time of a docs goal went: how long each stage took, with some
+ * numbers about what it did, and the files which were slowest to filter.
+ * Written as JSON, so it can be tracked by CI.
+ */
+final class DocsReport
+{
+    static final String FILENAME = "docs-report.json";
+
+    private static final int SLOWEST_FILES = 10;
+    private static final Comparator<FileTime> SLOWEST_FIRST = new Comparator<FileTime>()
+    {
+        @Override
+        public int compare( final FileTime one, final FileTime other )
+        {
+            return one.nanos < other.nanos ? 1 : one.nanos > other.nanos ? -1
+                    : one.path.compareTo( other.path );
+        }
+    };
+
+    /**
+     * One step of a goal.
+     */
+    static final class Stage
+    {
+        private final String name;
+        private final long started = System.nanoTime();
+        private final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        private long nanos = -1;
+
+        private Stage( final String name )
+        {
+            this.name = name;
+        }
+
+        synchronized void put( final String key, final Object value )
+        {
+            values.put( key, value );
+        }
+
+        synchronized void add( final String key, final long delta )
+        {
+            Object value = values.get( key );
+            values.put( key, value instanceof Long ? (Long) value + delta
+                    : delta );
+        }
+
+        void stop()
+        {
+            nanos = System.nanoTime() - started;
+        }
+
+        long millis()
+        {
+            return ( nanos == -1 ? System.nanoTime() - started : nanos ) / 1000000;
+        }
+    }
+
+    private static final class FileTime
+    {
+        final String path;
+        final long nanos;
+        final long bytes;
+
+        FileTime( final String path, final long nanos, final long bytes )
+        {
+            this.path = path;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    private final String goal;
+    private final String project;
+    private final long startedAt = System.currentTimeMillis();
+    private final long started = System.nanoTime();
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final List<FileTime> slowest = new ArrayList<FileTime>();
+
+    DocsReport( final String goal, final String project )
+    {
+        this.goal = goal;
+        this.project = project;
+    }
+
+    synchronized Stage start( final String name )
+    {
+        Stage stage = new Stage( name );
+        stages.add( stage );
+        return stage;
+    }
+
+    /**
+     * Keeps track of the files which took the longest to filter.
+     */
+    synchronized void fileFiltered( final String path, final long nanos,
+            final long bytes )
+    {
+        if ( slowest.size() == SLOWEST_FILES
+             && slowest.get( SLOWEST_FILES - 1 ).nanos >= nanos )
+        {
+            return;
+        }
+        slowest.add( new FileTime( path, nanos, bytes ) );
+        Collections.sort( slowest, SLOWEST_FIRST );
+        if ( slowest.size() > SLOWEST_FILES )
+        {
+            slowest.remove( SLOWEST_FILES );
+        }
+    }
+
+    /**
+     * @return a single line with the time of each stage.
+     */
+    synchronized String summary()
+    {
+        StringBuilder summary = new StringBuilder();
+        summary.append( "Docs " )
+                .append( goal )
+                .append( " took " )
+                .append( totalMillis() )
+                .append( " ms" );
+        String separator = ": ";
+        for ( Stage stage : stages )
+        {
+            summary.append( separator )
+                    .append( stage.name )
+                    .append( ' ' )
+                    .append( stage.millis() )
+                    .append( " ms" );
+            separator = ", ";
+        }
+        return summary.append( '.' )
+                .toString();
+    }
+
+    synchronized String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append( "{\n  \"goal\": " );
+        string( json, goal );
+        json.append( ",\n  \"project\": " );
+        string( json, project );
+        json.append( ",\n  \"startedAt\": " )
+                .append( startedAt )
+                .append( ",\n  \"totalMillis\": " )
+                .append( totalMillis() )
+                .append( ",\n  \"stages\": [" );
+        String separator = "\n";
+        for ( Stage stage : stages )
+        {
+            json.append( separator )
+                    .append( "    { \"name\": " );
+            string( json, stage.name );
+            json.append( ", \"millis\": " )
+                    .append( stage.millis() );
+            synchronized ( stage )
+            {
+                for ( Map.Entry<String, Object> value : stage.values.entrySet() )
+                {
+                    json.append( ", " );
+                    string( json, value.getKey() );
+                    json.append( ": " );
+                    value( json, value.getValue() );
+                }
+            }
+            json.append( " }" );
+            separator = ",\n";
+        }
+        json.append( "\n  ],\n  \"slowestFiles\": [" );
+        separator = "\n";
+        for ( FileTime file : slowest )
+        {
+            json.append( separator )
+                    .append( "    { \"path\": " );
+            string( json, file.path );
+            json.append( ", \"micros\": " )
+                    .append( file.nanos / 1000 )
+                    .append( ", \"bytes\": " )
+                    .append( file.bytes )
+                    .append( " }" );
+            separator = ",\n";
+        }
+        return json.append( "\n  ]\n}\n" )
+                .toString();
+    }
+
+    void write( final File file ) throws IOException
+    {
+        Writer writer = new OutputStreamWriter( new FileOutputStream( file ),
+                "UTF-8" );
+        try
+        {
+            writer.write( toJson() );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    private long totalMillis()
+    {
+        return ( System.nanoTime() - started ) / 1000000;
+    }
+
+    private static void value( final StringBuilder json, final Object value )
+    {
+        if ( value instanceof Number || value instanceof Boolean )
+        {
+            json.append( value );
+        }
+        else
+        {
+            string( json, String.valueOf( value ) );
+        }
+    }
+
+    private static void string( final StringBuilder json, final String value )
+    {
+        if ( value == null )
+        {
+            json.append( "null" );
+            return;
+        }
+        json.append( '"' );
+        for ( int i = 0; i < value.length(); i++ )
+        {
+            char c = value.charAt( i );
+            switch ( c )
+            {
+            case '"':
+                json.append( "\\\"" );
+                break;
+            case '\\':
+                json.append( "\\\\" );
+                break;
+            case '\n':
+                json.append( "\\n" );
+                break;
+            case '\r':
+                json.append( "\\r" );
+                break;
+            case '\t':
+                json.append( "\\t" );
+                break;
+            default:
+                if ( c < 0x20 )
+                {
+                    json.append( String.format( "\\u%04x", (int) c ) );
+                }
+                else
+                {
+                    json.append( c );
+                }
+            }
+        }
+        json.append( '"' );
+    }
+}
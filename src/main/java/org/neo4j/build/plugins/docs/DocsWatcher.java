@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the docs directories and everything below them for changes. Events
+ * are collected until nothing has changed for a while, so saving a bunch of
+ * files, or a test writing a lot of docs, gives a single batch. Directories
+ * that don't exist yet are picked up once they show up.
+ */
+final class DocsWatcher implements Closeable
+{
+    interface Listener
+    {
+        /**
+         * @param changed the files and directories created, modified or
+         *            deleted since the last batch.
+         */
+        void changed( Set<Path> changed );
+    }
+
+    private static final long POLL_MILLIS = 500;
+
+    private final List<File> roots;
+    private final long quietMillis;
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private final Set<File> watchedRoots = new HashSet<File>();
+    private volatile boolean stopped;
+
+    DocsWatcher( final List<File> roots, final long quietMillis )
+            throws IOException
+    {
+        this.roots = roots;
+        this.quietMillis = Math.max( 1, quietMillis );
+        service = FileSystems.getDefault()
+                .newWatchService();
+        registerRoots( new TreeSet<Path>() );
+    }
+
+    /**
+     * Calls the listener for each batch of changes, until stopped or
+     * interrupted.
+     */
+    void watch( final Listener listener ) throws IOException,
+            InterruptedException
+    {
+        while ( !stopped )
+        {
+            Set<Path> changed = new TreeSet<Path>();
+            registerRoots( changed );
+            WatchKey key = service.poll( POLL_MILLIS, TimeUnit.MILLISECONDS );
+            while ( key != null )
+            {
+                collect( key, changed );
+                key = service.poll( quietMillis, TimeUnit.MILLISECONDS );
+            }
+            if ( !changed.isEmpty() && !stopped )
+            {
+                listener.changed( changed );
+            }
+        }
+    }
+
+    void stop()
+    {
+        stopped = true;
+    }
+
+    Set<File> getWatchedRoots()
+    {
+        return watchedRoots;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        service.close();
+    }
+
+    private void collect( final WatchKey key, final Set<Path> changed )
+            throws IOException
+    {
+        Path directory = keys.get( key );
+        for ( WatchEvent<?> event : key.pollEvents() )
+        {
+            if ( directory == null )
+            {
+                continue;
+            }
+            if ( event.kind() == OVERFLOW )
+            {
+                changed.add( directory );
+                continue;
+            }
+            Path path = directory.resolve( (Path) event.context() );
+            String name = path.getFileName()
+                    .toString();
+            if ( Files.isDirectory( path ) )
+            {
+                if ( event.kind() == ENTRY_CREATE
+                     && !DocsFileIndex.isExcludedDirectory( name ) )
+                {
+                    // files may be in it before it is registered
+                    register( path );
+                    changed.add( path );
+                }
+            }
+            else if ( !DocsFileIndex.isExcludedFile( name ) )
+            {
+                changed.add( path );
+            }
+        }
+        if ( !key.reset() )
+        {
+            keys.remove( key );
+        }
+    }
+
+    /**
+     * Starts watching roots which showed up since the last call, and adds
+     * them to the changes. Roots which were deleted since, like target/docs
+     * by mvn clean, are watched again once they are back.
+     */
+    private void registerRoots( final Set<Path> changed ) throws IOException
+    {
+        for ( File root : roots )
+        {
+            if ( watchedRoots.contains( root )
+                 && !keys.containsValue( root.toPath() ) )
+            {
+                watchedRoots.remove( root );
+            }
+            if ( !watchedRoots.contains( root ) && root.isDirectory() )
+            {
+                register( root.toPath() );
+                watchedRoots.add( root );
+                changed.add( root.toPath() );
+            }
+        }
+    }
+
+    private void register( final Path start ) throws IOException
+    {
+        Files.walkFileTree( start, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory( final Path dir,
+                    final BasicFileAttributes attributes ) throws IOException
+            {
+                if ( !dir.equals( start )
+                     && DocsFileIndex.isExcludedDirectory( dir.getFileName()
+                             .toString() ) )
+                {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                keys.put( dir.register( service, ENTRY_CREATE, ENTRY_DELETE,
+                        ENTRY_MODIFY ), dir );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Filtered files by what the filtering output depends on: the contents of
+ * the source file, its encoding and the values of the expressions in it. The
+ * cache is a directory which can be shared by several builds, also running at
+ * the same time; entries are written to a temporary file first and then
+ * renamed, so a build never sees half an entry. When the cache grows beyond
+ * its size, the least recently used entries are removed.
+ * <p>
+ * The cache is only a shortcut, so when it can't be read or written the
+ * files are filtered as usual.
+ */
+final class FilterCache
+{
+    private static final String VERSION = "1";
+    private static final String LOCK_FILENAME = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String ENCODING = "UTF-8";
+    private static final int MAX_EXPRESSIONS = 10000;
+    private static final int MAX_EXPRESSION_LENGTH = 4096;
+    private static final long TEMP_FILE_AGE = 60 * 60 * 1000;
+    private static final Comparator<File> OLDEST_FIRST = new Comparator<File>()
+    {
+        @Override
+        public int compare( final File one, final File other )
+        {
+            long difference = one.lastModified() - other.lastModified();
+            return difference < 0 ? -1 : difference > 0 ? 1 : one.compareTo( other );
+        }
+    };
+
+    private final File directory;
+    private final long maxSize;
+    private final Map<String, String> values = new ConcurrentHashMap<String, String>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    /**
+     * @param maxSize the size in bytes to keep the cache below.
+     */
+    FilterCache( final File directory, final long maxSize )
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @param hash the content hash of the source file.
+     * @return the key of the filtered file in the cache, or null if it can't
+     *         be cached.
+     */
+    String key( final File source, final String hash, final DocsFilter filter )
+    {
+        SortedSet<String> expressions;
+        try
+        {
+            expressions = expressions( source, filter.getEncoding() );
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        if ( expressions == null )
+        {
+            return null;
+        }
+        MessageDigest digest = DocsManifest.newDigest();
+        try
+        {
+            update( digest, VERSION );
+            update( digest, hash );
+            update( digest, filter.getEncoding() );
+            for ( String expression : expressions )
+            {
+                update( digest, expression );
+                update( digest, resolve( expression, filter ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+        return DocsManifest.toHex( digest.digest() );
+    }
+
+    /**
+     * Copies the cached file to the destination, and marks it as recently
+     * used.
+     * 
+     * @return false if the file isn't in the cache.
+     */
+    boolean get( final String key, final File destination )
+    {
+        File file = file( key );
+        try
+        {
+            if ( file.isFile() )
+            {
+                Files.copy( file.toPath(), destination.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING );
+                file.setLastModified( System.currentTimeMillis() );
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        catch ( IOException e )
+        {
+            // removed by another build in the meantime
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    void put( final String key, final File filtered )
+    {
+        File file = file( key );
+        if ( file.isFile() )
+        {
+            return;
+        }
+        File parent = file.getParentFile();
+        File temp = null;
+        try
+        {
+            if ( !parent.isDirectory() && !parent.mkdirs()
+                 && !parent.isDirectory() )
+            {
+                return;
+            }
+            temp = File.createTempFile( key, TEMP_SUFFIX, parent );
+            Files.copy( filtered.toPath(), temp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING );
+            PublishLock.replace( temp, file );
+            stored.addAndGet( file.length() );
+        }
+        catch ( IOException e )
+        {
+            // another build stored the same entry, or the cache isn't usable
+        }
+        finally
+        {
+            if ( temp != null )
+            {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its size.
+     * Only one build at a time does this, the others leave it to that one.
+     */
+    void evict() throws IOException
+    {
+        if ( stored.get() == 0 || !directory.isDirectory() )
+        {
+            return;
+        }
+        RandomAccessFile lockFile = new RandomAccessFile( new File( directory,
+                LOCK_FILENAME ), "rw" );
+        try
+        {
+            FileChannel channel = lockFile.getChannel();
+            FileLock lock = channel.tryLock();
+            if ( lock == null )
+            {
+                return;
+            }
+            try
+            {
+                evictLocked();
+            }
+            finally
+            {
+                lock.release();
+            }
+        }
+        finally
+        {
+            lockFile.close();
+        }
+    }
+
+    private void evictLocked()
+    {
+        List<File> entries = new ArrayList<File>();
+        long size = 0;
+        long now = System.currentTimeMillis();
+        File[] parents = directory.listFiles();
+        for ( File parent : parents == null ? new File[0] : parents )
+        {
+            File[] files = parent.listFiles();
+            for ( File file : files == null ? new File[0] : files )
+            {
+                if ( file.getName()
+                        .endsWith( TEMP_SUFFIX ) )
+                {
+                    // left behind by a build that was killed
+                    if ( now - file.lastModified() > TEMP_FILE_AGE )
+                    {
+                        file.delete();
+                    }
+                    continue;
+                }
+                entries.add( file );
+                size += file.length();
+            }
+        }
+        if ( size <= maxSize )
+        {
+            return;
+        }
+        Collections.sort( entries, OLDEST_FIRST );
+        for ( File file : entries )
+        {
+            if ( size <= maxSize )
+            {
+                break;
+            }
+            long length = file.length();
+            if ( file.delete() )
+            {
+                size -= length;
+            }
+        }
+    }
+
+    private File file( final String key )
+    {
+        return new File( new File( directory, key.substring( 0, 2 ) ),
+                key.substring( 2 ) );
+    }
+
+    /**
+     * Finds everything in the file which the filtering could take as an
+     * expression: from each <code>${</code> to the next <code>}</code> and
+     * between each <code>@</code> and the next one, on the same line. This
+     * may be more than the filtering picks up, but never less.
+     * 
+     * @return the expressions, or null if there are too many of them or they
+     *         are nested.
+     */
+    static SortedSet<String> expressions( final File source,
+            final String encoding ) throws IOException
+    {
+        SortedSet<String> expressions = new TreeSet<String>();
+        Reader reader = new BufferedReader( new InputStreamReader(
+                new FileInputStream( source ), encoding ) );
+        try
+        {
+            StringBuilder line = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ( ( count = reader.read( buffer ) ) != -1 )
+            {
+                int start = 0;
+                for ( int i = 0; i < count; i++ )
+                {
+                    if ( buffer[i] == '\n' )
+                    {
+                        line.append( buffer, start, i - start );
+                        if ( !addExpressions( line, expressions ) )
+                        {
+                            return null;
+                        }
+                        line.setLength( 0 );
+                        start = i + 1;
+                    }
+                }
+                line.append( buffer, start, count - start );
+            }
+            return addExpressions( line, expressions ) ? expressions : null;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static boolean addExpressions( final CharSequence line,
+            final SortedSet<String> expressions )
+    {
+        String text = line.toString();
+        int start = -1;
+        while ( ( start = text.indexOf( "${", start + 1 ) ) != -1 )
+        {
+            int end = text.indexOf( '}', start + 2 );
+            if ( end == -1 )
+            {
+                break;
+            }
+            if ( text.lastIndexOf( "${", end ) > start )
+            {
+                // a nested expression like ${foo.${bar}} doesn't resolve
+                // the same on its own
+                return false;
+            }
+            if ( !add( text.substring( start, end + 1 ), expressions ) )
+            {
+                return false;
+            }
+        }
+        start = -1;
+        while ( ( start = text.indexOf( '@', start + 1 ) ) != -1 )
+        {
+            int end = text.indexOf( '@', start + 1 );
+            if ( end == -1 )
+            {
+                break;
+            }
+            if ( !add( text.substring( start, end + 1 ), expressions ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean add( final String expression,
+            final SortedSet<String> expressions )
+    {
+        if ( expression.length() > MAX_EXPRESSION_LENGTH )
+        {
+            return false;
+        }
+        expressions.add( expression );
+        return expressions.size() <= MAX_EXPRESSIONS;
+    }
+
+    /**
+     * Filters the expression on its own; the values don't change during a
+     * build, so each expression is only resolved once.
+     */
+    private String resolve( final String expression, final DocsFilter filter )
+            throws IOException
+    {
+        String value = values.get( expression );
+        if ( value != null )
+        {
+            return value;
+        }
+        Reader reader = new StringReader( expression );
+        for ( FileUtils.FilterWrapper wrapper : filter.getWrappers() )
+        {
+            reader = wrapper.getReader( reader );
+        }
+        StringBuilder resolved = new StringBuilder();
+        try
+        {
+            char[] buffer = new char[256];
+            int count;
+            while ( ( count = reader.read( buffer ) ) != -1 )
+            {
+                resolved.append( buffer, 0, count );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        value = resolved.toString();
+        values.put( expression, value );
+        return value;
+    }
+
+    private static void update( final MessageDigest digest, final String value )
+            throws IOException
+    {
+        digest.update( value.getBytes( ENCODING ) );
+        digest.update( (byte) 0 );
+    }
+}
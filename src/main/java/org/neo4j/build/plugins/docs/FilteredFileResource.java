@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+
+/**
+ * A source file which is filtered while the archiver reads it, so the
+ * filtered contents never hit the disk.
+ */
+final class FilteredFileResource extends PlexusIoFileResource
+{
+    private final DocsFilter docsFilter;
+
+    FilteredFileResource( final File source, final String name,
+            final DocsFilter docsFilter )
+    {
+        super( source, name );
+        this.docsFilter = docsFilter;
+    }
+
+    @Override
+    public InputStream getContents() throws IOException
+    {
+        return docsFilter.open( getFile() );
+    }
+
+    @Override
+    public long getSize()
+    {
+        return UNKNOWN_RESOURCE_SIZE;
+    }
+}
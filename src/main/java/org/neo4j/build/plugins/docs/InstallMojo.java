@@ -31,17 +31,27 @@ import static org.twdata.maven.mojoexecutor.MojoExecutor.plugin;
 import static org.twdata.maven.mojoexecutor.MojoExecutor.version;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.model.Resource;
 import org.apache.maven.plugin.BuildPluginManager;
 import org.apache.maven.plugin.MojoExecutionException;
 
 /**
- * Goal which installs docs. Note: requires Maven 3 for plugin management (as it
- * uses the install plugin to install the file).
+ * Goal which installs docs. The docs jar and the pom are copied into the local
+ * repository directly, or installed through the install plugin when
+ * useInstallPlugin is set. Note: requires Maven 3 for plugin management (as it
+ * runs the compiler and surefire plugins for the tests, and optionally the
+ * install plugin).
  * 
  * @goal install
  * @requiresDirectInvocation
  * @requiresDependencyResolution test
+ * @threadSafe true
  */
 public class InstallMojo extends AbstractDocsMojo
 {
@@ -52,11 +62,43 @@ public class InstallMojo extends AbstractDocsMojo
     private static final String COMPILE_PLUGIN_VERSION = "2.3.2";
 
     /**
-     * Test to execute.
+     * Test to execute, several tests can be given separated by commas.
      * 
      * @parameter expression="${test}"
      */
     private String test;
+    /**
+     * Tests to execute, together with the test parameter. All tests are run in
+     * one surefire execution.
+     * 
+     * @parameter
+     */
+    private List<String> tests;
+    /**
+     * Set to "true" to run the tests even when the test sources, the test
+     * class path and the docs didn't change since the last successful run.
+     * 
+     * @parameter expression="${forceTest}" default-value="false"
+     */
+    private boolean forceTest;
+
+    /**
+     * Set to "true" to install through the maven-install-plugin, instead of
+     * copying the docs jar and the pom into the local repository directly.
+     * The direct install writes maven-metadata-local.xml and
+     * _remote.repositories the same way, but only works with the default
+     * local repository layout, and doesn't run repository listeners or
+     * extensions which hook into the install.
+     * 
+     * @parameter expression="${useInstallPlugin}" default-value="false"
+     */
+    private boolean useInstallPlugin;
+    /**
+     * @parameter default-value="${localRepository}"
+     * @readonly
+     * @required
+     */
+    private ArtifactRepository localRepository;
 
     /**
      * The Maven PluginManager Object
@@ -69,15 +111,130 @@ public class InstallMojo extends AbstractDocsMojo
     @Override
     public void execute() throws MojoExecutionException
     {
+        DocsReport report = createReport( "install" );
+        String testList = getTests();
+        if ( testList.length() > 0 )
+        {
+            DocsReport.Stage stage = report.start( "test" );
+            stage.put( "test", testList );
+            File fingerprintFile = new File( project.getBuild()
+                    .getDirectory(), TestFingerprint.FILENAME );
+            if ( !forceTest
+                 && fingerprint( testList ).equals(
+                         TestFingerprint.read( fingerprintFile ) ) )
+            {
+                getLog().info( "Tests and docs are up to date, not executing: "
+                               + testList );
+                stage.put( "upToDate", true );
+            }
+            else
+            {
+                getLog().info( "Preparing to execute test: " + testList );
+                DocsManifest.delete( fingerprintFile );
+                executeTest( testList );
+                writeFingerprint( fingerprintFile, fingerprint( testList ) );
+            }
+            stage.stop();
+        }
+        assembleInstall( report );
+        writeReport( report );
+    }
+
+    /**
+     * @return the tests to run, separated by commas.
+     */
+    private String getTests()
+    {
+        List<String> all = new ArrayList<String>();
         if ( test != null )
         {
-            getLog().info( "Preparing to execute test: " + test );
-            executeTest();
+            for ( String name : test.split( "," ) )
+            {
+                all.add( name );
+            }
         }
-        assembleInstall();
+        if ( tests != null )
+        {
+            all.addAll( tests );
+        }
+        StringBuilder testList = new StringBuilder();
+        for ( String name : all )
+        {
+            if ( name != null && name.trim()
+                    .length() > 0 )
+            {
+                if ( testList.length() > 0 )
+                {
+                    testList.append( ',' );
+                }
+                testList.append( name.trim() );
+            }
+        }
+        return testList.toString();
     }
 
-    private void executeTest() throws MojoExecutionException
+    /**
+     * Sums up the tests, the files they are compiled and run from and the
+     * docs they write.
+     */
+    private String fingerprint( final String testList )
+            throws MojoExecutionException
+    {
+        TestFingerprint fingerprint = new TestFingerprint();
+        fingerprint.add( "tests", testList );
+        try
+        {
+            fingerprint.addFiles( "pom", project.getFile() );
+            for ( String root : project.getTestCompileSourceRoots() )
+            {
+                fingerprint.addFiles( "testSources", new File( root ) );
+            }
+            for ( Resource resource : project.getTestResources() )
+            {
+                fingerprint.addFiles( "testResources", new File(
+                        resource.getDirectory() ) );
+            }
+            for ( String element : project.getTestClasspathElements() )
+            {
+                fingerprint.addFiles( "classpath", new File( element ) );
+            }
+            for ( File dir : getDocsDirectories() )
+            {
+                fingerprint.addFiles( "docs", dir );
+            }
+        }
+        catch ( DependencyResolutionRequiredException e )
+        {
+            throw new MojoExecutionException(
+                    "Could not get the test class path.", e );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException(
+                    "Could not check the test files.", e );
+        }
+        return fingerprint.get();
+    }
+
+    private void writeFingerprint( final File file, final String fingerprint )
+    {
+        try
+        {
+            if ( file.getParentFile()
+                    .isDirectory() )
+            {
+                TestFingerprint.write( file, fingerprint );
+            }
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Could not write the test fingerprint, the tests will run again: "
+                           + e.getMessage() );
+        }
+    }
+
+    private void executeTest( final String testList )
+            throws MojoExecutionException
     {
         executeMojo(
                 plugin( groupId( "org.apache.maven.plugins" ),
@@ -89,15 +246,20 @@ public class InstallMojo extends AbstractDocsMojo
                 plugin( groupId( "org.apache.maven.plugins" ),
                         artifactId( "maven-surefire-plugin" ),
                         version( SUREFIRE_PLUGIN_VERSION ) ), goal( "test" ),
-                configuration( element( name( "test" ), test ) ),
+                configuration( element( name( "test" ), testList ) ),
                 executionEnvironment( project, session, pluginManager ) );
     }
 
-    private void assembleInstall() throws MojoExecutionException
+    private void assembleInstall( final DocsReport report )
+            throws MojoExecutionException
     {
-        final File destinationFile = new DocsAssembler( sourceDirectories,
-                filter, getLog(), session, project, projectHelper,
-                resourceFiltering ).doAssembly();
+        DocsAssembler assembler = createAssembler( report );
+        if ( DocsAssembler.DIRECTORY.equals( assembler.getFormat() ) )
+        {
+            throw new MojoExecutionException(
+                    "Docs in the dir format can't be installed, use another format." );
+        }
+        final File destinationFile = assembler.doAssembly();
 
         final String file = destinationFile.getAbsolutePath();
         final String pomFile = new File( project.getBasedir(), "pom.xml" ).getAbsolutePath();
@@ -105,8 +267,19 @@ public class InstallMojo extends AbstractDocsMojo
         final String artifactId = project.getArtifactId();
         final String version = project.getVersion();
         final String classifier = DocsAssembler.CLASSIFIER;
-        final String packaging = DocsAssembler.TYPE;
+        final String packaging = assembler.getFormat();
         final String generatePom = "false";
+        DocsReport.Stage stage = report.start( "install" );
+        if ( !useInstallPlugin )
+        {
+            LocalInstaller installer = new LocalInstaller( localRepository );
+            install( destinationFile, installer, groupId, artifactId, version,
+                    packaging, classifier, stage );
+            install( new File( pomFile ), installer, groupId, artifactId,
+                    version, "pom", null, stage );
+            stage.stop();
+            return;
+        }
         executeMojo(
                 plugin( groupId( "org.apache.maven.plugins" ),
                         artifactId( "maven-install-plugin" ),
@@ -121,5 +294,37 @@ public class InstallMojo extends AbstractDocsMojo
                         element( name( "packaging" ), packaging ),
                         element( name( "generatePom" ), generatePom ) ),
                 executionEnvironment( project, session, pluginManager ) );
+        stage.stop();
+    }
+
+    private void install( final File source, final LocalInstaller installer,
+            final String groupId, final String artifactId,
+            final String version, final String type, final String classifier,
+            final DocsReport.Stage stage ) throws MojoExecutionException
+    {
+        File destination = installer.getFile( groupId, artifactId, version,
+                type, classifier );
+        try
+        {
+            boolean copied = LocalInstaller.install( source, destination );
+            installer.recordInstall( groupId, artifactId, version, type,
+                    classifier );
+            if ( copied )
+            {
+                getLog().info( "Installing " + source + " to " + destination );
+                stage.add( "installed", 1 );
+            }
+            else
+            {
+                getLog().info( "Already installed: " + destination );
+                stage.add( "upToDate", 1 );
+            }
+        }
+        catch ( IOException e )
+        {
+            getLog().error( e );
+            throw new MojoExecutionException( "Could not install: " + source,
+                    e );
+        }
     }
 }
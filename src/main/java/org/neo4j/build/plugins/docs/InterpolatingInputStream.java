@@ -0,0 +1,505 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.List;
+import java.util.Queue;
+
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Filters a stream of bytes in an ASCII compatible encoding. Bytes are copied
+ * as they are up to the first <code>$</code> or <code>@</code> of a line; only
+ * the rest of such lines is decoded and run through the filter readers. As the
+ * filtering never looks past the end of a line, the result is the same as
+ * filtering everything.
+ * <p>
+ * Only bytes which decode and encode back to themselves are copied, anything
+ * else, like malformed UTF-8, also ends the copying for the line. The rest of
+ * the line is then replaced the same way the readers replace it.
+ */
+final class InterpolatingInputStream extends InputStream
+{
+    /**
+     * Buffers which are reused from one file to the next.
+     */
+    static final class Buffers
+    {
+        final byte[] input;
+        final CharsetDecoder decoder;
+        final CharsetEncoder encoder;
+        /**
+         * The bytes which can be copied as they are.
+         */
+        final boolean[] plain = new boolean[256];
+        final boolean utf8;
+        ByteBuffer segment;
+        CharBuffer chars;
+        char[] filtered;
+        ByteBuffer output;
+
+        Buffers( final Charset charset, final int size )
+        {
+            input = new byte[size];
+            // the same settings as InputStreamReader and OutputStreamWriter
+            decoder = charset.newDecoder()
+                    .onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE );
+            encoder = charset.newEncoder()
+                    .onMalformedInput( CodingErrorAction.REPLACE )
+                    .onUnmappableCharacter( CodingErrorAction.REPLACE );
+            segment = ByteBuffer.allocate( 256 );
+            chars = CharBuffer.allocate( 256 );
+            filtered = new char[256];
+            output = ByteBuffer.allocate( 256 );
+            utf8 = "UTF-8".equals( charset.name() );
+            for ( int b = 0; b < plain.length; b++ )
+            {
+                try
+                {
+                    ByteBuffer bytes = ByteBuffer.wrap( new byte[] { (byte) b } );
+                    plain[b] = bytes.equals( encoder.encode( decoder.decode( bytes ) )
+                            .rewind() );
+                }
+                catch ( CharacterCodingException e )
+                {
+                    // can't happen when replacing
+                }
+            }
+        }
+    }
+
+    private final InputStream in;
+    private final List<FileUtils.FilterWrapper> wrappers;
+    private final Buffers buffers;
+    private final Queue<Buffers> pool;
+    private final SegmentReader segmentReader = new SegmentReader();
+    private Reader filterReader;
+    private int position;
+    private int limit;
+    private boolean eof;
+    private boolean inSegment;
+    private boolean closed;
+    private byte[] chunk;
+    private int chunkOffset;
+    private int chunkLength;
+
+    /**
+     * @param pool where the buffers are returned to when the stream is
+     *            closed, may be null.
+     */
+    InterpolatingInputStream( final InputStream in,
+            final List<FileUtils.FilterWrapper> wrappers,
+            final Buffers buffers, final Queue<Buffers> pool )
+    {
+        this.in = in;
+        this.wrappers = wrappers;
+        this.buffers = buffers;
+        this.pool = pool;
+        buffers.output.clear()
+                .flip();
+        buffers.segment.clear();
+    }
+
+    /**
+     * @return true if the encoding can be filtered this way.
+     */
+    static boolean supports( final String encoding )
+    {
+        if ( !TokenScanner.canScan( encoding ) )
+        {
+            return false;
+        }
+        Charset charset = Charset.forName( encoding );
+        // newlines and delimiters are never part of a multi byte sequence
+        return "UTF-8".equals( charset.name() ) || charset.newEncoder()
+                .maxBytesPerChar() == 1;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] one = new byte[1];
+        return read( one, 0, 1 ) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read( final byte[] b, final int off, final int len )
+            throws IOException
+    {
+        if ( len == 0 )
+        {
+            return 0;
+        }
+        if ( !next( len ) )
+        {
+            return -1;
+        }
+        System.arraycopy( chunk, chunkOffset, b, off, chunkLength );
+        return chunkLength;
+    }
+
+    /**
+     * Writes the rest of the filtered contents without copying them to an
+     * intermediate buffer first.
+     */
+    void copyTo( final OutputStream out ) throws IOException
+    {
+        while ( next( Integer.MAX_VALUE ) )
+        {
+            out.write( chunk, chunkOffset, chunkLength );
+        }
+    }
+
+    /**
+     * Points the chunk fields at the next part of the output, at most max
+     * bytes long.
+     * 
+     * @return false at the end of the output.
+     */
+    private boolean next( final int max ) throws IOException
+    {
+        byte[] input = buffers.input;
+        while ( true )
+        {
+            ByteBuffer output = buffers.output;
+            if ( output.hasRemaining() )
+            {
+                chunk = output.array();
+                chunkOffset = output.position();
+                chunkLength = Math.min( max, output.remaining() );
+                output.position( chunkOffset + chunkLength );
+                return true;
+            }
+            if ( position == limit )
+            {
+                if ( eof )
+                {
+                    if ( buffers.segment.position() > 0 )
+                    {
+                        filterSegment();
+                        continue;
+                    }
+                    return false;
+                }
+                int count = in.read( input );
+                if ( count == -1 )
+                {
+                    eof = true;
+                }
+                else
+                {
+                    position = 0;
+                    limit = count;
+                }
+                continue;
+            }
+            if ( !inSegment )
+            {
+                int end = limit - position > max ? position + max : limit;
+                int i = position;
+                while ( i < end && input[i] != '$' && input[i] != '@' )
+                {
+                    if ( buffers.plain[input[i] & 0xff] )
+                    {
+                        i++;
+                        continue;
+                    }
+                    int length = buffers.utf8 ? sequenceLength( input, i, end )
+                            : 0;
+                    if ( length == 0 )
+                    {
+                        break;
+                    }
+                    i += length;
+                }
+                if ( i > position )
+                {
+                    chunk = input;
+                    chunkOffset = position;
+                    chunkLength = i - position;
+                    position = i;
+                    return true;
+                }
+                inSegment = true;
+            }
+            int i = position;
+            while ( i < limit && input[i] != '\n' )
+            {
+                i++;
+            }
+            boolean lineEnd = i < limit;
+            if ( lineEnd )
+            {
+                i++;
+            }
+            appendSegment( input, position, i - position );
+            position = i;
+            if ( lineEnd )
+            {
+                filterSegment();
+                inSegment = false;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            in.close();
+        }
+        finally
+        {
+            if ( !closed )
+            {
+                closed = true;
+                if ( pool != null )
+                {
+                    pool.add( buffers );
+                }
+            }
+        }
+    }
+
+    private void appendSegment( final byte[] bytes, final int offset,
+            final int length )
+    {
+        if ( buffers.segment.remaining() < length )
+        {
+            buffers.segment = grow( buffers.segment, length );
+        }
+        buffers.segment.put( bytes, offset, length );
+    }
+
+    /**
+     * Decodes the collected part of the line, filters it and encodes the
+     * result into the output buffer.
+     */
+    private void filterSegment() throws IOException
+    {
+        ByteBuffer segment = buffers.segment;
+        segment.flip();
+        CharsetDecoder decoder = buffers.decoder;
+        decoder.reset();
+        CharBuffer chars = buffers.chars;
+        chars.clear();
+        while ( true )
+        {
+            CoderResult result = decoder.decode( segment, chars, true );
+            if ( result.isOverflow() )
+            {
+                chars = grow( chars, segment.remaining() + 16 );
+                continue;
+            }
+            result = decoder.flush( chars );
+            if ( result.isOverflow() )
+            {
+                chars = grow( chars, 16 );
+                continue;
+            }
+            break;
+        }
+        buffers.chars = chars;
+        chars.flip();
+        segment.clear();
+
+        if ( filterReader == null )
+        {
+            Reader reader = segmentReader;
+            for ( FileUtils.FilterWrapper wrapper : wrappers )
+            {
+                reader = wrapper.getReader( reader );
+            }
+            filterReader = reader;
+        }
+        segmentReader.chars = chars;
+        char[] filtered = buffers.filtered;
+        int length = 0;
+        int count;
+        while ( ( count = filterReader.read( filtered, length, filtered.length
+                                                               - length ) ) != -1 )
+        {
+            length += count;
+            if ( length == filtered.length )
+            {
+                char[] larger = new char[filtered.length * 2];
+                System.arraycopy( filtered, 0, larger, 0, length );
+                filtered = larger;
+            }
+        }
+        buffers.filtered = filtered;
+
+        CharBuffer input = CharBuffer.wrap( filtered, 0, length );
+        CharsetEncoder encoder = buffers.encoder;
+        encoder.reset();
+        ByteBuffer output = buffers.output;
+        output.clear();
+        while ( true )
+        {
+            CoderResult result = encoder.encode( input, output, true );
+            if ( result.isOverflow() )
+            {
+                output = grow( output, input.remaining() + 16 );
+                continue;
+            }
+            result = encoder.flush( output );
+            if ( result.isOverflow() )
+            {
+                output = grow( output, 16 );
+                continue;
+            }
+            break;
+        }
+        output.flip();
+        buffers.output = output;
+    }
+
+    /**
+     * @return the length of the well-formed UTF-8 sequence at offset, or 0 if
+     *         it is malformed or doesn't end before limit.
+     */
+    private static int sequenceLength( final byte[] bytes, final int offset,
+            final int limit )
+    {
+        int first = bytes[offset] & 0xff;
+        int length;
+        // the range of the second byte rules out overlong sequences,
+        // surrogates and code points past U+10FFFF
+        int min = 0x80;
+        int max = 0xbf;
+        if ( first >= 0xc2 && first <= 0xdf )
+        {
+            length = 2;
+        }
+        else if ( first >= 0xe0 && first <= 0xef )
+        {
+            length = 3;
+            if ( first == 0xe0 )
+            {
+                min = 0xa0;
+            }
+            else if ( first == 0xed )
+            {
+                max = 0x9f;
+            }
+        }
+        else if ( first >= 0xf0 && first <= 0xf4 )
+        {
+            length = 4;
+            if ( first == 0xf0 )
+            {
+                min = 0x90;
+            }
+            else if ( first == 0xf4 )
+            {
+                max = 0x8f;
+            }
+        }
+        else
+        {
+            return 0;
+        }
+        if ( limit - offset < length )
+        {
+            return 0;
+        }
+        int second = bytes[offset + 1] & 0xff;
+        if ( second < min || second > max )
+        {
+            return 0;
+        }
+        for ( int i = offset + 2; i < offset + length; i++ )
+        {
+            if ( ( bytes[i] & 0xc0 ) != 0x80 )
+            {
+                return 0;
+            }
+        }
+        return length;
+    }
+
+    private static ByteBuffer grow( final ByteBuffer buffer, final int needed )
+    {
+        ByteBuffer larger = ByteBuffer.allocate( Math.max(
+                buffer.capacity() * 2, buffer.position() + needed ) );
+        buffer.flip();
+        larger.put( buffer );
+        return larger;
+    }
+
+    private static CharBuffer grow( final CharBuffer buffer, final int needed )
+    {
+        CharBuffer larger = CharBuffer.allocate( Math.max(
+                buffer.capacity() * 2, buffer.position() + needed ) );
+        buffer.flip();
+        larger.put( buffer );
+        return larger;
+    }
+
+    /**
+     * Gives the filter readers one segment at a time, and signals the end of
+     * the input after each of them.
+     */
+    private static final class SegmentReader extends Reader
+    {
+        CharBuffer chars;
+
+        @Override
+        public int read( final char[] cbuf, final int off, final int len )
+        {
+            if ( chars == null || !chars.hasRemaining() )
+            {
+                return -1;
+            }
+            int count = Math.min( len, chars.remaining() );
+            chars.get( cbuf, off, count );
+            return count;
+        }
+
+        @Override
+        public int read()
+        {
+            if ( chars == null || !chars.hasRemaining() )
+            {
+                return -1;
+            }
+            return chars.get();
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
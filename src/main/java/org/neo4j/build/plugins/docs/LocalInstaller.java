@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.Properties;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.ArtifactUtils;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.Snapshot;
+import org.apache.maven.artifact.repository.metadata.SnapshotVersion;
+import org.apache.maven.artifact.repository.metadata.Versioning;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Writer;
+import org.codehaus.plexus.util.ReaderFactory;
+import org.codehaus.plexus.util.WriterFactory;
+import org.codehaus.plexus.util.xml.pull.XmlPullParserException;
+
+/**
+ * Installs files into the local repository by copying them next to their
+ * place in the repository and then moving them in, so a build reading the
+ * repository at the same time never sees half a file. Files which are already
+ * installed with the same contents are left alone.
+ * <p>
+ * The installed files are recorded the way the repository system does for
+ * an install: in maven-metadata-local.xml next to the versions of the
+ * artifact, for snapshots in maven-metadata-local.xml next to the files as
+ * well, and in _remote.repositories as installed locally. Like the repository
+ * system, no checksums are written for the local repository.
+ */
+final class LocalInstaller
+{
+    static final String METADATA_FILENAME = "maven-metadata-local.xml";
+    static final String REMOTE_REPOSITORIES_FILENAME = "_remote.repositories";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String SNAPSHOT_MODEL_VERSION = "1.1.0";
+    private static final String REMOTE_REPOSITORIES_COMMENT = "NOTE: This is an internal implementation file, its format can be changed without prior notice.";
+
+    private final ArtifactRepository localRepository;
+
+    LocalInstaller( final ArtifactRepository localRepository )
+    {
+        this.localRepository = localRepository;
+    }
+
+    /**
+     * @return the file the artifact has in the local repository.
+     */
+    File getFile( final String groupId, final String artifactId,
+            final String version, final String type, final String classifier )
+    {
+        Artifact artifact = new DefaultArtifact( groupId, artifactId, version,
+                null, type, classifier, new DefaultArtifactHandler( type ) );
+        return new File( localRepository.getBasedir(),
+                localRepository.pathOf( artifact ) );
+    }
+
+    /**
+     * Records the file of the artifact as installed, after it was copied to
+     * {@link #getFile}; also when it was installed with the same contents
+     * before.
+     */
+    void recordInstall( final String groupId, final String artifactId,
+            final String version, final String type, final String classifier )
+            throws IOException
+    {
+        File file = getFile( groupId, artifactId, version, type, classifier );
+        File versionDirectory = file.getParentFile();
+
+        File artifactMetadata = new File( versionDirectory.getParentFile(),
+                METADATA_FILENAME );
+        Metadata versions = readMetadata( artifactMetadata );
+        versions.setGroupId( groupId );
+        versions.setArtifactId( artifactId );
+        Versioning versioning = versioning( versions );
+        if ( !versioning.getVersions()
+                .contains( version ) )
+        {
+            versioning.addVersion( version );
+        }
+        versioning.setLatest( version );
+        if ( !ArtifactUtils.isSnapshot( version ) )
+        {
+            versioning.setRelease( version );
+        }
+        versioning.updateTimestamp();
+        writeMetadata( versions, artifactMetadata );
+
+        if ( ArtifactUtils.isSnapshot( version ) )
+        {
+            File snapshotMetadata = new File( versionDirectory,
+                    METADATA_FILENAME );
+            Metadata snapshots = readMetadata( snapshotMetadata );
+            snapshots.setModelVersion( SNAPSHOT_MODEL_VERSION );
+            snapshots.setGroupId( groupId );
+            snapshots.setArtifactId( artifactId );
+            snapshots.setVersion( version );
+            versioning = versioning( snapshots );
+            Snapshot snapshot = new Snapshot();
+            snapshot.setLocalCopy( true );
+            versioning.setSnapshot( snapshot );
+            versioning.updateTimestamp();
+            String extension = new DefaultArtifactHandler( type ).getExtension();
+            String classifierName = classifier == null ? "" : classifier;
+            for ( Iterator<SnapshotVersion> existing = versioning.getSnapshotVersions()
+                    .iterator(); existing.hasNext(); )
+            {
+                SnapshotVersion snapshotVersion = existing.next();
+                if ( classifierName.equals( snapshotVersion.getClassifier() )
+                     && extension.equals( snapshotVersion.getExtension() ) )
+                {
+                    existing.remove();
+                }
+            }
+            SnapshotVersion snapshotVersion = new SnapshotVersion();
+            snapshotVersion.setClassifier( classifierName );
+            snapshotVersion.setExtension( extension );
+            snapshotVersion.setVersion( version );
+            snapshotVersion.setUpdated( versioning.getLastUpdated() );
+            versioning.addSnapshotVersion( snapshotVersion );
+            writeMetadata( snapshots, snapshotMetadata );
+        }
+
+        File remoteRepositories = new File( versionDirectory,
+                REMOTE_REPOSITORIES_FILENAME );
+        Properties repositories = new Properties();
+        if ( remoteRepositories.isFile() )
+        {
+            InputStream in = new FileInputStream( remoteRepositories );
+            try
+            {
+                repositories.load( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        // an empty repository id stands for a local install
+        if ( !"".equals( repositories.getProperty( file.getName() + ">" ) ) )
+        {
+            repositories.setProperty( file.getName() + ">", "" );
+            File temp = newTempFile( remoteRepositories );
+            try
+            {
+                OutputStream out = new FileOutputStream( temp );
+                try
+                {
+                    repositories.store( out, REMOTE_REPOSITORIES_COMMENT );
+                }
+                finally
+                {
+                    out.close();
+                }
+                PublishLock.replace( temp, remoteRepositories );
+            }
+            finally
+            {
+                delete( temp );
+            }
+        }
+    }
+
+    private static Versioning versioning( final Metadata metadata )
+    {
+        if ( metadata.getVersioning() == null )
+        {
+            metadata.setVersioning( new Versioning() );
+        }
+        return metadata.getVersioning();
+    }
+
+    /**
+     * @return the metadata in the file, or empty metadata if there is none
+     *         or it can't be parsed, the same as the repository system does.
+     */
+    private static Metadata readMetadata( final File file ) throws IOException
+    {
+        if ( !file.isFile() )
+        {
+            return new Metadata();
+        }
+        Reader reader = ReaderFactory.newXmlReader( file );
+        try
+        {
+            return new MetadataXpp3Reader().read( reader, false );
+        }
+        catch ( XmlPullParserException e )
+        {
+            return new Metadata();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static void writeMetadata( final Metadata metadata,
+            final File file ) throws IOException
+    {
+        File temp = newTempFile( file );
+        try
+        {
+            Writer writer = WriterFactory.newXmlWriter( temp );
+            try
+            {
+                new MetadataXpp3Writer().write( writer, metadata );
+            }
+            finally
+            {
+                writer.close();
+            }
+            PublishLock.replace( temp, file );
+        }
+        finally
+        {
+            delete( temp );
+        }
+    }
+
+    /**
+     * @return a new file next to the given one, to move in its place.
+     */
+    private static File newTempFile( final File file ) throws IOException
+    {
+        File directory = file.getParentFile();
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+        {
+            throw new IOException( "Could not create: "
+                                   + directory.getAbsolutePath() );
+        }
+        return File.createTempFile( file.getName(), ".tmp", directory );
+    }
+
+    private static void delete( final File temp )
+    {
+        if ( temp.exists() )
+        {
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return false if the destination already had the same contents.
+     */
+    static boolean install( final File source, final File destination )
+            throws IOException
+    {
+        if ( destination.isFile() && destination.length() == source.length()
+             && sha1( destination ).equals( sha1( source ) ) )
+        {
+            return false;
+        }
+        File temp = newTempFile( destination );
+        try
+        {
+            Files.copy( source.toPath(), temp.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING );
+            PublishLock.replace( temp, destination );
+        }
+        finally
+        {
+            delete( temp );
+        }
+        return true;
+    }
+
+    static String sha1( final File file ) throws IOException
+    {
+        MessageDigest digest = DocsManifest.newDigest();
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                digest.update( buffer, 0, count );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return DocsManifest.toHex( digest.digest() );
+    }
+}
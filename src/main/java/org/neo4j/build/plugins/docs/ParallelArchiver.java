@@ -0,0 +1,537 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.codehaus.plexus.components.io.resources.PlexusIoResource;
+
+/**
+ * Creates a jar file with the entries deflated on a pool of threads. The
+ * compressed entries are written by a single thread, in the order of the
+ * entry names, so the archive doesn't depend on which thread finished first.
+ * Large entries are compressed by the writing thread, to keep the memory use
+ * down. When updating, entries which didn't change since the last archive was
+ * written are copied from it as they are, which gives the same archive as
+ * compressing everything again.
+ */
+final class ParallelArchiver
+{
+    static final String MANIFEST_DIRECTORY = "META-INF/";
+    static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
+    /**
+     * Entries larger than this are not compressed in memory.
+     */
+    static final long MAX_BUFFERED_SIZE = 1024 * 1024;
+    private static final int PENDING_PER_THREAD = 4;
+    private static final String REPRODUCIBLE_CREATED_BY = "docs-maven-plugin";
+    private static final TimeZone UTC = TimeZone.getTimeZone( "UTC" );
+
+    private final int threads;
+    private final Map<String, Integer> levels;
+    private final int defaultLevel;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private long timestamp = -1;
+    private Map<String, String> hashes;
+    private File previousArchive;
+    private String fingerprint;
+    private int reused;
+    private boolean jar = true;
+    private long storeAbove = -1;
+
+    /**
+     * @param levels compression level by lower case file extension, 0 means
+     *            the entry is stored.
+     */
+    ParallelArchiver( final int threads, final Map<String, Integer> levels,
+            final int defaultLevel )
+    {
+        this.threads = threads;
+        this.levels = levels;
+        this.defaultLevel = defaultLevel;
+    }
+
+    /**
+     * Makes the archive reproducible: all entries get the given modification
+     * time, stored as UTC, and the manifest doesn't mention the JDK.
+     */
+    void setTimestamp( final long timestamp )
+    {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * When set to false, a plain zip file is written, without the manifest.
+     */
+    void setJar( final boolean jar )
+    {
+        this.jar = jar;
+    }
+
+    /**
+     * Files larger than the given size are stored without compression, and
+     * copied into the archive by the file system.
+     * 
+     * @param size the size in bytes, or -1 to compress files of any size.
+     */
+    void setStoreAbove( final long size )
+    {
+        this.storeAbove = size;
+    }
+
+    /**
+     * Updates the existing archive instead of writing it from scratch: entries
+     * are copied from it if their content hash, modification time and
+     * compression level are the same as in the index written along with it.
+     * 
+     * @param hashes content hashes by entry name; entries without a hash are
+     *            always compressed again.
+     * @param fingerprint sums up everything else that affects the contents of
+     *            the entries, the index is only used if it has the same one.
+     */
+    void setUpdate( final Map<String, String> hashes, final String fingerprint )
+    {
+        this.hashes = hashes;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * The archive to copy unchanged entries from when updating, if it isn't
+     * the destination itself; the destination is then written directly.
+     */
+    void setPrevious( final File previousArchive )
+    {
+        this.previousArchive = previousArchive;
+    }
+
+    /**
+     * @return the number of entries copied from the previous archive.
+     */
+    int getReused()
+    {
+        return reused;
+    }
+
+    /**
+     * Parses a timestamp the way project.build.outputTimestamp is given,
+     * either as seconds since the epoch or in ISO 8601 format, like
+     * 2012-06-01T12:00:00Z.
+     * 
+     * @return the time in milliseconds, or -1 if no timestamp was given.
+     */
+    static long parseTimestamp( final String value )
+    {
+        // a single character is used to switch the timestamp off
+        if ( value == null || value.trim()
+                .length() < 2 )
+        {
+            return -1;
+        }
+        String timestamp = value.trim();
+        if ( timestamp.matches( "\\d+" ) )
+        {
+            return Long.parseLong( timestamp ) * 1000;
+        }
+        // SimpleDateFormat in Java 6 only knows offsets like +0100
+        String normalized = timestamp.replaceFirst( "Z$", "+0000" )
+                .replaceFirst( "([+-]\\d\\d):(\\d\\d)$", "$1$2" );
+        SimpleDateFormat format = new SimpleDateFormat(
+                normalized.indexOf( '.' ) == -1 ? "yyyy-MM-dd'T'HH:mm:ssZ"
+                        : "yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ENGLISH );
+        format.setLenient( false );
+        try
+        {
+            return format.parse( normalized )
+                    .getTime();
+        }
+        catch ( ParseException e )
+        {
+            throw new IllegalArgumentException( "Invalid timestamp: " + value
+                                                + ", expected seconds since the epoch or ISO 8601, like 2012-06-01T12:00:00Z." );
+        }
+    }
+
+    int getLevel( final String name )
+    {
+        int dot = name.lastIndexOf( '.' );
+        if ( dot != -1 && dot > name.lastIndexOf( '/' ) )
+        {
+            Integer level = levels.get( name.substring( dot + 1 )
+                    .toLowerCase( Locale.ENGLISH ) );
+            if ( level != null )
+            {
+                return level;
+            }
+        }
+        return defaultLevel;
+    }
+
+    /**
+     * @param resources the contents of the archive by entry name.
+     */
+    void createArchive( final SortedMap<String, ? extends PlexusIoResource> resources,
+            final File destFile ) throws IOException
+    {
+        reused = 0;
+        File source = previousArchive == null ? destFile : previousArchive;
+        ArchiveIndex previous = hashes == null ? null
+                : ArchiveIndex.read( source );
+        ArchiveIndex index = hashes == null ? null : new ArchiveIndex(
+                fingerprint );
+        ZipReader reader = null;
+        File target = destFile;
+        if ( previous != null && previous.getFingerprint()
+                .equals( fingerprint ) )
+        {
+            try
+            {
+                reader = new ZipReader( source );
+                if ( source.equals( destFile ) )
+                {
+                    target = File.createTempFile( destFile.getName(), ".tmp",
+                            destFile.getAbsoluteFile()
+                                    .getParentFile() );
+                }
+            }
+            catch ( IOException e )
+            {
+                // can't read the old archive, write it from scratch
+                if ( reader != null )
+                {
+                    reader.close();
+                    reader = null;
+                }
+            }
+        }
+        ArchiveIndex.delete( destFile );
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool( threads )
+                : null;
+        ZipWriter writer = null;
+        try
+        {
+            writer = timestamp == -1 ? new ZipWriter( target ) : new ZipWriter(
+                    target, UTC );
+            Set<String> directories = new HashSet<String>();
+            if ( jar )
+            {
+                long now = timestamp == -1 ? System.currentTimeMillis()
+                        : timestamp;
+                writer.writeDirectory( MANIFEST_DIRECTORY, now,
+                        ZipWriter.DEFAULT_DIRECTORY_MODE );
+                writer.writeEntry( MANIFEST_NAME, now,
+                        ZipWriter.DEFAULT_FILE_MODE, compress(
+                                new ByteArrayInputStream( manifest() ),
+                                defaultLevel ) );
+                directories.add( MANIFEST_DIRECTORY );
+            }
+            Deque<Pending> pending = new ArrayDeque<Pending>();
+            int maxPending = Math.max( 1, threads * PENDING_PER_THREAD );
+            for ( Map.Entry<String, ? extends PlexusIoResource> entry : resources.entrySet() )
+            {
+                final String name = entry.getKey();
+                final PlexusIoResource resource = entry.getValue();
+                final File large = getLargeFile( resource );
+                final int level = large == null ? getLevel( name ) : 0;
+                Pending next = new Pending( name, resource, level,
+                        timestamp == -1 ? resource.getLastModified()
+                                : timestamp );
+                next.file = large;
+                String hash = hashes == null ? null : hashes.get( name );
+                if ( hash != null )
+                {
+                    index.put( name, hash, next.time, level );
+                    if ( reader != null
+                         && previous.isSame( name, hash, next.time, level ) )
+                    {
+                        next.copy = reader.get( name );
+                    }
+                }
+                if ( next.copy == null && large == null && executor != null
+                     && size( resource ) <= MAX_BUFFERED_SIZE )
+                {
+                    next.compressed = executor.submit( new Callable<ZipWriter.Compressed>()
+                    {
+                        @Override
+                        public ZipWriter.Compressed call() throws IOException
+                        {
+                            return compress( resource, level );
+                        }
+                    } );
+                }
+                pending.add( next );
+                if ( pending.size() >= maxPending )
+                {
+                    write( writer, reader, pending.remove(), directories );
+                }
+            }
+            while ( !pending.isEmpty() )
+            {
+                write( writer, reader, pending.remove(), directories );
+            }
+            writer.close();
+            writer = null;
+            if ( reader != null )
+            {
+                reader.close();
+                reader = null;
+            }
+            if ( target != destFile )
+            {
+                PublishLock.replace( target, destFile );
+            }
+            if ( index != null )
+            {
+                index.write( destFile );
+            }
+        }
+        finally
+        {
+            if ( writer != null )
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch ( IOException e )
+                {
+                    // the original exception is more interesting
+                }
+            }
+            if ( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch ( IOException e )
+                {
+                    // the original exception is more interesting
+                }
+            }
+            if ( target != destFile )
+            {
+                target.delete();
+            }
+            if ( executor != null )
+            {
+                executor.shutdownNow();
+            }
+            Deflater deflater;
+            while ( ( deflater = deflaters.poll() ) != null )
+            {
+                deflater.end();
+            }
+        }
+    }
+
+    private void write( final ZipWriter writer, final ZipReader reader,
+            final Pending entry, final Set<String> directories )
+            throws IOException
+    {
+        addParents( writer, entry.name, entry.time, directories );
+        if ( entry.copy != null )
+        {
+            writer.copyEntry( entry.name, entry.time,
+                    ZipWriter.DEFAULT_FILE_MODE, reader, entry.copy );
+            reused++;
+        }
+        else if ( entry.file != null )
+        {
+            writer.storeFile( entry.name, entry.time,
+                    ZipWriter.DEFAULT_FILE_MODE, entry.file );
+        }
+        else if ( entry.compressed != null )
+        {
+            writer.writeEntry( entry.name, entry.time,
+                    ZipWriter.DEFAULT_FILE_MODE, get( entry.compressed ) );
+        }
+        else
+        {
+            InputStream in = entry.resource.getContents();
+            try
+            {
+                writer.writeEntry( entry.name, entry.time,
+                        ZipWriter.DEFAULT_FILE_MODE, entry.level, in,
+                        size( entry.resource ) );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Adds the entries for the directories of the given path which aren't in
+     * the archive yet.
+     */
+    private static void addParents( final ZipWriter writer, final String name,
+            final long time, final Set<String> directories ) throws IOException
+    {
+        int slash = -1;
+        while ( ( slash = name.indexOf( '/', slash + 1 ) ) != -1 )
+        {
+            String directory = name.substring( 0, slash + 1 );
+            if ( directories.add( directory ) )
+            {
+                writer.writeDirectory( directory, time,
+                        ZipWriter.DEFAULT_DIRECTORY_MODE );
+            }
+        }
+    }
+
+    private ZipWriter.Compressed compress( final PlexusIoResource resource,
+            final int level ) throws IOException
+    {
+        InputStream in = resource.getContents();
+        try
+        {
+            return compress( in, level );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private ZipWriter.Compressed compress( final InputStream in,
+            final int level ) throws IOException
+    {
+        Deflater deflater = deflaters.poll();
+        if ( deflater == null )
+        {
+            deflater = new Deflater( level, true );
+        }
+        try
+        {
+            return ZipWriter.compress( in, level, deflater );
+        }
+        finally
+        {
+            deflaters.add( deflater );
+        }
+    }
+
+    /**
+     * @return the file of the resource if it is to be stored as it is, null
+     *         otherwise.
+     */
+    private File getLargeFile( final PlexusIoResource resource )
+    {
+        if ( storeAbove < 0 || !( resource instanceof PlexusIoFileResource )
+             || resource instanceof FilteredFileResource )
+        {
+            return null;
+        }
+        File file = ( (PlexusIoFileResource) resource ).getFile();
+        return file.length() > storeAbove ? file : null;
+    }
+
+    /**
+     * The size to expect, filtered files may end up a bit smaller or larger.
+     */
+    private static long size( final PlexusIoResource resource )
+    {
+        long size = resource.getSize();
+        if ( size == PlexusIoResource.UNKNOWN_RESOURCE_SIZE
+             && resource instanceof PlexusIoFileResource )
+        {
+            size = ( (PlexusIoFileResource) resource ).getFile()
+                    .length();
+        }
+        return size;
+    }
+
+    private static ZipWriter.Compressed get(
+            final Future<ZipWriter.Compressed> future ) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread()
+                    .interrupt();
+            throw new IOException( "Interrupted while archiving.", e );
+        }
+        catch ( ExecutionException e )
+        {
+            if ( e.getCause() instanceof IOException )
+            {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException( e.getCause() );
+        }
+    }
+
+    private byte[] manifest() throws IOException
+    {
+        String createdBy = timestamp == -1 ? System.getProperty( "java.vm.version" )
+                                             + " ("
+                                             + System.getProperty( "java.vm.vendor" )
+                                             + ")"
+                : REPRODUCIBLE_CREATED_BY;
+        return ( "Manifest-Version: 1.0\r\n" + "Created-By: " + createdBy + "\r\n\r\n" ).getBytes( "UTF-8" );
+    }
+
+    private static final class Pending
+    {
+        final String name;
+        final PlexusIoResource resource;
+        final int level;
+        final long time;
+        Future<ZipWriter.Compressed> compressed;
+        ZipReader.Entry copy;
+        File file;
+
+        Pending( final String name, final PlexusIoResource resource,
+                final int level, final long time )
+        {
+            this.name = name;
+            this.resource = resource;
+            this.level = level;
+            this.time = time;
+        }
+    }
+}
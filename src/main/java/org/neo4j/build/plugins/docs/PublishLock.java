@@ -0,0 +1,187 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets one assembly at a time put its results in place in a build directory,
+ * whether the others run on other threads, like with mvn -T, or in other
+ * builds. Assemblies do everything else in files of their own, so they only
+ * wait for each other while the results are moved into place.
+ */
+final class PublishLock implements Closeable
+{
+    static final String FILENAME = ".docs.lock";
+
+    /**
+     * File locks are held by the whole JVM, so threads have to take turns
+     * before trying for the file lock. Entries are removed again once no
+     * thread holds or waits for them, so watching or aggregating many
+     * builds doesn't keep a lock for every directory ever used.
+     */
+    private static final Map<String, ThreadLock> THREAD_LOCKS = new HashMap<String, ThreadLock>();
+
+    private final String key;
+    private final ThreadLock threadLock;
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+
+    private PublishLock( final String key, final ThreadLock threadLock,
+            final RandomAccessFile file, final FileLock fileLock )
+    {
+        this.key = key;
+        this.threadLock = threadLock;
+        this.file = file;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Waits until no other assembly is publishing to the directory.
+     */
+    static PublishLock acquire( final File directory ) throws IOException
+    {
+        File lockFile = new File( directory, FILENAME ).getCanonicalFile();
+        String key = lockFile.getPath();
+        ThreadLock threadLock = reference( key );
+        threadLock.lock();
+        boolean locked = false;
+        try
+        {
+            RandomAccessFile file = new RandomAccessFile( lockFile, "rw" );
+            try
+            {
+                PublishLock lock = new PublishLock( key, threadLock, file,
+                        file.getChannel()
+                                .lock() );
+                locked = true;
+                return lock;
+            }
+            finally
+            {
+                if ( !locked )
+                {
+                    file.close();
+                }
+            }
+        }
+        finally
+        {
+            if ( !locked )
+            {
+                release( key, threadLock );
+            }
+        }
+    }
+
+    private static ThreadLock reference( final String key )
+    {
+        synchronized ( THREAD_LOCKS )
+        {
+            ThreadLock threadLock = THREAD_LOCKS.get( key );
+            if ( threadLock == null )
+            {
+                threadLock = new ThreadLock();
+                THREAD_LOCKS.put( key, threadLock );
+            }
+            threadLock.users++;
+            return threadLock;
+        }
+    }
+
+    private static void release( final String key, final ThreadLock threadLock )
+    {
+        synchronized ( THREAD_LOCKS )
+        {
+            threadLock.unlock();
+            if ( --threadLock.users == 0 )
+            {
+                THREAD_LOCKS.remove( key );
+            }
+        }
+    }
+
+    /**
+     * @return the number of directories some thread holds or waits for the
+     *         lock of.
+     */
+    static int threadLockCount()
+    {
+        synchronized ( THREAD_LOCKS )
+        {
+            return THREAD_LOCKS.size();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            fileLock.release();
+            file.close();
+        }
+        finally
+        {
+            release( key, threadLock );
+        }
+    }
+
+    /**
+     * Moves the file into place in one step where the file system allows it,
+     * so nobody sees a partly written file at the destination.
+     */
+    static void replace( final File source, final File destination )
+            throws IOException
+    {
+        try
+        {
+            Files.move( source.toPath(), destination.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( AtomicMoveNotSupportedException e )
+        {
+            Files.move( source.toPath(), destination.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    /**
+     * Counts the threads holding or waiting for the lock, guarded by
+     * {@link PublishLock#THREAD_LOCKS}.
+     */
+    private static final class ThreadLock extends ReentrantLock
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int users;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes the characters of a reader on demand, using fixed size buffers. Bad
+ * characters are replaced, the same way an OutputStreamWriter does.
+ */
+final class ReaderInputStream extends InputStream
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars = CharBuffer.allocate( BUFFER_SIZE );
+    private final ByteBuffer bytes = ByteBuffer.allocate( BUFFER_SIZE );
+    private boolean endOfInput;
+    private boolean flushing;
+    private boolean flushed;
+
+    ReaderInputStream( final Reader reader, final String encoding )
+    {
+        this.reader = reader;
+        this.encoder = Charset.forName( encoding )
+                .newEncoder()
+                .onMalformedInput( CodingErrorAction.REPLACE )
+                .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        chars.flip();
+        bytes.flip();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] single = new byte[1];
+        int count = read( single, 0, 1 );
+        return count == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read( final byte[] buffer, final int offset, final int length )
+            throws IOException
+    {
+        if ( length == 0 )
+        {
+            return 0;
+        }
+        while ( !bytes.hasRemaining() )
+        {
+            if ( flushed )
+            {
+                return -1;
+            }
+            fill();
+        }
+        int count = Math.min( length, bytes.remaining() );
+        bytes.get( buffer, offset, count );
+        return count;
+    }
+
+    private void fill() throws IOException
+    {
+        bytes.clear();
+        if ( !endOfInput )
+        {
+            chars.compact();
+            int count = reader.read( chars.array(), chars.position(),
+                    chars.remaining() );
+            if ( count == -1 )
+            {
+                endOfInput = true;
+            }
+            else
+            {
+                chars.position( chars.position() + count );
+            }
+            chars.flip();
+        }
+        if ( !flushing )
+        {
+            CoderResult result = encoder.encode( chars, bytes, endOfInput );
+            if ( result.isError() )
+            {
+                result.throwException();
+            }
+            flushing = endOfInput && !result.isOverflow();
+        }
+        if ( flushing )
+        {
+            flushed = !encoder.flush( bytes )
+                    .isOverflow();
+        }
+        bytes.flip();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
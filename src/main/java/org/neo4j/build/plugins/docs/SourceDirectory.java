@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A directory of docs, with the files to take from it and how to filter
+ * them. In the plugin configuration it can be given as a plain path, or with
+ * its settings as child elements.
+ */
+public class SourceDirectory
+{
+    /**
+     * The directory to take the docs from.
+     */
+    private File directory;
+    /**
+     * Patterns of the files to include, like "**&#47;*.txt". All files are
+     * included when none are given.
+     */
+    private List<String> includes;
+    /**
+     * Patterns of the files to leave out, on top of the usual SCM and editor
+     * files.
+     */
+    private List<String> excludes;
+    /**
+     * Whether to filter the files of this directory, the filter setting of
+     * the plugin is used when not set.
+     */
+    private Boolean filter;
+    /**
+     * The encoding of the files in this directory, the encoding setting of
+     * the plugin is used when not set.
+     */
+    private String encoding;
+    /**
+     * The path in the docs archive to put the files of this directory under.
+     */
+    private String prefix;
+
+    public SourceDirectory()
+    {
+    }
+
+    public SourceDirectory( final File directory )
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Used when the directory is given as a plain path, which was the only
+     * form of sourceDirectories before.
+     */
+    public void set( final String directory )
+    {
+        this.directory = new File( directory );
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public void setDirectory( final File directory )
+    {
+        this.directory = directory;
+    }
+
+    public List<String> getIncludes()
+    {
+        return includes == null ? Collections.<String>emptyList() : includes;
+    }
+
+    public void setIncludes( final List<String> includes )
+    {
+        this.includes = includes;
+    }
+
+    public List<String> getExcludes()
+    {
+        return excludes == null ? Collections.<String>emptyList() : excludes;
+    }
+
+    public void setExcludes( final List<String> excludes )
+    {
+        this.excludes = excludes;
+    }
+
+    public Boolean getFilter()
+    {
+        return filter;
+    }
+
+    public void setFilter( final Boolean filter )
+    {
+        this.filter = filter;
+    }
+
+    public String getEncoding()
+    {
+        return encoding;
+    }
+
+    public void setEncoding( final String encoding )
+    {
+        this.encoding = encoding;
+    }
+
+    /**
+     * @return the prefix without leading slashes and ending with one, or the
+     *         empty string.
+     */
+    public String getPrefix()
+    {
+        if ( prefix == null )
+        {
+            return "";
+        }
+        String path = prefix.trim()
+                .replace( '\\', '/' );
+        while ( path.startsWith( "/" ) )
+        {
+            path = path.substring( 1 );
+        }
+        if ( path.length() > 0 && !path.endsWith( "/" ) )
+        {
+            path += "/";
+        }
+        return path;
+    }
+
+    public void setPrefix( final String prefix )
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return a copy with the same settings, for the given directory.
+     */
+    SourceDirectory withDirectory( final File directory )
+    {
+        SourceDirectory copy = new SourceDirectory( directory );
+        copy.includes = includes;
+        copy.excludes = excludes;
+        copy.filter = filter;
+        copy.encoding = encoding;
+        copy.prefix = prefix;
+        return copy;
+    }
+
+    boolean isFiltered( final boolean defaultFilter )
+    {
+        return filter == null ? defaultFilter : filter.booleanValue();
+    }
+
+    String getEncoding( final String defaultEncoding )
+    {
+        return encoding == null || encoding.length() == 0 ? defaultEncoding
+                : encoding;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SourceDirectory[directory=" + directory + ", includes="
+               + getIncludes() + ", excludes=" + getExcludes() + ", filter="
+               + filter + ", encoding=" + encoding + ", prefix="
+               + getPrefix() + "]";
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.codehaus.plexus.archiver.tar.TarEntry;
+import org.codehaus.plexus.archiver.tar.TarOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * Writes tar files compressed with gzip or zstd. Entries get the parent
+ * directories they need, and no user or group names, so the same entries
+ * always give the same archive.
+ */
+final class TarWriter implements Closeable
+{
+    static final String GZIP = "gz";
+    static final String ZSTD = "zst";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FILE_MODE = 0100644;
+    private static final int DIRECTORY_MODE = 040755;
+
+    private final TarOutputStream out;
+    private final Set<String> directories = new HashSet<String>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param workers threads for zstd to compress on, 0 to compress on the
+     *            writing thread.
+     */
+    TarWriter( final File destination, final String compression,
+            final int workers ) throws IOException
+    {
+        OutputStream file = new BufferedOutputStream( new FileOutputStream(
+                destination ), BUFFER_SIZE );
+        OutputStream compressed;
+        try
+        {
+            if ( ZSTD.equals( compression ) )
+            {
+                ZstdOutputStream zstd = new ZstdOutputStream( file );
+                if ( workers > 1 )
+                {
+                    zstd.setWorkers( workers );
+                }
+                compressed = zstd;
+            }
+            else
+            {
+                compressed = new GZIPOutputStream( file, BUFFER_SIZE );
+            }
+        }
+        catch ( IOException e )
+        {
+            file.close();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            file.close();
+            throw e;
+        }
+        catch ( LinkageError e )
+        {
+            // the zstd native library couldn't be loaded
+            file.close();
+            throw new IOException( "Could not load the zstd library.", e );
+        }
+        out = new TarOutputStream( compressed );
+        out.setLongFileMode( TarOutputStream.LONGFILE_GNU );
+    }
+
+    /**
+     * Writes an entry, and the entries of its directories which aren't in the
+     * archive yet.
+     * 
+     * @param size the size of the contents, or -1 if unknown, in which case
+     *            they are written to a temporary file first.
+     */
+    void writeEntry( final String name, final long time, final InputStream in,
+            final long size ) throws IOException
+    {
+        int slash = -1;
+        while ( ( slash = name.indexOf( '/', slash + 1 ) ) != -1 )
+        {
+            String directory = name.substring( 0, slash + 1 );
+            if ( directories.add( directory ) )
+            {
+                out.putNextEntry( entry( directory, time, DIRECTORY_MODE, 0 ) );
+                out.closeEntry();
+            }
+        }
+        if ( size < 0 )
+        {
+            File temp = File.createTempFile( "docs-tar", ".tmp" );
+            try
+            {
+                OutputStream spool = new FileOutputStream( temp );
+                try
+                {
+                    copy( in, spool );
+                }
+                finally
+                {
+                    spool.close();
+                }
+                InputStream spooled = new FileInputStream( temp );
+                try
+                {
+                    writeEntry( name, time, spooled, temp.length() );
+                }
+                finally
+                {
+                    spooled.close();
+                }
+            }
+            finally
+            {
+                temp.delete();
+            }
+            return;
+        }
+        // the tar stream of plexus-archiver keeps the entry size in an int
+        if ( size > Integer.MAX_VALUE )
+        {
+            throw new IOException( "Entries of 2 GB and more can't be written to tar files: "
+                                   + name );
+        }
+        out.putNextEntry( entry( name, time, FILE_MODE, size ) );
+        copy( in, out );
+        out.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        out.close();
+    }
+
+    private static TarEntry entry( final String name, final long time,
+            final int mode, final long size )
+    {
+        TarEntry entry = new TarEntry( name );
+        entry.setMode( mode );
+        entry.setModTime( time );
+        entry.setIds( 0, 0 );
+        entry.setNames( "", "" );
+        entry.setSize( size );
+        return entry;
+    }
+
+    private void copy( final InputStream in, final OutputStream to )
+            throws IOException
+    {
+        int count;
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            to.write( buffer, 0, count );
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Sums up everything a docs generating test run depends on and produces:
+ * the tests to run, and the path, size and modification time of the files
+ * in the test sources, the test class path and the docs directories. When
+ * this is the same as after the last successful run, the tests don't need
+ * to run again.
+ */
+final class TestFingerprint
+{
+    static final String FILENAME = "docs-test.fingerprint";
+
+    private static final String ENCODING = "UTF-8";
+
+    private final MessageDigest digest = DocsManifest.newDigest();
+
+    TestFingerprint add( final String key, final String value )
+    {
+        update( key + "=" + value + "\n" );
+        return this;
+    }
+
+    /**
+     * Adds a file, or all files below a directory. Missing files are added
+     * as missing, so they count when they show up.
+     */
+    TestFingerprint addFiles( final String key, final File file )
+            throws IOException
+    {
+        if ( !file.exists() )
+        {
+            return add( key, file.getAbsolutePath() + " missing" );
+        }
+        final SortedMap<String, String> stats = new TreeMap<String, String>();
+        Files.walkFileTree( file.toPath(), new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile( final Path path,
+                    final BasicFileAttributes attributes )
+            {
+                stats.put( path.toString(), attributes.size() + " "
+                                            + attributes.lastModifiedTime()
+                                                    .toMillis() );
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+        add( key, file.getAbsolutePath() );
+        for ( Map.Entry<String, String> stat : stats.entrySet() )
+        {
+            update( stat.getKey() + "\t" + stat.getValue() + "\n" );
+        }
+        return this;
+    }
+
+    String get()
+    {
+        return DocsManifest.toHex( digest.digest() );
+    }
+
+    private void update( final String value )
+    {
+        try
+        {
+            digest.update( value.getBytes( ENCODING ) );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return the stored fingerprint, or null if there is none.
+     */
+    static String read( final File file )
+    {
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        try
+        {
+            BufferedReader reader = new BufferedReader( new InputStreamReader(
+                    new FileInputStream( file ), ENCODING ) );
+            try
+            {
+                return reader.readLine();
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    static void write( final File file, final String fingerprint )
+            throws IOException
+    {
+        Writer writer = new OutputStreamWriter( new FileOutputStream( file ),
+                ENCODING );
+        try
+        {
+            writer.write( fingerprint );
+            writer.write( '\n' );
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Looks for the start of filter expressions in the raw bytes of a file, as
+ * given by {@link DocsFilterWrapper#DELIMITERS}: <code>${</code>, or two
+ * <code>@</code> characters. Files without them come out of the filtering
+ * unchanged, so they can be copied as they are. Only usable for encodings
+ * which store these characters like ASCII does.
+ */
+final class TokenScanner
+{
+    private static final String DELIMITER_CHARS = "${}@";
+
+    private boolean dollar;
+    private int ats;
+    private boolean tokens;
+
+    void update( final byte[] bytes, final int offset, final int length )
+    {
+        for ( int i = offset; i < offset + length && !tokens; i++ )
+        {
+            byte b = bytes[i];
+            if ( dollar && b == '{' )
+            {
+                tokens = true;
+            }
+            else if ( b == '@' && ++ats == 2 )
+            {
+                tokens = true;
+            }
+            dollar = b == '$';
+        }
+    }
+
+    /**
+     * @return false if the bytes seen so far can't contain any filter
+     *         expression.
+     */
+    boolean mayContainTokens()
+    {
+        return tokens;
+    }
+
+    /**
+     * @return true if the scanning works for files in this encoding.
+     */
+    static boolean canScan( final String encoding )
+    {
+        try
+        {
+            return Arrays.equals( DELIMITER_CHARS.getBytes( "US-ASCII" ),
+                    DELIMITER_CHARS.getBytes( Charset.forName( encoding ) ) );
+        }
+        catch ( Exception e )
+        {
+            return false;
+        }
+    }
+}
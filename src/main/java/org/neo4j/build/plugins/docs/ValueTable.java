@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.maven.shared.filtering.MultiDelimiterInterpolatorFilterReaderLineEnding;
+import org.codehaus.plexus.interpolation.MapBasedValueSource;
+import org.codehaus.plexus.interpolation.multi.MultiDelimiterStringSearchInterpolator;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * The values of the expressions used in the docs, resolved once before the
+ * filtering starts, against everything the usual filtering looks at. The
+ * files are then filtered against this table, which avoids the reflective
+ * lookups in the project model for every expression in every file. The
+ * values are final, so filtering with the table gives the same result as
+ * filtering with the project model.
+ */
+final class ValueTable
+{
+    private final Map<String, String> values;
+    private final List<String> unresolved;
+
+    private ValueTable( final Map<String, String> values,
+            final List<String> unresolved )
+    {
+        this.values = Collections.unmodifiableMap( values );
+        this.unresolved = Collections.unmodifiableList( unresolved );
+    }
+
+    /**
+     * @param expressions the expressions as found in the files, with their
+     *            delimiters, as given by {@link FilterCache#expressions}.
+     * @param wrapper the filtering to resolve the expressions with.
+     */
+    static ValueTable resolve( final Set<String> expressions,
+            final FileUtils.FilterWrapper wrapper ) throws IOException
+    {
+        Map<String, String> values = new HashMap<String, String>();
+        List<String> unresolved = new ArrayList<String>();
+        for ( String expression : expressions )
+        {
+            String name = expression.startsWith( "${" ) ? expression.substring(
+                    2, expression.length() - 1 ) : expression.substring( 1,
+                    expression.length() - 1 );
+            if ( name.length() == 0 || values.containsKey( name ) )
+            {
+                continue;
+            }
+            String value = filter( expression, wrapper );
+            if ( value.equals( expression ) )
+            {
+                // not all candidates are meant to be expressions, like the
+                // text between two e-mail addresses
+                if ( isPropertyName( name ) && !unresolved.contains( name ) )
+                {
+                    unresolved.add( name );
+                }
+                continue;
+            }
+            values.put( name, value );
+            if ( name.startsWith( "." ) )
+            {
+                // the interpolator drops a leading dot before the lookup
+                values.put( name.substring( 1 ), value );
+            }
+        }
+        Collections.sort( unresolved );
+        return new ValueTable( values, unresolved );
+    }
+
+    Map<String, String> getValues()
+    {
+        return values;
+    }
+
+    /**
+     * @return the names of the expressions no value was found for.
+     */
+    List<String> getUnresolved()
+    {
+        return unresolved;
+    }
+
+    /**
+     * @return a filter wrapper which only looks values up in this table.
+     */
+    FileUtils.FilterWrapper newFilterWrapper()
+    {
+        return new FileUtils.FilterWrapper()
+        {
+            @Override
+            public Reader getReader( final Reader reader )
+            {
+                MultiDelimiterStringSearchInterpolator interpolator = new MultiDelimiterStringSearchInterpolator();
+                interpolator.setDelimiterSpecs( DocsFilterWrapper.DELIMITERS );
+                interpolator.addValueSource( new MapBasedValueSource( values ) );
+                MultiDelimiterInterpolatorFilterReaderLineEnding filterReader = new MultiDelimiterInterpolatorFilterReaderLineEnding(
+                        reader, interpolator, false );
+                filterReader.setDelimiterSpecs( DocsFilterWrapper.DELIMITERS );
+                filterReader.setInterpolateWithPrefixPattern( false );
+                return filterReader;
+            }
+        };
+    }
+
+    /**
+     * @return the text as the filtering gives it back.
+     */
+    static String filter( final String text,
+            final FileUtils.FilterWrapper wrapper ) throws IOException
+    {
+        Reader reader = wrapper.getReader( new StringReader( text ) );
+        StringBuilder filtered = new StringBuilder();
+        try
+        {
+            char[] buffer = new char[256];
+            int count;
+            while ( ( count = reader.read( buffer ) ) != -1 )
+            {
+                filtered.append( buffer, 0, count );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return filtered.toString();
+    }
+
+    private static boolean isPropertyName( final String name )
+    {
+        for ( int i = 0; i < name.length(); i++ )
+        {
+            if ( Character.isWhitespace( name.charAt( i ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
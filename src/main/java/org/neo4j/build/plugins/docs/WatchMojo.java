@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Goal which assembles docs, and then assembles them again each time they
+ * change, until stopped. Only the changed files are filtered again, so
+ * target/filtered-docs can be used to preview the docs.
+ * 
+ * @goal watch
+ * @requiresDirectInvocation
+ * @threadSafe true
+ */
+public class WatchMojo extends AbstractDocsMojo
+{
+    /**
+     * Milliseconds to wait for more changes before assembling.
+     * 
+     * @parameter expression="${watchDelay}" default-value="200"
+     */
+    protected long watchDelay;
+
+    @Override
+    public void execute() throws MojoExecutionException
+    {
+        if ( !incremental )
+        {
+            getLog().info( "Watching only assembles what changed, turning incremental assembly on." );
+        }
+        if ( streamFiltering )
+        {
+            getLog().info( "Watching keeps the filtered docs on disk, turning streamFiltering off." );
+        }
+        final DocsAssembler assembler = createAssembler( null );
+        assembler.setIncremental( true );
+        assembler.setStreaming( false );
+        assemble( assembler );
+        // attaching is only of use the first time
+        assembler.setAttach( false );
+
+        List<File> directories = getDocsDirectories();
+        DocsWatcher watcher;
+        try
+        {
+            watcher = new DocsWatcher( directories, watchDelay );
+        }
+        catch ( IOException e )
+        {
+            getLog().error( e );
+            throw new MojoExecutionException( "Could not watch the docs.", e );
+        }
+        getLog().info( "Watching for changes in: " + directories
+                       + ", stop with Ctrl-C." );
+        try
+        {
+            watcher.watch( new DocsWatcher.Listener()
+            {
+                @Override
+                public void changed( final Set<Path> changed )
+                {
+                    getLog().info( "Changed: " + changed.size()
+                                   + " file(s) or directories, assembling." );
+                    assemble( assembler );
+                }
+            } );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread()
+                    .interrupt();
+        }
+        catch ( IOException e )
+        {
+            getLog().error( e );
+            throw new MojoExecutionException( "Could not watch the docs.", e );
+        }
+        finally
+        {
+            try
+            {
+                watcher.close();
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Could not stop watching: " + e.getMessage() );
+            }
+        }
+    }
+
+    /**
+     * Assembly errors are logged, the docs are watched for the fix.
+     */
+    private void assemble( final DocsAssembler assembler )
+    {
+        DocsReport report = createReport( "watch" );
+        assembler.setReport( report );
+        try
+        {
+            assembler.doAssembly();
+            writeReport( report );
+        }
+        catch ( MojoExecutionException e )
+        {
+            getLog().error( "Could not assemble the docs: " + e.getMessage() );
+        }
+    }
+}
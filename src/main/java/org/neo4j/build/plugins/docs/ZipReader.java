@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the central directory of a zip file, and gives access to the
+ * compressed data of its entries, so they can be copied to another archive
+ * without inflating and deflating them again.
+ */
+final class ZipReader implements Closeable
+{
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int END_SIZE = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+
+    /**
+     * An entry as listed in the central directory.
+     */
+    static final class Entry
+    {
+        final String name;
+        final int method;
+        final long crc;
+        final long size;
+        final long compressedSize;
+        final long offset;
+
+        Entry( final String name, final int method, final long crc,
+                final long size, final long compressedSize, final long offset )
+        {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.offset = offset;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    ZipReader( final File archive ) throws IOException
+    {
+        file = new RandomAccessFile( archive, "r" );
+        channel = file.getChannel();
+        try
+        {
+            readCentralDirectory();
+        }
+        catch ( IOException e )
+        {
+            close();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            close();
+            throw new IOException( "Not a valid zip file: " + archive, e );
+        }
+    }
+
+    Entry get( final String name )
+    {
+        return entries.get( name );
+    }
+
+    /**
+     * @return the position of the compressed data of the entry.
+     */
+    long getDataOffset( final Entry entry ) throws IOException
+    {
+        ByteBuffer header = read( entry.offset, 30 );
+        if ( header.getInt( 0 ) != 0x04034b50 )
+        {
+            throw new IOException( "No local header for: " + entry.name );
+        }
+        return entry.offset + 30 + ( header.getShort( 26 ) & 0xFFFF )
+               + ( header.getShort( 28 ) & 0xFFFF );
+    }
+
+    /**
+     * @return true if the local header of the entry has zip64 sizes.
+     */
+    boolean hasZip64LocalHeader( final Entry entry ) throws IOException
+    {
+        ByteBuffer header = read( entry.offset, 30 );
+        return ( header.getInt( 18 ) & 0xFFFFFFFFL ) == ZIP64_LIMIT
+               && ( header.getShort( 28 ) & 0xFFFF ) >= 20;
+    }
+
+    /**
+     * Reads as many bytes as fit in the buffer, from the given position.
+     */
+    void read( final long position, final ByteBuffer buffer )
+            throws IOException
+    {
+        long at = position;
+        while ( buffer.hasRemaining() )
+        {
+            int count = channel.read( buffer, at );
+            if ( count < 0 )
+            {
+                throw new EOFException( "Unexpected end of zip file." );
+            }
+            at += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    private void readCentralDirectory() throws IOException
+    {
+        long length = channel.size();
+        int tail = (int) Math.min( length, END_SIZE + MAX_COMMENT );
+        ByteBuffer end = read( length - tail, tail );
+        int endPosition = -1;
+        for ( int i = tail - END_SIZE; i >= 0; i-- )
+        {
+            if ( end.getInt( i ) == 0x06054b50 )
+            {
+                endPosition = i;
+                break;
+            }
+        }
+        if ( endPosition == -1 )
+        {
+            throw new IOException( "No end of central directory found." );
+        }
+        long count = end.getShort( endPosition + 10 ) & 0xFFFF;
+        long centralSize = end.getInt( endPosition + 12 ) & 0xFFFFFFFFL;
+        long centralStart = end.getInt( endPosition + 16 ) & 0xFFFFFFFFL;
+        if ( count == ZIP64_ENTRY_LIMIT || centralSize == ZIP64_LIMIT
+             || centralStart == ZIP64_LIMIT )
+        {
+            long locatorPosition = length - tail + endPosition - 20;
+            ByteBuffer locator = read( locatorPosition, 20 );
+            if ( locator.getInt( 0 ) == 0x07064b50 )
+            {
+                ByteBuffer record = read( locator.getLong( 8 ), 56 );
+                if ( record.getInt( 0 ) != 0x06064b50 )
+                {
+                    throw new IOException( "Invalid zip64 end record." );
+                }
+                count = record.getLong( 32 );
+                centralSize = record.getLong( 40 );
+                centralStart = record.getLong( 48 );
+            }
+        }
+        ByteBuffer central = read( centralStart, (int) centralSize );
+        int position = 0;
+        for ( long i = 0; i < count; i++ )
+        {
+            if ( central.getInt( position ) != 0x02014b50 )
+            {
+                throw new IOException( "Invalid central directory." );
+            }
+            int method = central.getShort( position + 10 ) & 0xFFFF;
+            long crc = central.getInt( position + 16 ) & 0xFFFFFFFFL;
+            long compressedSize = central.getInt( position + 20 ) & 0xFFFFFFFFL;
+            long size = central.getInt( position + 24 ) & 0xFFFFFFFFL;
+            int nameLength = central.getShort( position + 28 ) & 0xFFFF;
+            int extraLength = central.getShort( position + 30 ) & 0xFFFF;
+            int commentLength = central.getShort( position + 32 ) & 0xFFFF;
+            long offset = central.getInt( position + 42 ) & 0xFFFFFFFFL;
+            byte[] nameBytes = new byte[nameLength];
+            central.position( position + 46 );
+            central.get( nameBytes );
+            int extra = position + 46 + nameLength;
+            int extraEnd = extra + extraLength;
+            while ( extra + 4 <= extraEnd )
+            {
+                int id = central.getShort( extra ) & 0xFFFF;
+                int dataSize = central.getShort( extra + 2 ) & 0xFFFF;
+                if ( id == 1 )
+                {
+                    int field = extra + 4;
+                    if ( size == ZIP64_LIMIT )
+                    {
+                        size = central.getLong( field );
+                        field += 8;
+                    }
+                    if ( compressedSize == ZIP64_LIMIT )
+                    {
+                        compressedSize = central.getLong( field );
+                        field += 8;
+                    }
+                    if ( offset == ZIP64_LIMIT )
+                    {
+                        offset = central.getLong( field );
+                    }
+                }
+                extra += 4 + dataSize;
+            }
+            String name = new String( nameBytes, "UTF-8" );
+            entries.put( name, new Entry( name, method, crc, size,
+                    compressedSize, offset ) );
+            position = extraEnd + commentLength;
+        }
+    }
+
+    private ByteBuffer read( final long position, final int size )
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( size )
+                .order( ByteOrder.LITTLE_ENDIAN );
+        read( position, buffer );
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,550 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes zip and jar files. Entries can be added already compressed, which
+ * lets the compression happen elsewhere, or be streamed, in which case the
+ * local header is patched afterwards. Zip64 records are written when the
+ * archive needs them.
+ */
+final class ZipWriter implements Closeable
+{
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int DEFAULT_FILE_MODE = 0100644;
+    static final int DEFAULT_DIRECTORY_MODE = 040755;
+
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    // leave room for deflate output that's bigger than its input
+    private static final long ZIP64_STREAM_LIMIT = 0xF0000000L;
+    private static final int ZIP64_ENTRY_LIMIT = 0xFFFF;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int UTF8_FLAG = 1 << 11;
+    private static final int MADE_BY_UNIX = 3 << 8;
+
+    /**
+     * The compressed form of an entry.
+     */
+    static final class Compressed
+    {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+        final int length;
+
+        Compressed( final int method, final long crc, final long size,
+                final byte[] data, final int length )
+        {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private static final class CentralEntry
+    {
+        byte[] name;
+        int flags;
+        int method;
+        long dosTime;
+        long crc;
+        long compressedSize;
+        long size;
+        long offset;
+        int mode;
+    }
+
+    private final FileOutputStream file;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private final TimeZone timeZone;
+    private final List<CentralEntry> entries = new ArrayList<CentralEntry>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long position;
+
+    ZipWriter( final File destination ) throws IOException
+    {
+        this( destination, TimeZone.getDefault() );
+    }
+
+    /**
+     * @param timeZone the time zone to store modification times in.
+     */
+    ZipWriter( final File destination, final TimeZone timeZone )
+            throws IOException
+    {
+        this.file = new FileOutputStream( destination );
+        this.channel = file.getChannel();
+        this.out = new BufferedOutputStream( file, BUFFER_SIZE );
+        this.timeZone = timeZone;
+    }
+
+    /**
+     * Compresses the contents of a stream in memory, using the given deflate
+     * level; level 0 means the entry is stored.
+     */
+    static Compressed compress( final InputStream in, final int level,
+            final Deflater deflater ) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        ExposedByteArrayOutputStream data = new ExposedByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int count;
+        if ( level == 0 )
+        {
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                crc.update( buffer, 0, count );
+                data.write( buffer, 0, count );
+                size += count;
+            }
+            return new Compressed( STORED, crc.getValue(), size,
+                    data.buffer(), data.size() );
+        }
+        deflater.reset();
+        deflater.setLevel( level );
+        byte[] output = new byte[BUFFER_SIZE];
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            crc.update( buffer, 0, count );
+            size += count;
+            deflater.setInput( buffer, 0, count );
+            while ( !deflater.needsInput() )
+            {
+                int deflated = deflater.deflate( output );
+                data.write( output, 0, deflated );
+            }
+        }
+        deflater.finish();
+        while ( !deflater.finished() )
+        {
+            int deflated = deflater.deflate( output );
+            data.write( output, 0, deflated );
+        }
+        return new Compressed( DEFLATED, crc.getValue(), size, data.buffer(),
+                data.size() );
+    }
+
+    void writeDirectory( final String name, final long time, final int mode )
+            throws IOException
+    {
+        CentralEntry entry = newEntry( name.endsWith( "/" ) ? name : name
+                                                                   + "/",
+                STORED, time, mode );
+        writeLocalHeader( entry, false );
+    }
+
+    void writeEntry( final String name, final long time, final int mode,
+            final Compressed compressed ) throws IOException
+    {
+        CentralEntry entry = newEntry( name, compressed.method, time, mode );
+        entry.crc = compressed.crc;
+        entry.size = compressed.size;
+        entry.compressedSize = compressed.length;
+        boolean zip64 = entry.size >= ZIP64_LIMIT
+                        || entry.compressedSize >= ZIP64_LIMIT;
+        writeLocalHeader( entry, zip64 );
+        write( compressed.data, 0, compressed.length );
+    }
+
+    /**
+     * Writes an entry of any size without keeping it in memory.
+     * 
+     * @param sizeHint the expected size of the contents, or -1 if unknown.
+     */
+    void writeEntry( final String name, final long time, final int mode,
+            final int level, final InputStream in, final long sizeHint )
+            throws IOException
+    {
+        CentralEntry entry = newEntry( name, level == 0 ? STORED : DEFLATED,
+                time, mode );
+        boolean zip64 = sizeHint < 0 || sizeHint >= ZIP64_STREAM_LIMIT;
+        long headerPosition = position;
+        writeLocalHeader( entry, zip64 );
+        long dataPosition = position;
+
+        CRC32 crc = new CRC32();
+        int count;
+        if ( entry.method == STORED )
+        {
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                crc.update( buffer, 0, count );
+                write( buffer, 0, count );
+                entry.size += count;
+            }
+        }
+        else
+        {
+            Deflater deflater = new Deflater( level, true );
+            try
+            {
+                byte[] output = new byte[BUFFER_SIZE];
+                while ( ( count = in.read( buffer ) ) != -1 )
+                {
+                    crc.update( buffer, 0, count );
+                    entry.size += count;
+                    deflater.setInput( buffer, 0, count );
+                    while ( !deflater.needsInput() )
+                    {
+                        write( output, 0, deflater.deflate( output ) );
+                    }
+                }
+                deflater.finish();
+                while ( !deflater.finished() )
+                {
+                    write( output, 0, deflater.deflate( output ) );
+                }
+            }
+            finally
+            {
+                deflater.end();
+            }
+        }
+        entry.crc = crc.getValue();
+        entry.compressedSize = position - dataPosition;
+        if ( !zip64
+             && ( entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT ) )
+        {
+            throw new IOException( "Entry is larger than expected: " + name );
+        }
+        patchLocalHeader( entry, headerPosition, zip64 );
+    }
+
+    /**
+     * Stores a file of any size without compressing it. Only the checksum is
+     * computed here, in the writer's buffer; the contents are copied from
+     * file to file by the operating system.
+     */
+    void storeFile( final String name, final long time, final int mode,
+            final File source ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( source );
+        try
+        {
+            FileChannel input = in.getChannel();
+            long size = input.size();
+            CRC32 crc = new CRC32();
+            ByteBuffer data = ByteBuffer.wrap( buffer );
+            long at = 0;
+            while ( at < size )
+            {
+                data.clear();
+                int count = input.read( data, at );
+                if ( count < 0 )
+                {
+                    break;
+                }
+                crc.update( buffer, 0, count );
+                at += count;
+            }
+            if ( at != size )
+            {
+                throw new IOException( "File changed while archiving: "
+                                       + source.getAbsolutePath() );
+            }
+            CentralEntry entry = newEntry( name, STORED, time, mode );
+            entry.crc = crc.getValue();
+            entry.size = size;
+            entry.compressedSize = size;
+            writeLocalHeader( entry, size >= ZIP64_LIMIT );
+            out.flush();
+            long copied = 0;
+            while ( copied < size )
+            {
+                long count = input.transferTo( copied, size - copied, channel );
+                if ( count <= 0 )
+                {
+                    throw new IOException( "File changed while archiving: "
+                                           + source.getAbsolutePath() );
+                }
+                copied += count;
+            }
+            position += size;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the compressed data of an entry of another archive as it is. The
+     * local header gets zip64 sizes if the original one had them, so the entry
+     * comes out the same as when it was written.
+     */
+    void copyEntry( final String name, final long time, final int mode,
+            final ZipReader reader, final ZipReader.Entry source )
+            throws IOException
+    {
+        CentralEntry entry = newEntry( name, source.method, time, mode );
+        entry.crc = source.crc;
+        entry.size = source.size;
+        entry.compressedSize = source.compressedSize;
+        writeLocalHeader( entry, reader.hasZip64LocalHeader( source ) );
+        long at = reader.getDataOffset( source );
+        long remaining = source.compressedSize;
+        ByteBuffer data = ByteBuffer.wrap( buffer );
+        while ( remaining > 0 )
+        {
+            data.clear();
+            data.limit( (int) Math.min( remaining, buffer.length ) );
+            reader.read( at, data );
+            write( buffer, 0, data.position() );
+            at += data.position();
+            remaining -= data.position();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            long centralStart = position;
+            for ( CentralEntry entry : entries )
+            {
+                writeCentralHeader( entry );
+            }
+            long centralSize = position - centralStart;
+            boolean zip64 = entries.size() >= ZIP64_ENTRY_LIMIT
+                            || centralStart >= ZIP64_LIMIT
+                            || centralSize >= ZIP64_LIMIT;
+            if ( zip64 )
+            {
+                long zip64Start = position;
+                ByteBuffer record = buffer( 56 );
+                record.putInt( 0x06064b50 );
+                record.putLong( 44 );
+                record.putShort( (short) ( MADE_BY_UNIX | 45 ) );
+                record.putShort( (short) 45 );
+                record.putInt( 0 );
+                record.putInt( 0 );
+                record.putLong( entries.size() );
+                record.putLong( entries.size() );
+                record.putLong( centralSize );
+                record.putLong( centralStart );
+                write( record );
+                ByteBuffer locator = buffer( 20 );
+                locator.putInt( 0x07064b50 );
+                locator.putInt( 0 );
+                locator.putLong( zip64Start );
+                locator.putInt( 1 );
+                write( locator );
+            }
+            ByteBuffer end = buffer( 22 );
+            end.putInt( 0x06054b50 );
+            end.putShort( (short) 0 );
+            end.putShort( (short) 0 );
+            short count = (short) Math.min( entries.size(), ZIP64_ENTRY_LIMIT );
+            end.putShort( count );
+            end.putShort( count );
+            end.putInt( (int) Math.min( centralSize, ZIP64_LIMIT ) );
+            end.putInt( (int) Math.min( centralStart, ZIP64_LIMIT ) );
+            end.putShort( (short) 0 );
+            write( end );
+            out.flush();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private CentralEntry newEntry( final String name, final int method,
+            final long time, final int mode ) throws IOException
+    {
+        CentralEntry entry = new CentralEntry();
+        entry.name = name.getBytes( "UTF-8" );
+        entry.flags = entry.name.length == name.length() ? 0 : UTF8_FLAG;
+        entry.method = method;
+        entry.dosTime = dosTime( time );
+        entry.mode = mode;
+        entry.offset = position;
+        entries.add( entry );
+        return entry;
+    }
+
+    private void writeLocalHeader( final CentralEntry entry, final boolean zip64 )
+            throws IOException
+    {
+        ByteBuffer header = buffer( 30 + entry.name.length + ( zip64 ? 20 : 0 ) );
+        header.putInt( 0x04034b50 );
+        header.putShort( (short) ( zip64 ? 45 : 20 ) );
+        header.putShort( (short) entry.flags );
+        header.putShort( (short) entry.method );
+        header.putInt( (int) entry.dosTime );
+        header.putInt( (int) entry.crc );
+        header.putInt( (int) ( zip64 ? ZIP64_LIMIT : entry.compressedSize ) );
+        header.putInt( (int) ( zip64 ? ZIP64_LIMIT : entry.size ) );
+        header.putShort( (short) entry.name.length );
+        header.putShort( (short) ( zip64 ? 20 : 0 ) );
+        header.put( entry.name );
+        if ( zip64 )
+        {
+            header.putShort( (short) 1 );
+            header.putShort( (short) 16 );
+            header.putLong( entry.size );
+            header.putLong( entry.compressedSize );
+        }
+        write( header );
+    }
+
+    private void patchLocalHeader( final CentralEntry entry,
+            final long headerPosition, final boolean zip64 ) throws IOException
+    {
+        out.flush();
+        ByteBuffer sizes = buffer( 12 );
+        sizes.putInt( (int) entry.crc );
+        sizes.putInt( (int) ( zip64 ? ZIP64_LIMIT : entry.compressedSize ) );
+        sizes.putInt( (int) ( zip64 ? ZIP64_LIMIT : entry.size ) );
+        sizes.flip();
+        channel.write( sizes, headerPosition + 14 );
+        if ( zip64 )
+        {
+            ByteBuffer extra = buffer( 16 );
+            extra.putLong( entry.size );
+            extra.putLong( entry.compressedSize );
+            extra.flip();
+            channel.write( extra, headerPosition + 30 + entry.name.length + 4 );
+        }
+    }
+
+    private void writeCentralHeader( final CentralEntry entry )
+            throws IOException
+    {
+        boolean zip64Size = entry.size >= ZIP64_LIMIT;
+        boolean zip64Compressed = entry.compressedSize >= ZIP64_LIMIT;
+        boolean zip64Offset = entry.offset >= ZIP64_LIMIT;
+        int extraLength = ( zip64Size ? 8 : 0 ) + ( zip64Compressed ? 8 : 0 )
+                          + ( zip64Offset ? 8 : 0 );
+        if ( extraLength > 0 )
+        {
+            extraLength += 4;
+        }
+        ByteBuffer header = buffer( 46 + entry.name.length + extraLength );
+        header.putInt( 0x02014b50 );
+        header.putShort( (short) ( MADE_BY_UNIX | ( extraLength > 0 ? 45 : 20 ) ) );
+        header.putShort( (short) ( extraLength > 0 ? 45 : 20 ) );
+        header.putShort( (short) entry.flags );
+        header.putShort( (short) entry.method );
+        header.putInt( (int) entry.dosTime );
+        header.putInt( (int) entry.crc );
+        header.putInt( (int) Math.min( entry.compressedSize, ZIP64_LIMIT ) );
+        header.putInt( (int) Math.min( entry.size, ZIP64_LIMIT ) );
+        header.putShort( (short) entry.name.length );
+        header.putShort( (short) extraLength );
+        header.putShort( (short) 0 );
+        header.putShort( (short) 0 );
+        header.putShort( (short) 0 );
+        header.putInt( entry.mode << 16 );
+        header.putInt( (int) Math.min( entry.offset, ZIP64_LIMIT ) );
+        header.put( entry.name );
+        if ( extraLength > 0 )
+        {
+            header.putShort( (short) 1 );
+            header.putShort( (short) ( extraLength - 4 ) );
+            if ( zip64Size )
+            {
+                header.putLong( entry.size );
+            }
+            if ( zip64Compressed )
+            {
+                header.putLong( entry.compressedSize );
+            }
+            if ( zip64Offset )
+            {
+                header.putLong( entry.offset );
+            }
+        }
+        write( header );
+    }
+
+    private long dosTime( final long time )
+    {
+        Calendar calendar = Calendar.getInstance( timeZone );
+        calendar.setTimeInMillis( time );
+        int year = calendar.get( Calendar.YEAR );
+        if ( year < 1980 )
+        {
+            return ( 1 << 21 ) | ( 1 << 16 );
+        }
+        return ( (long) ( year - 1980 ) << 25 )
+               | ( ( calendar.get( Calendar.MONTH ) + 1 ) << 21 )
+               | ( calendar.get( Calendar.DAY_OF_MONTH ) << 16 )
+               | ( calendar.get( Calendar.HOUR_OF_DAY ) << 11 )
+               | ( calendar.get( Calendar.MINUTE ) << 5 )
+               | ( calendar.get( Calendar.SECOND ) >> 1 );
+    }
+
+    private static ByteBuffer buffer( final int size )
+    {
+        return ByteBuffer.allocate( size )
+                .order( ByteOrder.LITTLE_ENDIAN );
+    }
+
+    private void write( final ByteBuffer data ) throws IOException
+    {
+        write( data.array(), 0, data.position() );
+    }
+
+    private void write( final byte[] data, final int offset, final int length )
+            throws IOException
+    {
+        out.write( data, offset, length );
+        position += length;
+    }
+
+    /**
+     * Gives access to the buffer, to avoid copying compressed data.
+     */
+    private static final class ExposedByteArrayOutputStream extends
+            ByteArrayOutputStream
+    {
+        byte[] buffer()
+        {
+            return buf;
+        }
+    }
+}
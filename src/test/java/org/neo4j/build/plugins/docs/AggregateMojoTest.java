@@ -0,0 +1,48 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.apache.maven.project.MavenProject;
+import org.junit.Test;
+
+public class AggregateMojoTest
+{
+    @Test
+    public void shouldPutModulesWithTheSameArtifactIdUnderTheirGroupId()
+    {
+        assertEquals( Arrays.asList( "org.example/core/", "api/",
+                "org.example.extra/core/" ), AggregateMojo.prefixes( Arrays.asList(
+                module( "org.example", "core" ), module( "org.example", "api" ),
+                module( "org.example.extra", "core" ) ) ) );
+    }
+
+    private static MavenProject module( final String groupId,
+            final String artifactId )
+    {
+        MavenProject module = new MavenProject();
+        module.setGroupId( groupId );
+        module.setArtifactId( artifactId );
+        return module;
+    }
+}
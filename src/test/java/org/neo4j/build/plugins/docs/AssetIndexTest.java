@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AssetIndexTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldListTheFilesSortedByPath() throws IOException
+    {
+        File file = folder.newFile( "a.html" );
+        AssetIndex index = new AssetIndex( "fingerprint" );
+        index.add( new DocsManifest.Entry( "images/b.PNG", file, 20, 1,
+                "bbbb", false ), null );
+        index.add( new DocsManifest.Entry( "a.html", file, 10, 1, "aaaa",
+                true ), null );
+        File indexFile = new File( folder.getRoot(), AssetIndex.FILENAME );
+        index.write( indexFile );
+
+        List<String> lines = Arrays.asList( FileUtils.fileRead( indexFile,
+                "UTF-8" )
+                .split( "\n" ) );
+        assertEquals( 4, lines.size() );
+        assertEquals( "aaaa\t10\ttext/html\tfalse\ta.html", lines.get( 2 ) );
+        assertEquals( "bbbb\t20\timage/png\tfalse\timages/b.PNG",
+                lines.get( 3 ) );
+    }
+
+    @Test
+    public void shouldHashFilteredFilesWithWhatTheFilteringDependsOn()
+    {
+        File file = new File( folder.getRoot(), "a.html" );
+        DocsManifest.Entry entry = new DocsManifest.Entry( "a.html", file,
+                10, 1, "aaaa", true );
+        AssetIndex one = new AssetIndex( "one" );
+        one.add( entry, "UTF-8" );
+        AssetIndex other = new AssetIndex( "other" );
+        other.add( entry, "UTF-8" );
+        assertFalse( hash( one ).equals( "aaaa" ) );
+        assertFalse( hash( one ).equals( hash( other ) ) );
+    }
+
+    @Test
+    public void shouldFindMediaTypes()
+    {
+        assertEquals( "image/svg+xml", AssetIndex.mediaType( "a/b.svg" ) );
+        assertEquals( "text/css", AssetIndex.mediaType( "style.CSS" ) );
+        assertEquals( "application/octet-stream",
+                AssetIndex.mediaType( "a.b/c" ) );
+    }
+
+    private String hash( final AssetIndex index )
+    {
+        File indexFile = new File( folder.getRoot(), "index.tsv" );
+        try
+        {
+            index.write( indexFile );
+            String[] lines = FileUtils.fileRead( indexFile, "UTF-8" )
+                    .split( "\n" );
+            return lines[2].split( "\t" )[0];
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e );
+        }
+    }
+}
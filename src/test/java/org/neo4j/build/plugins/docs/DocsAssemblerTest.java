@@ -0,0 +1,664 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Resource;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.apache.maven.shared.filtering.MavenFileFilter;
+import org.apache.maven.shared.filtering.MavenResourcesExecution;
+import org.apache.maven.shared.filtering.MavenResourcesFiltering;
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.PlexusContainer;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocsAssemblerTest
+{
+    private static PlexusContainer container;
+    private static MavenResourcesFiltering resourcesFiltering;
+    private static MavenFileFilter fileFilter;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void lookUpFiltering() throws Exception
+    {
+        container = new DefaultPlexusContainer();
+        resourcesFiltering = container.lookup( MavenResourcesFiltering.class );
+        fileFilter = container.lookup( MavenFileFilter.class );
+    }
+
+    @AfterClass
+    public static void disposeContainer()
+    {
+        container.dispose();
+    }
+
+    @Test
+    public void shouldOnlyAssembleWhatChanged() throws Exception
+    {
+        File one = write( "docs/one.txt", "Version ${project.version}." );
+        write( "docs/two.txt", "Plain." );
+        write( "docs/sub/three.txt", "Three." );
+
+        DocsReport report = assemble( newAssembler( true ) );
+        Map<String, String> first = contents( jar() );
+        assertEquals( "Version 1.0.", first.get( "one.txt" ) );
+        assertEquals( "Plain.", first.get( "two.txt" ) );
+        assertEquals( "Three.", first.get( "sub/three.txt" ) );
+        assertTrue( report.toJson()
+                .contains( "\"fullRun\": true" ) );
+
+        long written = jar().lastModified();
+        report = assemble( newAssembler( true ) );
+        assertTrue( report.toJson()
+                .contains( "\"upToDate\": true" ) );
+        assertEquals( written, jar().lastModified() );
+        assertEquals( first, contents( jar() ) );
+
+        write( "docs/one.txt", "Now at ${project.version}!" );
+        one.setLastModified( one.lastModified() + 2000 );
+        write( "docs/four.txt", "Four ${project.artifactId}." );
+        assertTrue( new File( folder.getRoot(), "docs/sub/three.txt" ).delete() );
+        report = assemble( newAssembler( true ) );
+        String json = report.toJson();
+        assertTrue( json, json.contains( "\"fullRun\": false" ) );
+        assertTrue( json, json.contains( "\"changed\": 2" ) );
+        assertTrue( json, json.contains( "\"removed\": 1" ) );
+        Map<String, String> second = contents( jar() );
+        assertEquals( "Now at 1.0!", second.get( "one.txt" ) );
+        assertEquals( "Four it.", second.get( "four.txt" ) );
+        assertEquals( "Plain.", second.get( "two.txt" ) );
+        assertFalse( second.containsKey( "sub/three.txt" ) );
+        assertFalse( new File( target(), "filtered-docs/sub/three.txt" ).exists() );
+        assertEquals( "Four it.", FileUtils.fileRead( new File( target(),
+                "filtered-docs/four.txt" ), "UTF-8" ) );
+        for ( String name : target().list() )
+        {
+            assertFalse( name, name.startsWith( "filtered-docs-" ) );
+        }
+    }
+
+    @Test
+    public void shouldFilterTheSameOnSeveralThreads() throws Exception
+    {
+        writeTree( 60 );
+        DocsAssembler serial = newAssembler( true );
+        serial.setThreads( 1 );
+        assemble( serial );
+        File serialTarget = new File( folder.getRoot(), "serial" );
+        assertTrue( target().renameTo( serialTarget ) );
+
+        DocsAssembler parallel = newAssembler( true );
+        parallel.setThreads( 4 );
+        assemble( parallel );
+
+        File serialDocs = new File( serialTarget, "filtered-docs" );
+        File parallelDocs = new File( target(), "filtered-docs" );
+        assertEquals( 60, serialDocs.list().length );
+        for ( String name : serialDocs.list() )
+        {
+            assertTrue( name, FileUtils.contentEquals( new File( serialDocs,
+                    name ), new File( parallelDocs, name ) ) );
+        }
+        assertEquals( 60, parallelDocs.list().length );
+        assertEquals( contents( new File( serialTarget, jar().getName() ) ),
+                contents( jar() ) );
+    }
+
+    @Test
+    public void shouldFilterLikeMavenFiltering() throws Exception
+    {
+        writeTree( 60 );
+        write( "docs/manual.pdf", "Not filtered ${project.version}." );
+        assertFilteredLikeMavenFiltering( "UTF-8" );
+    }
+
+    /**
+     * UTF-16 can't be filtered on the bytes, so this goes through the
+     * readers of maven-filtering.
+     */
+    @Test
+    public void shouldFilterLikeMavenFilteringWithReaders() throws Exception
+    {
+        for ( int i = 0; i < 10; i++ )
+        {
+            write( "docs/file" + i + ".txt", "Line ${project.version}\r\n"
+                                             + "\u00e5 @project.artifactId@ "
+                                             + i, "UTF-16" );
+        }
+        assertFilteredLikeMavenFiltering( "UTF-16" );
+    }
+
+    private void assertFilteredLikeMavenFiltering( final String encoding )
+            throws Exception
+    {
+        File baseline = new File( folder.getRoot(), "baseline" );
+        filterWithMavenFiltering( encoding, baseline );
+
+        DocsAssembler assembler = newAssembler( true );
+        assembler.setEncoding( encoding );
+        assembler.setThreads( 4 );
+        assemble( assembler );
+
+        File filtered = new File( target(), "filtered-docs" );
+        String[] names = baseline.list();
+        Arrays.sort( names );
+        String[] filteredNames = filtered.list();
+        Arrays.sort( filteredNames );
+        assertEquals( Arrays.asList( names ), Arrays.asList( filteredNames ) );
+        for ( String name : names )
+        {
+            File file = new File( filtered, name );
+            if ( !file.isFile() )
+            {
+                // files which aren't filtered are archived from the sources
+                file = new File( new File( folder.getRoot(), "docs" ), name );
+            }
+            assertTrue( name, FileUtils.contentEquals( new File( baseline,
+                    name ), file ) );
+        }
+    }
+
+    @Test
+    public void shouldStreamTheSameEntriesAsFilteringToDisk() throws Exception
+    {
+        writeTree( 20 );
+        write( "docs/image.png", "Not filtered ${project.version}." );
+        assemble( newAssembler( true ) );
+        Map<String, String> onDisk = contents( jar() );
+        FileUtils.deleteDirectory( target() );
+
+        DocsAssembler streaming = newAssembler( true );
+        streaming.setStreaming( true );
+        assemble( streaming );
+        assertEquals( onDisk, contents( jar() ) );
+        assertEquals( "Not filtered ${project.version}.",
+                onDisk.get( "image.png" ) );
+        assertFalse( new File( target(), "filtered-docs" ).exists() );
+    }
+
+    @Test
+    public void shouldReuseTheArchiveWhenOnlyUnusedPropertiesChanged()
+            throws Exception
+    {
+        write( "docs/value.txt", "value: ${myprop}" );
+        Properties properties = new Properties();
+        properties.setProperty( "myprop", "one" );
+        assemble( newAssembler( true, properties ) );
+        File manifest = new File( target(), "docs-assembly.manifest" );
+        long jarWritten = jar().lastModified();
+        long manifestWritten = manifest.lastModified();
+
+        properties.setProperty( "unrelated", "changed" );
+        String json = assemble( newAssembler( true, properties ) ).toJson();
+        assertTrue( json, json.contains( "\"upToDate\": true" ) );
+        assertEquals( jarWritten, jar().lastModified() );
+        assertEquals( manifestWritten, manifest.lastModified() );
+
+        properties.setProperty( "myprop", "two" );
+        json = assemble( newAssembler( true, properties ) ).toJson();
+        assertTrue( json, json.contains( "\"fullRun\": true" ) );
+        assertEquals( "value: two", contents( jar() ).get( "value.txt" ) );
+    }
+
+    @Test
+    public void shouldUpdateArchiveWithChangedPropertyValues() throws Exception
+    {
+        assertPropertyChangeIsArchived( false, null );
+        assertPropertyChangeIsArchived( true, null );
+        assertPropertyChangeIsArchived( false, "2012-06-01T12:00:00Z" );
+        assertPropertyChangeIsArchived( true, "2012-06-01T12:00:00Z" );
+    }
+
+    private void assertPropertyChangeIsArchived( final boolean streaming,
+            final String outputTimestamp ) throws Exception
+    {
+        write( "docs/value.txt", "value: ${myprop}" );
+        write( "docs/plain.txt", "No expressions." );
+        String[] values = { "one", "two" };
+        for ( String value : values )
+        {
+            Properties properties = new Properties();
+            properties.setProperty( "myprop", value );
+            DocsAssembler assembler = newAssembler( true, properties );
+            assembler.setStreaming( streaming );
+            assembler.setUpdateArchive( true );
+            assembler.setOutputTimestamp( outputTimestamp );
+            assemble( assembler );
+            Map<String, String> contents = contents( jar() );
+            assertEquals( "streaming " + streaming + ", timestamp "
+                          + outputTimestamp, "value: " + value,
+                    contents.get( "value.txt" ) );
+            assertEquals( "No expressions.", contents.get( "plain.txt" ) );
+        }
+        FileUtils.deleteDirectory( target() );
+    }
+
+    @Test
+    public void shouldLeaveEmptyDirectoriesOut() throws Exception
+    {
+        write( "docs/sub/one.txt", "One." );
+        assertTrue( new File( folder.getRoot(), "docs/empty/nested" ).mkdirs() );
+        assemble( newAssembler( false ) );
+
+        List<String> names = names( jar() );
+        assertTrue( names.toString(), names.contains( "sub/one.txt" ) );
+        for ( String name : names )
+        {
+            assertFalse( name, name.startsWith( "empty/" ) );
+        }
+    }
+
+    @Test
+    public void shouldResolveRelativeDirectoriesWithoutChangingThem()
+            throws Exception
+    {
+        write( "docs/one.txt", "One." );
+        SourceDirectory relative = new SourceDirectory( new File( "docs" ) );
+        relative.setPrefix( "manual" );
+        MavenProject project = newProject();
+        DocsAssembler assembler = new DocsAssembler(
+                Collections.singletonList( relative ), false,
+                new SystemStreamLog(), newSession( project, new Properties() ),
+                project, null, resourcesFiltering, fileFilter );
+        assembler.setAttach( false );
+        assemble( assembler );
+
+        assertEquals( Collections.singletonMap( "manual/one.txt", "One." ),
+                contents( jar() ) );
+        assertEquals( new File( "docs" ), relative.getDirectory() );
+    }
+
+    @Test
+    public void shouldLeaveTheManifestOutOfZips() throws Exception
+    {
+        write( "docs/one.txt", "One." );
+        DocsAssembler assembler = newAssembler( false );
+        assembler.setFormat( "zip" );
+        assemble( assembler );
+
+        assertEquals( Arrays.asList( "one.txt" ), names( new File( target(),
+                "it-1.0-docs.zip" ) ) );
+        assemble( newAssembler( false ) );
+        assertTrue( names( jar() ).contains( "META-INF/MANIFEST.MF" ) );
+    }
+
+    @Test
+    public void shouldRemoveStaleFilesFromTheDirectory() throws Exception
+    {
+        write( "docs/one.txt", "One." );
+        write( "docs/sub/two.txt", "Two." );
+        DocsAssembler assembler = newAssembler( false );
+        assembler.setFormat( "dir" );
+        assemble( assembler );
+        File directory = new File( target(), "it-1.0-docs" );
+        assertEquals( "Two.", FileUtils.fileRead( new File( directory,
+                "sub/two.txt" ), "UTF-8" ) );
+
+        assertTrue( new File( folder.getRoot(), "docs/sub/two.txt" ).delete() );
+        write( "docs/three.txt", "Three." );
+        assembler = newAssembler( false );
+        assembler.setFormat( "dir" );
+        assemble( assembler );
+
+        String[] names = directory.list();
+        Arrays.sort( names );
+        assertEquals( Arrays.asList( "one.txt", "three.txt" ),
+                Arrays.asList( names ) );
+        assertEquals( "Three.", FileUtils.fileRead( new File( directory,
+                "three.txt" ), "UTF-8" ) );
+
+        assembler = newAssembler( false );
+        assembler.setFormat( "dir" );
+        String json = assemble( assembler ).toJson();
+        assertTrue( json, json.contains( "\"upToDate\": true" ) );
+    }
+
+    @Test
+    public void shouldAttachTheFormatAsType() throws Exception
+    {
+        write( "docs/one.txt", "One." );
+        final List<String> attached = new ArrayList<String>();
+        for ( String format : new String[] { "jar", "zip", "tar.gz", "dir" } )
+        {
+            MavenProject project = newProject();
+            DocsAssembler assembler = new DocsAssembler(
+                    Collections.singletonList( new SourceDirectory( new File(
+                            folder.getRoot(), "docs" ) ) ), false,
+                    new SystemStreamLog(), newSession( project,
+                            new Properties() ), project,
+                    new MavenProjectHelper()
+                    {
+                        public void attachArtifact(
+                                final MavenProject project, final String type,
+                                final String classifier, final File file )
+                        {
+                            attached.add( type + ":" + classifier + ":"
+                                          + file.getName() );
+                        }
+
+                        public void attachArtifact(
+                                final MavenProject project, final String type,
+                                final File file )
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        public void attachArtifact(
+                                final MavenProject project, final File file,
+                                final String classifier )
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        @SuppressWarnings( "rawtypes" )
+                        public void addResource( final MavenProject project,
+                                final String directory, final List includes,
+                                final List excludes )
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        @SuppressWarnings( "rawtypes" )
+                        public void addTestResource(
+                                final MavenProject project,
+                                final String directory, final List includes,
+                                final List excludes )
+                        {
+                            throw new UnsupportedOperationException();
+                        }
+                    }, resourcesFiltering, fileFilter );
+            assembler.setFormat( format );
+            assemble( assembler );
+        }
+        assertEquals( Arrays.asList( "jar:docs:it-1.0-docs.jar",
+                "zip:docs:it-1.0-docs.zip", "tar.gz:docs:it-1.0-docs.tar.gz",
+                "dir:docs:it-1.0-docs" ), attached );
+    }
+
+    @Test
+    public void shouldCombineArchivesUnderPrefixes() throws Exception
+    {
+        SortedMap<String, File> archives = new TreeMap<String, File>();
+        archives.put( "alpha/", archive( "alpha.jar", "a/one.txt", "one" ) );
+        archives.put( "beta/", archive( "beta.jar", "two.txt", "two" ) );
+        File combined = new File( folder.getRoot(), "combined.jar" );
+
+        DocsAssembler assembler = new DocsAssembler( null, false,
+                new SystemStreamLog(), null, null, null, null, null );
+        assembler.setReport( new DocsReport( "aggregate", "test" ) );
+        assembler.setThreads( 2 );
+        assembler.setParallelArchiving( true );
+        assembler.combineArchives( archives, combined );
+
+        ZipFile zip = new ZipFile( combined );
+        try
+        {
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() )
+            {
+                names.add( entries.nextElement()
+                        .getName() );
+            }
+            assertEquals( Arrays.asList( ParallelArchiver.MANIFEST_DIRECTORY,
+                    ParallelArchiver.MANIFEST_NAME, "alpha/", "alpha/a/",
+                    "alpha/a/one.txt", "beta/", "beta/two.txt" ), names );
+            assertEquals( "one", read( zip.getInputStream( zip.getEntry( "alpha/a/one.txt" ) ) ) );
+            assertEquals( "two", read( zip.getInputStream( zip.getEntry( "beta/two.txt" ) ) ) );
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+    /**
+     * Files with and without expressions, with line endings of both kinds and
+     * characters outside of ASCII.
+     */
+    private void writeTree( final int count ) throws IOException
+    {
+        for ( int i = 0; i < count; i++ )
+        {
+            String contents = i % 3 == 0 ? "Plain text \u00e5\u00e4\u00f6 " + i
+                    : i % 3 == 1 ? "Line ${project.version}\r\nnext @project.artifactId@ "
+                                   + i + "\r\n"
+                            : "Unknown ${no.such.property} and \u20ac ${project.groupId}\n"
+                              + i;
+            write( "docs/file" + i + ".txt", contents );
+        }
+    }
+
+    private DocsAssembler newAssembler( final boolean filter )
+    {
+        return newAssembler( filter, new Properties() );
+    }
+
+    /**
+     * @param properties the user properties of the session.
+     */
+    private DocsAssembler newAssembler( final boolean filter,
+            final Properties properties )
+    {
+        MavenProject project = newProject();
+        DocsAssembler assembler = new DocsAssembler(
+                Collections.singletonList( new SourceDirectory( new File(
+                        folder.getRoot(), "docs" ) ) ), filter,
+                new SystemStreamLog(), newSession( project, properties ),
+                project, null, resourcesFiltering, fileFilter );
+        assembler.setAttach( false );
+        assembler.setEncoding( "UTF-8" );
+        return assembler;
+    }
+
+    private MavenProject newProject()
+    {
+        MavenProject project = new MavenProject();
+        project.setGroupId( "org.example" );
+        project.setArtifactId( "it" );
+        project.setVersion( "1.0" );
+        project.setFile( new File( folder.getRoot(), "pom.xml" ) );
+        project.getBuild()
+                .setDirectory( target().getAbsolutePath() );
+        return project;
+    }
+
+    /**
+     * @param properties the user properties of the session.
+     */
+    private static MavenSession newSession( final MavenProject project,
+            final Properties properties )
+    {
+        DefaultMavenExecutionRequest request = new DefaultMavenExecutionRequest();
+        request.setUserProperties( properties );
+        return new MavenSession( null, request, null, project );
+    }
+
+    /**
+     * Filters the docs the way the plugin did before it filtered them itself.
+     */
+    private void filterWithMavenFiltering( final String encoding,
+            final File output ) throws Exception
+    {
+        MavenProject project = newProject();
+        Resource resource = new Resource();
+        resource.setDirectory( "docs" );
+        resource.setFiltering( true );
+        MavenResourcesExecution execution = new MavenResourcesExecution(
+                Collections.singletonList( resource ), output, project,
+                encoding, Collections.emptyList(),
+                DocsFiltering.NON_FILTERED_FILE_EXTENSIONS, newSession(
+                        project, new Properties() ) );
+        execution.setResourcesBaseDirectory( folder.getRoot() );
+        resourcesFiltering.filterResources( execution );
+    }
+
+    private static DocsReport assemble( final DocsAssembler assembler )
+            throws Exception
+    {
+        DocsReport report = new DocsReport( "assemble", "test" );
+        assembler.setReport( report );
+        assembler.doAssembly();
+        return report;
+    }
+
+    private File target()
+    {
+        return new File( folder.getRoot(), "target" );
+    }
+
+    private File jar()
+    {
+        return new File( target(), "it-1.0-docs.jar" );
+    }
+
+    /**
+     * @return the contents of the files in the archive by name, without the
+     *         jar manifest.
+     */
+    private static SortedMap<String, String> contents( final File archive )
+            throws IOException
+    {
+        SortedMap<String, String> contents = new TreeMap<String, String>();
+        ZipFile zip = new ZipFile( archive );
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                if ( !entry.isDirectory() && !entry.getName()
+                        .startsWith( ParallelArchiver.MANIFEST_DIRECTORY ) )
+                {
+                    contents.put( entry.getName(),
+                            read( zip.getInputStream( entry ) ) );
+                }
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+        return contents;
+    }
+
+    private File write( final String path, final String contents )
+            throws IOException
+    {
+        return write( path, contents, "UTF-8" );
+    }
+
+    private File write( final String path, final String contents,
+            final String encoding ) throws IOException
+    {
+        File file = new File( folder.getRoot(), path );
+        file.getParentFile()
+                .mkdirs();
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents.getBytes( encoding ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+
+    private File archive( final String name, final String path,
+            final String contents ) throws IOException
+    {
+        File file = write( path, contents );
+        File archive = new File( folder.getRoot(), name );
+        new ParallelArchiver( 1, Collections.<String, Integer>emptyMap(), 6 ).createArchive(
+                new TreeMap<String, PlexusIoFileResource>(
+                        Collections.singletonMap( path,
+                                new PlexusIoFileResource( file, path ) ) ),
+                archive );
+        return archive;
+    }
+
+    private static List<String> names( final File archive ) throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        ZipFile zip = new ZipFile( archive );
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() )
+            {
+                names.add( entries.nextElement()
+                        .getName() );
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+        return names;
+    }
+
+    private static String read( final InputStream in ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return out.toString( "UTF-8" );
+    }
+}
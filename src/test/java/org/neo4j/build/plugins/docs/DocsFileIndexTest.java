@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocsFileIndexTest
+{
+    private static final String[] FILES = { "index.txt", "a/b/c.txt",
+            "a/image.png", "a/.git/config", "CVS/Entries", "b/CVS", "b/x~",
+            "b/.#lock", "b/#auto#", "b/%tmp%", "b/._fork", "b/.DS_Store",
+            "b/.cvsignore", "b/-darcs-backup1", "dir~/kept.txt",
+            "c/.svn/entries", "c/d/e/f/deep.txt", "c/#" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFindTheSameFilesAsTheDirectoryScanner()
+            throws IOException
+    {
+        File root = folder.newFolder( "docs" );
+        for ( String name : FILES )
+        {
+            create( root, name );
+        }
+        for ( int threads : new int[] { 1, 4 } )
+        {
+            assertEquals( scanner( root, null, null ), DocsFileIndex.scan(
+                    Collections.singletonList( new SourceDirectory( root ) ),
+                    threads )
+                    .get( 0 ) );
+        }
+    }
+
+    @Test
+    public void shouldApplyPatternsLikeTheDirectoryScanner()
+            throws IOException
+    {
+        File root = folder.newFolder( "docs" );
+        for ( String name : FILES )
+        {
+            create( root, name );
+        }
+        create( root, "raw/huge.csv" );
+        create( root, "a/b/scratch.tmp" );
+        String[] includes = { "a/", "c/**/*.txt", "index.txt", "raw/**" };
+        String[] excludes = { "**/*.tmp", "raw/**", "a/b/**/*.png" };
+        SourceDirectory directory = new SourceDirectory( root );
+        directory.setIncludes( Arrays.asList( includes ) );
+        directory.setExcludes( Arrays.asList( excludes ) );
+        SortedMap<String, File> files = DocsFileIndex.scan(
+                Collections.singletonList( directory ), 2 )
+                .get( 0 );
+        assertEquals( scanner( root, includes, excludes ), files );
+        assertEquals( Arrays.asList( "a/b/c.txt", "a/image.png",
+                "c/d/e/f/deep.txt", "index.txt" ),
+                new ArrayList<String>( files.keySet() ) );
+    }
+
+    @Test
+    public void shouldPutFilesUnderThePrefix() throws IOException
+    {
+        File root = folder.newFolder( "docs" );
+        create( root, "a/file.txt" );
+        SourceDirectory directory = new SourceDirectory( root );
+        directory.setPrefix( "/images\\" );
+        assertEquals( "images/", directory.getPrefix() );
+        assertEquals( Collections.singleton( "images/a/file.txt" ),
+                DocsFileIndex.scan( Collections.singletonList( directory ), 1 )
+                        .get( 0 )
+                        .keySet() );
+    }
+
+    @Test
+    public void shouldLetLaterDirectoriesWin() throws Exception
+    {
+        File first = folder.newFolder( "first" );
+        File second = folder.newFolder( "second" );
+        create( first, "a/same.txt" );
+        create( first, "only-first.txt" );
+        create( second, "a/same.txt" );
+        DocsAssembler assembler = new DocsAssembler( null, false, null, null,
+                null, null, null, null );
+        SortedMap<String, File> files = assembler.scanDirectories( Arrays.asList(
+                new SourceDirectory( first ), new SourceDirectory( second ) ) );
+        assertEquals( new File( second, "a/same.txt" ), files.get( "a/same.txt" ) );
+        assertEquals( new File( first, "only-first.txt" ),
+                files.get( "only-first.txt" ) );
+        assertEquals( 2, files.size() );
+    }
+
+    @Test
+    public void shouldTellEmptyDirectories() throws IOException
+    {
+        File empty = folder.newFolder( "empty" );
+        assertTrue( DocsFileIndex.isEmpty( empty ) );
+        create( empty, "file.txt" );
+        assertFalse( DocsFileIndex.isEmpty( empty ) );
+    }
+
+    private static SortedMap<String, File> scanner( final File root,
+            final String[] includes, final String[] excludes )
+    {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir( root );
+        scanner.setIncludes( includes );
+        scanner.setExcludes( excludes );
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        SortedMap<String, File> files = new TreeMap<String, File>();
+        for ( String name : scanner.getIncludedFiles() )
+        {
+            files.put( name.replace( File.separatorChar, '/' ), new File(
+                    root, name ) );
+        }
+        return files;
+    }
+
+    private static void create( final File root, final String name )
+            throws IOException
+    {
+        File file = new File( root, name );
+        file.getParentFile()
+                .mkdirs();
+        assertTrue( file.createNewFile() );
+    }
+}
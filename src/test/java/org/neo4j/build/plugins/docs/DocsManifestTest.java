@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Test;
+
+public class DocsManifestTest
+{
+    @Test
+    public void shouldReadWhatWasWritten() throws IOException
+    {
+        File dir = new File( "target/manifest-test" );
+        dir.mkdirs();
+        File source = write( new File( dir, "source.txt" ), "Some contents." );
+        File archive = write( new File( dir, "archive.jar" ), "Not a jar." );
+
+        DocsManifest manifest = new DocsManifest( "abc" );
+        DocsManifest.Entry scanned = DocsManifest.scan( "sub dir/source.txt",
+                source );
+        manifest.put( scanned );
+        manifest.setArchive( archive );
+        File file = new File( dir, "manifest" );
+        manifest.write( file );
+
+        DocsManifest read = DocsManifest.read( file );
+        assertEquals( "abc", read.getFingerprint() );
+        DocsManifest.Entry entry = read.get( "sub dir/source.txt" );
+        assertEquals( scanned.hash, entry.hash );
+        assertEquals( 40, entry.hash.length() );
+        assertFalse( entry.tokens );
+        assertTrue( entry.isSameStat( source ) );
+        assertTrue( read.isArchiveUnchanged( archive ) );
+
+        write( archive, "Another jar." );
+        assertFalse( read.isArchiveUnchanged( archive ) );
+    }
+
+    @Test
+    public void shouldNoticeChangesInADirectory() throws IOException
+    {
+        File dir = new File( "target/manifest-test/docs" );
+        FileUtils.deleteDirectory( dir );
+        new File( dir, "sub" ).mkdirs();
+        File file = write( new File( dir, "sub/one.txt" ), "One." );
+        DocsManifest manifest = new DocsManifest( "abc" );
+        manifest.setArchive( dir );
+        assertTrue( manifest.isArchiveUnchanged( dir ) );
+
+        file.setLastModified( file.lastModified() - 10000 );
+        assertFalse( manifest.isArchiveUnchanged( dir ) );
+        manifest.setArchive( dir );
+        File other = write( new File( dir, "two.txt" ), "Two." );
+        assertFalse( manifest.isArchiveUnchanged( dir ) );
+        other.delete();
+        assertTrue( manifest.isArchiveUnchanged( dir ) );
+        assertFalse( manifest.isArchiveUnchanged( new File( dir, "none" ) ) );
+    }
+
+    @Test
+    public void shouldFindFilterExpressions() throws IOException
+    {
+        File dir = new File( "target/manifest-test" );
+        dir.mkdirs();
+        assertTrue( scan( dir, "Version ${project.version}." ) );
+        assertTrue( scan( dir, "Version @project.version@." ) );
+        assertFalse( scan( dir, "Mail me@example.org, costs $5 {maybe}." ) );
+    }
+
+    @Test
+    public void shouldKeepTheExpressionsAndTheirValues() throws IOException
+    {
+        File dir = new File( "target/manifest-test" );
+        dir.mkdirs();
+        File source = write( new File( dir, "source.txt" ),
+                "Version ${project.version}, @build.number@." );
+        File file = new File( dir, "manifest" );
+
+        DocsManifest manifest = new DocsManifest( "abc" );
+        manifest.put( DocsManifest.scan( "source.txt", source ) );
+        manifest.setValues( "def", new TreeSet<String>( Arrays.asList(
+                "${project.version}", "@build.number@" ) ) );
+        manifest.write( file );
+        DocsManifest read = DocsManifest.read( file );
+        assertEquals( "def", read.getValues() );
+        assertEquals( manifest.getExpressions(), read.getExpressions() );
+        assertTrue( read.get( "source.txt" ).tokens );
+
+        manifest.setValues( "ghi", null );
+        manifest.write( file );
+        read = DocsManifest.read( file );
+        assertEquals( "ghi", read.getValues() );
+        assertNull( read.getExpressions() );
+        assertTrue( read.get( "source.txt" ).tokens );
+    }
+
+    @Test
+    public void shouldHashFilteredContentsByWhatTheFilteringDependsOn()
+    {
+        String hash = DocsManifest.filteredHash( "abc", "UTF-8", "values" );
+        assertEquals( hash, DocsManifest.filteredHash( "abc", "UTF-8", "values" ) );
+        assertFalse( hash.equals( DocsManifest.filteredHash( "abd", "UTF-8",
+                "values" ) ) );
+        assertFalse( hash.equals( DocsManifest.filteredHash( "abc",
+                "ISO-8859-1", "values" ) ) );
+        assertFalse( hash.equals( DocsManifest.filteredHash( "abc", "UTF-8",
+                "other values" ) ) );
+    }
+
+    @Test
+    public void shouldIgnoreUnknownManifest() throws IOException
+    {
+        File dir = new File( "target/manifest-test" );
+        dir.mkdirs();
+        assertNull( DocsManifest.read( write( new File( dir, "garbage" ),
+                "garbage" ) ) );
+        assertNull( DocsManifest.read( new File( dir, "missing" ) ) );
+    }
+
+    private static boolean scan( final File dir, final String contents )
+            throws IOException
+    {
+        return DocsManifest.scan( "scan.txt",
+                write( new File( dir, "scan.txt" ), contents ) ).tokens;
+    }
+
+    private static File write( final File file, final String contents )
+            throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
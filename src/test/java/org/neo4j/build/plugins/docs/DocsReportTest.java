@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class DocsReportTest
+{
+    @Test
+    public void shouldWriteStagesAndSlowestFiles()
+    {
+        DocsReport report = new DocsReport( "assemble", "org.neo4j:docs:jar:1" );
+        DocsReport.Stage stage = report.start( "filter" );
+        stage.put( "fullRun", true );
+        stage.add( "files", 2 );
+        stage.add( "files", 3 );
+        stage.stop();
+        for ( int i = 0; i < 20; i++ )
+        {
+            report.fileFiltered( "file" + i + ".txt", i * 1000000L, i );
+        }
+        report.fileFiltered( "a \"quoted\"\\path\n.txt", 1000, 1 );
+
+        String json = report.toJson();
+        assertTrue( json, json.contains( "\"goal\": \"assemble\"" ) );
+        assertTrue( json, json.contains( "{ \"name\": \"filter\", \"millis\": " ) );
+        assertTrue( json, json.contains( "\"fullRun\": true, \"files\": 5 }" ) );
+        assertTrue( json, json.indexOf( "file19.txt" ) < json.indexOf( "file10.txt" ) );
+        assertFalse( json, json.contains( "file9.txt" ) );
+        assertFalse( json, json.contains( "quoted" ) );
+
+        report = new DocsReport( "install", null );
+        report.fileFiltered( "a \"quoted\"\\path\n.txt", 1000, 1 );
+        json = report.toJson();
+        assertTrue( json, json.contains( "\"project\": null" ) );
+        assertTrue( json, json.contains( "\"a \\\"quoted\\\"\\\\path\\n.txt\"" ) );
+    }
+
+    @Test
+    public void shouldSummarizeOnOneLine()
+    {
+        DocsReport report = new DocsReport( "install", "org.neo4j:docs:jar:1" );
+        report.start( "test" )
+                .stop();
+        report.start( "install" )
+                .stop();
+        String summary = report.summary();
+        assertTrue( summary, summary.matches( "Docs install took \\d+ ms: test \\d+ ms, install \\d+ ms\\." ) );
+        assertEquals( -1, summary.indexOf( '\n' ) );
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DocsWatcherTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<Set<Path>> batches = new LinkedBlockingQueue<Set<Path>>();
+    private File docs;
+    private File generated;
+    private DocsWatcher watcher;
+    private Thread thread;
+
+    @Before
+    public void startWatching() throws IOException
+    {
+        docs = folder.newFolder( "docs" );
+        generated = new File( folder.getRoot(), "generated" );
+        watcher = new DocsWatcher( Arrays.asList( docs, generated ), 100 );
+        thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    watcher.watch( new DocsWatcher.Listener()
+                    {
+                        @Override
+                        public void changed( final Set<Path> changed )
+                        {
+                            batches.add( changed );
+                        }
+                    } );
+                }
+                catch ( Exception e )
+                {
+                    // stopped
+                }
+            }
+        };
+        thread.start();
+    }
+
+    @After
+    public void stopWatching() throws Exception
+    {
+        watcher.stop();
+        thread.join( 5000 );
+        watcher.close();
+    }
+
+    @Test
+    public void shouldReportChangesInSubDirectories() throws Exception
+    {
+        File dir = new File( docs, "a/b" );
+        assertTrue( dir.mkdirs() );
+        Set<Path> changed = next();
+        assertTrue( changed.toString(), changed.contains( new File( docs, "a" ).toPath() ) );
+
+        File file = new File( dir, "file.txt" );
+        assertTrue( file.createNewFile() );
+        changed = next();
+        assertTrue( changed.toString(), changed.contains( file.toPath() ) );
+    }
+
+    @Test
+    public void shouldPickUpDirectoriesWhichShowUpLater() throws Exception
+    {
+        assertTrue( generated.mkdir() );
+        assertTrue( next().contains( generated.toPath() ) );
+        File file = new File( generated, "file.txt" );
+        assertTrue( file.createNewFile() );
+        Set<Path> changed = next();
+        assertTrue( changed.toString(), changed.contains( file.toPath() ) );
+    }
+
+    @Test
+    public void shouldWatchRootsAgainAfterTheyWereDeleted() throws Exception
+    {
+        assertTrue( generated.mkdir() );
+        assertTrue( next().contains( generated.toPath() ) );
+        File file = new File( generated, "file.txt" );
+        assertTrue( file.createNewFile() );
+        assertTrue( next().contains( file.toPath() ) );
+
+        assertTrue( file.delete() );
+        assertTrue( generated.delete() );
+        assertTrue( next().contains( file.toPath() ) );
+        assertTrue( generated.mkdir() );
+        Set<Path> changed = next();
+        assertTrue( changed.toString(), changed.contains( generated.toPath() ) );
+        File again = new File( generated, "again.txt" );
+        assertTrue( again.createNewFile() );
+        changed = next();
+        assertTrue( changed.toString(), changed.contains( again.toPath() ) );
+    }
+
+    private Set<Path> next() throws InterruptedException
+    {
+        Set<Path> changed = batches.poll( 10, TimeUnit.SECONDS );
+        assertNotNull( "no changes seen", changed );
+        return changed;
+    }
+}
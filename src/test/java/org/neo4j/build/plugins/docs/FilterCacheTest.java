@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FilterCacheTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFindEverythingThatMayBeAnExpression() throws IOException
+    {
+        File file = file( "a.txt",
+                "a ${x} b @y@ c ${open\n} mail@example.com\n${z}${x}" );
+        assertEquals( new TreeSet<String>( Arrays.asList( "${x}", "${z}",
+                "@y@" ) ), FilterCache.expressions( file, "UTF-8" ) );
+    }
+
+    @Test
+    public void shouldNotCacheNestedExpressions() throws IOException
+    {
+        File file = file( "a.txt", "a ${x} and ${foo.${bar}}" );
+        assertNull( FilterCache.expressions( file, "UTF-8" ) );
+        assertNull( new FilterCache( folder.newFolder( "cache" ), 1000 ).key(
+                file, "hash", filter( "bar", "x", "foo.x", "1" ) ) );
+    }
+
+    @Test
+    public void shouldKeyOnTheValuesOfTheExpressionsInTheFile()
+            throws IOException
+    {
+        File file = file( "a.txt", "version ${version}" );
+        File cacheDirectory = folder.newFolder( "cache" );
+        String key = new FilterCache( cacheDirectory, 1000 ).key( file,
+                "hash", filter( "version", "1", "other", "a" ) );
+        assertNotNull( key );
+        assertEquals( key, new FilterCache( cacheDirectory, 1000 ).key( file,
+                "hash", filter( "version", "1", "other", "b" ) ) );
+        assertFalse( key.equals( new FilterCache( cacheDirectory, 1000 ).key(
+                file, "hash", filter( "version", "2", "other", "a" ) ) ) );
+        assertFalse( key.equals( new FilterCache( cacheDirectory, 1000 ).key(
+                file, "other hash", filter( "version", "1", "other", "a" ) ) ) );
+    }
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedFiles() throws IOException
+    {
+        FilterCache cache = new FilterCache( folder.newFolder( "cache" ), 15 );
+        File destination = new File( folder.getRoot(), "out.txt" );
+        cache.put( "aa01", file( "one.txt", "0123456789" ) );
+        cache.put( "bb02", file( "two.txt", "0123456789" ) );
+        assertTrue( cache.get( "aa01", destination ) );
+        new File( folder.getRoot(), "cache/bb/02" ).setLastModified( System.currentTimeMillis() - 100000 );
+        cache.evict();
+
+        assertTrue( cache.get( "aa01", destination ) );
+        assertFalse( cache.get( "bb02", destination ) );
+        assertEquals( "0123456789", FileUtils.fileRead( destination, "UTF-8" ) );
+        assertEquals( 2, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    private DocsFilter filter( final String... properties )
+    {
+        Model model = new Model();
+        Properties values = new Properties();
+        for ( int i = 0; i < properties.length; i += 2 )
+        {
+            values.setProperty( properties[i], properties[i + 1] );
+        }
+        model.setProperties( values );
+        return new DocsFilter(
+                Collections.<FileUtils.FilterWrapper>singletonList( new DocsFilterWrapper(
+                        new MavenProject( model ), null ) ), "UTF-8", 1024 );
+    }
+
+    private File file( final String name, final String contents )
+            throws IOException
+    {
+        File file = new File( folder.getRoot(), name );
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
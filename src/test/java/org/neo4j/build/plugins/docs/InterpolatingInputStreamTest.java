@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Test;
+
+public class InterpolatingInputStreamTest
+{
+    private static final String TEXT = "Plain line.\n"
+                                       + "Version ${project.version} of ${project.artifactId}.\n"
+                                       + "Mail me@example.org or @answer@, not @missing@.\n"
+                                       + "${missing} and ${answer}${answer} ${unclosed\n"
+                                       + "Price: $5, {braces} and $${answer}}\n"
+                                       + "Ünïcödé € ${answer} @ \r\n" + "@answer@";
+
+    @Test
+    public void shouldFilterLikeTheReaders() throws IOException
+    {
+        List<FileUtils.FilterWrapper> wrappers = wrappers();
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < 200; i++ )
+        {
+            text.append( TEXT )
+                    .append( i % 7 == 0 ? "" : "\n" );
+        }
+        for ( String encoding : new String[] { "UTF-8", "ISO-8859-1" } )
+        {
+            byte[] bytes = text.toString()
+                    .getBytes( encoding );
+            String expected = filterWithReaders( bytes, encoding, wrappers );
+            assertTrue( expected.contains( "Version 1.0 of docs." ) );
+            assertTrue( expected.contains( "${missing} and 4242 " ) );
+            for ( int size : new int[] { 1, 7, 64, 8192 } )
+            {
+                InterpolatingInputStream in = new InterpolatingInputStream(
+                        new ByteArrayInputStream( bytes ), wrappers,
+                        new InterpolatingInputStream.Buffers(
+                                Charset.forName( encoding ), size ), null );
+                assertEquals( encoding + " " + size, expected, new String(
+                        read( in, size ), encoding ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldReplaceMalformedInputLikeTheReaders() throws IOException
+    {
+        List<FileUtils.FilterWrapper> wrappers = wrappers();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        for ( int b = 0; b < 256; b++ )
+        {
+            text.write( b );
+        }
+        // a stray continuation byte, an overlong slash, a truncated euro sign,
+        // a surrogate, a code point past U+10FFFF and a truncated emoji
+        text.write( bytes( 0x80, 'a', 0xc0, 0xaf, '\n', 0xe2, 0x82, '$', '{',
+                'a', 'n', 's', 'w', 'e', 'r', '}', '\n', 0xed, 0xa0, 0x80,
+                ' ', 0xf4, 0x90, 0x80, 0x80, '@', 'a', 'n', 's', 'w', 'e', 'r',
+                '@', 0x81, 0x8d, '\n', 0xc3, 0xa5, 0xe2, 0x82, 0xac, 0xf0,
+                0x9f, 0x98, 0x80, ' ', 0xf0, 0x9f, 0x98 ) );
+        for ( String encoding : new String[] { "UTF-8", "ISO-8859-1",
+                "windows-1252" } )
+        {
+            byte[] expected = filterBytesWithReaders( text.toByteArray(),
+                    encoding, wrappers );
+            for ( int size : new int[] { 1, 2, 3, 5, 64, 8192 } )
+            {
+                InterpolatingInputStream in = new InterpolatingInputStream(
+                        new ByteArrayInputStream( text.toByteArray() ),
+                        wrappers, new InterpolatingInputStream.Buffers(
+                                Charset.forName( encoding ), size ), null );
+                assertArrayEquals( encoding + " " + size, expected, read( in,
+                        size ) );
+            }
+        }
+    }
+
+    @Test
+    public void shouldOnlySupportAsciiCompatibleEncodings()
+    {
+        assertEquals( true, InterpolatingInputStream.supports( "UTF-8" ) );
+        assertEquals( true, InterpolatingInputStream.supports( "ISO-8859-1" ) );
+        assertEquals( false, InterpolatingInputStream.supports( "UTF-16" ) );
+    }
+
+    private static List<FileUtils.FilterWrapper> wrappers()
+    {
+        Model model = new Model();
+        model.setGroupId( "org.neo4j" );
+        model.setArtifactId( "docs" );
+        model.setVersion( "1.0" );
+        model.addProperty( "answer", "42" );
+        return Collections.<FileUtils.FilterWrapper>singletonList( new DocsFilterWrapper(
+                new MavenProject( model ), null ) );
+    }
+
+    private static String filterWithReaders( final byte[] bytes,
+            final String encoding, final List<FileUtils.FilterWrapper> wrappers )
+            throws IOException
+    {
+        return new String( filterBytesWithReaders( bytes, encoding, wrappers ),
+                encoding );
+    }
+
+    private static byte[] filterBytesWithReaders( final byte[] bytes,
+            final String encoding, final List<FileUtils.FilterWrapper> wrappers )
+            throws IOException
+    {
+        Reader reader = new InputStreamReader( new ByteArrayInputStream( bytes ),
+                encoding );
+        for ( FileUtils.FilterWrapper wrapper : wrappers )
+        {
+            reader = wrapper.getReader( reader );
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter( out, encoding );
+        char[] buffer = new char[4096];
+        int count;
+        while ( ( count = reader.read( buffer ) ) != -1 )
+        {
+            writer.write( buffer, 0, count );
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes( final int... values )
+    {
+        byte[] bytes = new byte[values.length];
+        for ( int i = 0; i < values.length; i++ )
+        {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    private static byte[] read( final InputStream in, final int size )
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[size];
+        int count;
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.maven.artifact.repository.DefaultArtifactRepository;
+import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
+import org.apache.maven.artifact.repository.metadata.Metadata;
+import org.apache.maven.artifact.repository.metadata.SnapshotVersion;
+import org.apache.maven.artifact.repository.metadata.io.xpp3.MetadataXpp3Reader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalInstallerTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldUseTheRepositoryLayout()
+    {
+        File repository = folder.getRoot();
+        LocalInstaller installer = new LocalInstaller(
+                new DefaultArtifactRepository( "local", repository.toURI()
+                        .toString(), new DefaultRepositoryLayout() ) );
+        assertEquals( new File( repository,
+                "org/example/it/1.0-SNAPSHOT/it-1.0-SNAPSHOT-docs.jar" ),
+                installer.getFile( "org.example", "it", "1.0-SNAPSHOT", "jar",
+                        "docs" ) );
+        assertEquals( new File( repository, "org/example/it/1.0/it-1.0.pom" ),
+                installer.getFile( "org.example", "it", "1.0", "pom", null ) );
+    }
+
+    @Test
+    public void shouldOnlyCopyChangedFiles() throws IOException
+    {
+        File source = write( new File( folder.getRoot(), "docs.jar" ), "one" );
+        File destination = new File( folder.getRoot(), "repo/a/b/docs.jar" );
+
+        assertTrue( LocalInstaller.install( source, destination ) );
+        assertEquals( LocalInstaller.sha1( source ),
+                LocalInstaller.sha1( destination ) );
+        assertFalse( LocalInstaller.install( source, destination ) );
+
+        write( source, "two" );
+        assertTrue( LocalInstaller.install( source, destination ) );
+        assertEquals( LocalInstaller.sha1( source ),
+                LocalInstaller.sha1( destination ) );
+        assertEquals( 1, destination.getParentFile()
+                .list().length );
+    }
+
+    @Test
+    public void shouldRecordInstallsInTheMetadata() throws Exception
+    {
+        File repository = folder.getRoot();
+        LocalInstaller installer = new LocalInstaller(
+                new DefaultArtifactRepository( "local", repository.toURI()
+                        .toString(), new DefaultRepositoryLayout() ) );
+        for ( int i = 0; i < 2; i++ )
+        {
+            installer.recordInstall( "org.example", "it", "1.0-SNAPSHOT",
+                    "jar", "docs" );
+            installer.recordInstall( "org.example", "it", "1.0-SNAPSHOT",
+                    "pom", null );
+        }
+        Metadata versions = read( new File( repository,
+                "org/example/it/" + LocalInstaller.METADATA_FILENAME ) );
+        assertEquals( "1.0-SNAPSHOT", versions.getVersioning()
+                .getLatest() );
+        assertNull( versions.getVersioning()
+                .getRelease() );
+
+        installer.recordInstall( "org.example", "it", "1.0", "pom", null );
+
+        versions = read( new File( repository,
+                "org/example/it/" + LocalInstaller.METADATA_FILENAME ) );
+        assertEquals( "org.example", versions.getGroupId() );
+        assertEquals( "it", versions.getArtifactId() );
+        assertEquals( Arrays.asList( "1.0-SNAPSHOT", "1.0" ),
+                versions.getVersioning()
+                        .getVersions() );
+        assertEquals( "1.0", versions.getVersioning()
+                .getRelease() );
+        assertEquals( "1.0", versions.getVersioning()
+                .getLatest() );
+
+        Metadata snapshots = read( new File( repository,
+                "org/example/it/1.0-SNAPSHOT/" + LocalInstaller.METADATA_FILENAME ) );
+        assertEquals( "1.0-SNAPSHOT", snapshots.getVersion() );
+        assertTrue( snapshots.getVersioning()
+                .getSnapshot()
+                .isLocalCopy() );
+        assertEquals( 2, snapshots.getVersioning()
+                .getSnapshotVersions()
+                .size() );
+        SnapshotVersion docs = snapshots.getVersioning()
+                .getSnapshotVersions()
+                .get( 0 );
+        assertEquals( "docs", docs.getClassifier() );
+        assertEquals( "jar", docs.getExtension() );
+        assertEquals( "1.0-SNAPSHOT", docs.getVersion() );
+        assertFalse( new File( repository, "org/example/it/1.0/"
+                                           + LocalInstaller.METADATA_FILENAME ).exists() );
+
+        Properties repositories = new Properties();
+        InputStream in = new FileInputStream( new File( repository,
+                "org/example/it/1.0-SNAPSHOT/"
+                        + LocalInstaller.REMOTE_REPOSITORIES_FILENAME ) );
+        try
+        {
+            repositories.load( in );
+        }
+        finally
+        {
+            in.close();
+        }
+        assertEquals( 2, repositories.size() );
+        assertEquals( "", repositories.getProperty( "it-1.0-SNAPSHOT-docs.jar>" ) );
+        assertEquals( "", repositories.getProperty( "it-1.0-SNAPSHOT.pom>" ) );
+    }
+
+    private static Metadata read( final File file ) throws Exception
+    {
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            return new MetadataXpp3Reader().read( in );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private static File write( final File file, final String contents )
+            throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Archives a file larger than 2 GB, which takes several seconds and as much
+ * disk space as the file system doesn't keep sparse. Only run with
+ * -DlargeFiles.
+ */
+public class ParallelArchiverIT
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldStoreFilesLargerThanTwoGigabytesWithoutBufferingThem()
+            throws Exception
+    {
+        long grown = ParallelArchiverTest.storeLargeFile( folder.getRoot(),
+                3L * 1024 * 1024 * 1024 + 17 );
+        assertTrue( "heap grew by " + grown, grown < 64 * 1024 * 1024 );
+    }
+}
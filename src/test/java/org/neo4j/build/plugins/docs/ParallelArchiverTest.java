@@ -0,0 +1,381 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.codehaus.plexus.components.io.resources.PlexusIoFileResource;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelArchiverTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteEntriesInOrder() throws IOException
+    {
+        SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 50; i++ )
+        {
+            byte[] contents = new byte[random.nextInt( 20000 )];
+            for ( int j = 0; j < contents.length; j++ )
+            {
+                contents[j] = (byte) ( 'a' + random.nextInt( 4 ) );
+            }
+            String name = "dir" + ( i % 3 ) + "/file" + i
+                          + ( i % 5 == 0 ? ".png" : ".txt" );
+            resources.put( name, resource( name, contents ) );
+        }
+        byte[] large = new byte[(int) ParallelArchiver.MAX_BUFFERED_SIZE + 10];
+        random.nextBytes( large );
+        resources.put( "large.bin", resource( "large.bin", large ) );
+
+        File parallel = folder.newFile( "parallel.jar" );
+        new ParallelArchiver( 4, Collections.singletonMap( "png", 0 ), 6 ).createArchive(
+                resources, parallel );
+        File serial = folder.newFile( "serial.jar" );
+        new ParallelArchiver( 1, Collections.singletonMap( "png", 0 ), 6 ).createArchive(
+                resources, serial );
+
+        ZipFile zip = new ZipFile( parallel );
+        try
+        {
+            List<String> names = new ArrayList<String>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                names.add( entry.getName() );
+                if ( entry.isDirectory() )
+                {
+                    continue;
+                }
+                if ( entry.getName()
+                        .endsWith( ".png" ) )
+                {
+                    assertEquals( entry.getName(), ZipEntry.STORED,
+                            entry.getMethod() );
+                }
+                else if ( entry.getName()
+                        .endsWith( ".txt" ) )
+                {
+                    assertEquals( entry.getName(), ZipEntry.DEFLATED,
+                            entry.getMethod() );
+                }
+                if ( resources.containsKey( entry.getName() ) )
+                {
+                    assertArrayEquals( entry.getName(),
+                            read( resources.get( entry.getName() )
+                                    .getContents() ),
+                            read( zip.getInputStream( entry ) ) );
+                }
+            }
+            assertEquals( ParallelArchiver.MANIFEST_DIRECTORY, names.get( 0 ) );
+            assertEquals( ParallelArchiver.MANIFEST_NAME, names.get( 1 ) );
+            assertEquals( "dir0/", names.get( 2 ) );
+            assertEquals( "large.bin", names.get( names.size() - 1 ) );
+            assertEquals( resources.size() + 5, names.size() );
+        }
+        finally
+        {
+            zip.close();
+        }
+        assertEquals( serial.length(), parallel.length() );
+    }
+
+    @Test
+    public void shouldWriteTheSameBytesForTheSameContents() throws IOException
+    {
+        SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+        resources.put( "a/b.txt", resource( "a/b.txt", "Some text.".getBytes( "UTF-8" ) ) );
+        resources.put( "c.png", resource( "c.png", new byte[100] ) );
+        long timestamp = ParallelArchiver.parseTimestamp( "2012-06-01T12:00:00Z" );
+
+        ParallelArchiver archiver = new ParallelArchiver( 2,
+                Collections.singletonMap( "png", 0 ), 6 );
+        archiver.setTimestamp( timestamp );
+        File first = folder.newFile( "first.jar" );
+        archiver.createArchive( resources, first );
+        for ( PlexusIoFileResource resource : resources.values() )
+        {
+            resource.getFile()
+                    .setLastModified( System.currentTimeMillis() - 100000 );
+        }
+        File second = folder.newFile( "second.jar" );
+        archiver.createArchive( resources, second );
+
+        assertArrayEquals( read( new FileInputStream( first ) ),
+                read( new FileInputStream( second ) ) );
+        ZipFile zip = new ZipFile( first );
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while ( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                Calendar time = Calendar.getInstance();
+                time.setTimeInMillis( entry.getTime() );
+                assertEquals( entry.getName(), 12,
+                        time.get( Calendar.HOUR_OF_DAY ) );
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void shouldUpdateToTheSameBytesAsAFullRebuild() throws IOException
+    {
+        SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+        Map<String, String> hashes = new HashMap<String, String>();
+        Random random = new Random( 42 );
+        for ( int i = 0; i < 20; i++ )
+        {
+            String name = "dir" + ( i % 3 ) + "/file" + i
+                          + ( i % 5 == 0 ? ".png" : ".txt" );
+            resources.put( name,
+                    resource( name, ( "Contents of " + i ).getBytes( "UTF-8" ) ) );
+            hashes.put( name, "hash" + i );
+        }
+        byte[] large = new byte[(int) ParallelArchiver.MAX_BUFFERED_SIZE + 10];
+        random.nextBytes( large );
+        resources.put( "large.bin", resource( "large.bin", large ) );
+        hashes.put( "large.bin", "large" );
+        long timestamp = ParallelArchiver.parseTimestamp( "2012-06-01T12:00:00Z" );
+
+        File updated = folder.newFile( "updated.jar" );
+        ParallelArchiver archiver = new ParallelArchiver( 2,
+                Collections.singletonMap( "png", 0 ), 6 );
+        archiver.setTimestamp( timestamp );
+        archiver.setUpdate( hashes, "fingerprint" );
+        archiver.createArchive( resources, updated );
+        assertEquals( 0, archiver.getReused() );
+        assertTrue( ArchiveIndex.fileFor( updated )
+                .isFile() );
+
+        resources.put( "dir1/file1.txt",
+                resource( "dir1/file1.txt", "Changed".getBytes( "UTF-8" ) ) );
+        hashes.put( "dir1/file1.txt", "changed" );
+        resources.put( "new/file.txt",
+                resource( "new/file.txt", "New".getBytes( "UTF-8" ) ) );
+        hashes.put( "new/file.txt", "new" );
+        archiver.createArchive( resources, updated );
+        assertEquals( resources.size() - 2, archiver.getReused() );
+
+        File full = folder.newFile( "full.jar" );
+        ParallelArchiver rebuilder = new ParallelArchiver( 2,
+                Collections.singletonMap( "png", 0 ), 6 );
+        rebuilder.setTimestamp( timestamp );
+        rebuilder.createArchive( resources, full );
+        assertArrayEquals( read( new FileInputStream( full ) ),
+                read( new FileInputStream( updated ) ) );
+
+        archiver.setUpdate( hashes, "other fingerprint" );
+        archiver.createArchive( resources, updated );
+        assertEquals( 0, archiver.getReused() );
+    }
+
+    @Test
+    public void shouldStoreLargeFilesWithoutBufferingThem() throws IOException
+    {
+        storeLargeFile( folder.getRoot(), 3 * ParallelArchiver.MAX_BUFFERED_SIZE
+                                          + 17 );
+    }
+
+    /**
+     * Archives a sparse file of the given size, stored as it is, and checks
+     * what ends up in the archive.
+     * 
+     * @return how much the peak heap grew while archiving.
+     */
+    static long storeLargeFile( final File directory, final long size )
+            throws IOException
+    {
+        File large = new File( directory, "src/large.csv" );
+        large.getParentFile()
+                .mkdirs();
+        RandomAccessFile file = new RandomAccessFile( large, "rw" );
+        try
+        {
+            file.setLength( size );
+            file.seek( size - 4 );
+            file.write( "tail".getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            file.close();
+        }
+        File small = new File( directory, "src/small.txt" );
+        FileUtils.fileWrite( small.getPath(), "UTF-8", "Small" );
+        SortedMap<String, PlexusIoFileResource> resources = new TreeMap<String, PlexusIoFileResource>();
+        resources.put( "large.csv", new PlexusIoFileResource( large,
+                "large.csv" ) );
+        resources.put( "small.txt", new PlexusIoFileResource( small,
+                "small.txt" ) );
+
+        ParallelArchiver archiver = new ParallelArchiver( 2,
+                Collections.<String, Integer>emptyMap(), 6 );
+        archiver.setStoreAbove( ParallelArchiver.MAX_BUFFERED_SIZE );
+        File archive = new File( directory, "large.jar" );
+        long heap = resetPeakHeap();
+        archiver.createArchive( resources, archive );
+        long grown = peakHeap() - heap;
+
+        ZipFile zip = new ZipFile( archive );
+        try
+        {
+            ZipEntry entry = zip.getEntry( "large.csv" );
+            assertEquals( ZipEntry.STORED, entry.getMethod() );
+            assertEquals( size, entry.getSize() );
+            InputStream in = zip.getInputStream( entry );
+            long skipped = 0;
+            while ( skipped < size - 4 )
+            {
+                skipped += in.skip( size - 4 - skipped );
+            }
+            assertEquals( "tail", new String( read( in ), "UTF-8" ) );
+            assertEquals( "Small", new String( read( zip.getInputStream( zip.getEntry( "small.txt" ) ) ),
+                    "UTF-8" ) );
+        }
+        finally
+        {
+            zip.close();
+        }
+        return grown;
+    }
+
+    @Test
+    public void shouldParseTimestamps()
+    {
+        assertEquals( -1, ParallelArchiver.parseTimestamp( null ) );
+        assertEquals( -1, ParallelArchiver.parseTimestamp( "a" ) );
+        assertEquals( 1338552000000L,
+                ParallelArchiver.parseTimestamp( "1338552000" ) );
+        assertEquals( 1338552000000L,
+                ParallelArchiver.parseTimestamp( "2012-06-01T12:00:00Z" ) );
+        assertEquals( 1338552000000L,
+                ParallelArchiver.parseTimestamp( "2012-06-01T14:00:00+02:00" ) );
+        assertEquals( 1338552000500L,
+                ParallelArchiver.parseTimestamp( "2012-06-01T12:00:00.500Z" ) );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void shouldRejectInvalidTimestamps()
+    {
+        ParallelArchiver.parseTimestamp( "yesterday" );
+    }
+
+    private PlexusIoFileResource resource( final String name,
+            final byte[] contents ) throws IOException
+    {
+        File file = new File( folder.getRoot(), "src/" + name );
+        file.getParentFile()
+                .mkdirs();
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents );
+        }
+        finally
+        {
+            out.close();
+        }
+        return new PlexusIoFileResource( file, name );
+    }
+
+    /**
+     * @return the heap in use, after starting over with the peak usage.
+     */
+    private static long resetPeakHeap()
+    {
+        System.gc();
+        long used = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            if ( pool.getType() == MemoryType.HEAP )
+            {
+                pool.resetPeakUsage();
+                used += pool.getUsage()
+                        .getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long peakHeap()
+    {
+        long peak = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+        {
+            if ( pool.getType() == MemoryType.HEAP )
+            {
+                peak += pool.getPeakUsage()
+                        .getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static byte[] read( final InputStream in ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PublishLockTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldLetOneThreadAtATimePublish() throws Exception
+    {
+        final File directory = folder.getRoot();
+        final CountDownLatch acquired = new CountDownLatch( 1 );
+        PublishLock lock = PublishLock.acquire( directory );
+        Thread other = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    PublishLock.acquire( directory )
+                            .close();
+                    acquired.countDown();
+                }
+                catch ( IOException e )
+                {
+                    throw new IllegalStateException( e );
+                }
+            }
+        };
+        other.start();
+        assertFalse( acquired.await( 200, TimeUnit.MILLISECONDS ) );
+        lock.close();
+        assertTrue( acquired.await( 10, TimeUnit.SECONDS ) );
+        other.join();
+        PublishLock.acquire( directory )
+                .close();
+    }
+
+    @Test
+    public void shouldForgetDirectoriesNobodyPublishesTo() throws IOException
+    {
+        int before = PublishLock.threadLockCount();
+        PublishLock first = PublishLock.acquire( folder.newFolder( "first" ) );
+        PublishLock second = PublishLock.acquire( folder.newFolder( "second" ) );
+        assertEquals( before + 2, PublishLock.threadLockCount() );
+        first.close();
+        second.close();
+        assertEquals( before, PublishLock.threadLockCount() );
+    }
+
+    @Test
+    public void shouldReplaceFiles() throws IOException
+    {
+        File source = folder.newFile( "source" );
+        FileUtils.fileWrite( source.getPath(), "UTF-8", "new" );
+        File destination = folder.newFile( "destination" );
+        FileUtils.fileWrite( destination.getPath(), "UTF-8", "old" );
+        PublishLock.replace( source, destination );
+        assertFalse( source.exists() );
+        assertEquals( "new", FileUtils.fileRead( destination, "UTF-8" ) );
+    }
+}
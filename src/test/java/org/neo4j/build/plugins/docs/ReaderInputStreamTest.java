@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class ReaderInputStreamTest
+{
+    @Test
+    public void shouldEncodeLikeAWriter() throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        for ( int i = 0; i < 5000; i++ )
+        {
+            text.append( "Some cöntents € " )
+                    .append( i )
+                    .append( '\n' );
+        }
+        for ( String encoding : new String[] { "UTF-8", "ISO-8859-1", "UTF-16" } )
+        {
+            InputStream in = new ReaderInputStream( new StringReader(
+                    text.toString() ), encoding );
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1000];
+            int count;
+            while ( ( count = in.read( buffer ) ) != -1 )
+            {
+                out.write( buffer, 0, count );
+            }
+            in.close();
+            assertArrayEquals( encoding, text.toString()
+                    .getBytes( encoding ), out.toByteArray() );
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.codehaus.plexus.DefaultPlexusContainer;
+import org.codehaus.plexus.PlexusContainer;
+import org.codehaus.plexus.component.configurator.ComponentConfigurator;
+import org.codehaus.plexus.component.configurator.expression.ExpressionEvaluator;
+import org.codehaus.plexus.configuration.xml.XmlPlexusConfiguration;
+import org.codehaus.plexus.util.xml.Xpp3DomBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class SourceDirectoryTest
+{
+    private static final File BASEDIR = new File( "/work/project" );
+
+    private static PlexusContainer container;
+
+    @BeforeClass
+    public static void startContainer() throws Exception
+    {
+        container = new DefaultPlexusContainer();
+    }
+
+    @AfterClass
+    public static void disposeContainer()
+    {
+        container.dispose();
+    }
+
+    @Test
+    public void shouldConfigurePlainPaths() throws Exception
+    {
+        AssembleMojo mojo = configure( "<sourceDirectories>"
+                                       + "<sourceDirectory>${basedir}/src/docs</sourceDirectory>"
+                                       + "<sourceDirectory>target/docs</sourceDirectory>"
+                                       + "</sourceDirectories>" );
+        assertEquals( 2, mojo.sourceDirectories.size() );
+        assertEquals( new File( BASEDIR, "src/docs" ),
+                mojo.sourceDirectories.get( 0 )
+                        .getDirectory() );
+        assertEquals( new File( "target/docs" ), mojo.sourceDirectories.get( 1 )
+                .getDirectory() );
+    }
+
+    @Test
+    public void shouldConfigureChildElements() throws Exception
+    {
+        AssembleMojo mojo = configure( "<sourceDirectories><sourceDirectory>"
+                                       + "<directory>${basedir}/src/docs</directory>"
+                                       + "<includes><include>**/*.txt</include></includes>"
+                                       + "<filter>false</filter>"
+                                       + "<prefix>manual</prefix>"
+                                       + "</sourceDirectory></sourceDirectories>" );
+        SourceDirectory dir = mojo.sourceDirectories.get( 0 );
+        assertEquals( new File( BASEDIR, "src/docs" ), dir.getDirectory() );
+        assertEquals( Arrays.asList( "**/*.txt" ), dir.getIncludes() );
+        assertEquals( Boolean.FALSE, dir.getFilter() );
+        assertEquals( "manual/", dir.getPrefix() );
+    }
+
+    @Test
+    public void shouldCopyTheSettingsForAnotherDirectory()
+    {
+        SourceDirectory dir = new SourceDirectory( new File( "docs" ) );
+        dir.setIncludes( Arrays.asList( "**/*.txt" ) );
+        dir.setExcludes( Arrays.asList( "draft/**" ) );
+        dir.setFilter( Boolean.TRUE );
+        dir.setEncoding( "ISO-8859-1" );
+        dir.setPrefix( "manual" );
+        SourceDirectory copy = dir.withDirectory( new File( BASEDIR, "docs" ) );
+
+        assertEquals( new File( "docs" ), dir.getDirectory() );
+        assertEquals( new File( BASEDIR, "docs" ), copy.getDirectory() );
+        assertEquals( dir.toString()
+                .replace( "directory=docs", "directory=" + copy.getDirectory() ),
+                copy.toString() );
+    }
+
+    /**
+     * Configures the mojo with the same configurator Maven uses.
+     */
+    private static AssembleMojo configure( final String configuration )
+            throws Exception
+    {
+        AssembleMojo mojo = new AssembleMojo();
+        ComponentConfigurator configurator = container.lookup(
+                ComponentConfigurator.class, "basic" );
+        configurator.configureComponent( mojo, new XmlPlexusConfiguration(
+                Xpp3DomBuilder.build( new StringReader( "<configuration>"
+                                                        + configuration
+                                                        + "</configuration>" ) ) ),
+                new ExpressionEvaluator()
+                {
+                    public Object evaluate( final String expression )
+                    {
+                        return expression.replace( "${basedir}",
+                                BASEDIR.getPath() );
+                    }
+
+                    public File alignToBaseDirectory( final File file )
+                    {
+                        return file;
+                    }
+                }, container.getContainerRealm() );
+        return mojo;
+    }
+}
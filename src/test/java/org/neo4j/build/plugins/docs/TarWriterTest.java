@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.codehaus.plexus.archiver.tar.TarEntry;
+import org.codehaus.plexus.archiver.tar.TarInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+public class TarWriterTest
+{
+    private static final long TIME = 1338552000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldWriteGzipTarFiles() throws IOException
+    {
+        File tar = write( "docs.tar.gz", TarWriter.GZIP, 0 );
+        assertContents( new GZIPInputStream( new FileInputStream( tar ) ) );
+        assertArrayEquals( read( new FileInputStream( tar ) ),
+                read( new FileInputStream( write( "again.tar.gz",
+                        TarWriter.GZIP, 0 ) ) ) );
+    }
+
+    @Test
+    public void shouldWriteZstdTarFiles() throws IOException
+    {
+        File tar = write( "docs.tar.zst", TarWriter.ZSTD, 2 );
+        assertContents( new ZstdInputStream( new FileInputStream( tar ) ) );
+    }
+
+    private File write( final String name, final String compression,
+            final int workers ) throws IOException
+    {
+        File tar = new File( folder.getRoot(), name );
+        TarWriter writer = new TarWriter( tar, compression, workers );
+        try
+        {
+            writer.writeEntry( "a/b/one.txt", TIME, stream( "one" ), 3 );
+            writer.writeEntry( "a/two.txt", TIME, stream( "two" ), -1 );
+            writer.writeEntry( "a/b/c/"
+                               + "a-name-which-is-longer-than-a-hundred-characters-and-needs-the-gnu-extension-of-the-tar-format.txt",
+                    TIME, stream( "three" ), 5 );
+        }
+        finally
+        {
+            writer.close();
+        }
+        return tar;
+    }
+
+    private void assertContents( final InputStream in ) throws IOException
+    {
+        TarInputStream tar = new TarInputStream( in );
+        try
+        {
+            List<String> names = new ArrayList<String>();
+            List<String> contents = new ArrayList<String>();
+            TarEntry entry;
+            while ( ( entry = tar.getNextEntry() ) != null )
+            {
+                names.add( entry.getName() );
+                assertEquals( TIME, entry.getModTime()
+                        .getTime() );
+                if ( !entry.isDirectory() )
+                {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    tar.copyEntryContents( out );
+                    contents.add( out.toString( "UTF-8" ) );
+                }
+            }
+            assertEquals( Arrays.asList( "a/", "a/b/", "a/b/one.txt",
+                    "a/two.txt", "a/b/c/",
+                    "a/b/c/a-name-which-is-longer-than-a-hundred-characters-and-needs-the-gnu-extension-of-the-tar-format.txt" ),
+                    names );
+            assertEquals( Arrays.asList( "one", "two", "three" ), contents );
+        }
+        finally
+        {
+            tar.close();
+        }
+    }
+
+    private static InputStream stream( final String contents )
+            throws IOException
+    {
+        return new ByteArrayInputStream( contents.getBytes( "UTF-8" ) );
+    }
+
+    private static byte[] read( final InputStream in ) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ( ( count = in.read( buffer ) ) != -1 )
+        {
+            out.write( buffer, 0, count );
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
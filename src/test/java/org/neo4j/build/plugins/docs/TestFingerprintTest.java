@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestFingerprintTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldChangeWithTheFiles() throws IOException
+    {
+        File sources = folder.newFolder( "sources" );
+        File docs = new File( folder.getRoot(), "docs" );
+        File source = new File( sources, "DocsTest.java" );
+        source.createNewFile();
+        source.setLastModified( 1000000000000L );
+
+        String first = fingerprint( "DocsTest", sources, docs );
+        assertEquals( first, fingerprint( "DocsTest", sources, docs ) );
+        assertFalse( first.equals( fingerprint( "OtherTest", sources, docs ) ) );
+
+        docs.mkdir();
+        String withDocs = fingerprint( "DocsTest", sources, docs );
+        assertFalse( first.equals( withDocs ) );
+
+        source.setLastModified( 1000000001000L );
+        assertFalse( withDocs.equals( fingerprint( "DocsTest", sources, docs ) ) );
+    }
+
+    @Test
+    public void shouldReadWhatWasWritten() throws IOException
+    {
+        File file = new File( folder.getRoot(), TestFingerprint.FILENAME );
+        assertNull( TestFingerprint.read( file ) );
+        TestFingerprint.write( file, "abc123" );
+        assertEquals( "abc123", TestFingerprint.read( file ) );
+    }
+
+    private static String fingerprint( final String tests, final File sources,
+            final File docs ) throws IOException
+    {
+        return new TestFingerprint().add( "tests", tests )
+                .addFiles( "testSources", sources )
+                .addFiles( "docs", docs )
+                .get();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2011-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.build.plugins.docs;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.maven.model.Model;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ValueTableTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldFilterLikeTheProjectModel() throws IOException
+    {
+        File source = file( "a.txt", "version ${project.version} of ${name}\n"
+                                     + "@name@ and ${nested} ${missing} @other@\n"
+                                     + "mail@example.com to@example.com ${.name}\n"
+                                     + "path ${path} ${open\n} $${name}" );
+        Model model = new Model();
+        model.setVersion( "1.2" );
+        Properties properties = new Properties();
+        properties.setProperty( "name", "docs" );
+        properties.setProperty( "nested", "${name}-${project.version}" );
+        properties.setProperty( "path", "C:\\docs" );
+        model.setProperties( properties );
+        DocsFilterWrapper wrapper = new DocsFilterWrapper( new MavenProject(
+                model ), null );
+        ValueTable table = ValueTable.resolve( FilterCache.expressions(
+                source, "UTF-8" ), wrapper );
+
+        File expected = new File( folder.getRoot(), "expected.txt" );
+        filter( wrapper ).copy( source, expected );
+        File actual = new File( folder.getRoot(), "actual.txt" );
+        filter( table.newFilterWrapper() ).copy( source, actual );
+        assertEquals( FileUtils.fileRead( expected, "UTF-8" ),
+                FileUtils.fileRead( actual, "UTF-8" ) );
+        assertEquals( "docs-1.2", table.getValues()
+                .get( "nested" ) );
+        assertEquals( Arrays.asList( "missing", "other" ),
+                table.getUnresolved() );
+    }
+
+    private static DocsFilter filter( final FileUtils.FilterWrapper wrapper )
+    {
+        return new DocsFilter(
+                Collections.<FileUtils.FilterWrapper>singletonList( wrapper ),
+                "UTF-8", 1024 );
+    }
+
+    private File file( final String name, final String contents )
+            throws IOException
+    {
+        File file = new File( folder.getRoot(), name );
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( contents.getBytes( "UTF-8" ) );
+        }
+        finally
+        {
+            out.close();
+        }
+        return file;
+    }
+}